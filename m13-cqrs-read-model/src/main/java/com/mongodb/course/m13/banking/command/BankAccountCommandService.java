@@ -4,6 +4,7 @@ import com.mongodb.course.m13.banking.event.AccountEvent;
 import com.mongodb.course.m13.banking.projection.AccountSummaryProjector;
 import com.mongodb.course.m13.banking.projection.TransactionHistoryProjector;
 import com.mongodb.course.m13.infrastructure.EventStore;
+import com.mongodb.course.m13.infrastructure.ProjectionFence;
 import org.springframework.stereotype.Service;
 
 import java.math.BigDecimal;
@@ -15,45 +16,44 @@ public class BankAccountCommandService {
     private static final String COLLECTION = "m13_account_events";
 
     private final EventStore eventStore;
+    private final ProjectionFence projectionFence;
     private final AccountSummaryProjector accountSummaryProjector;
     private final TransactionHistoryProjector transactionHistoryProjector;
 
     public BankAccountCommandService(EventStore eventStore,
+                                     ProjectionFence projectionFence,
                                      AccountSummaryProjector accountSummaryProjector,
                                      TransactionHistoryProjector transactionHistoryProjector) {
         this.eventStore = eventStore;
+        this.projectionFence = projectionFence;
         this.accountSummaryProjector = accountSummaryProjector;
         this.transactionHistoryProjector = transactionHistoryProjector;
     }
 
     public BankAccount openAccount(String accountId, String holder, BigDecimal initialBalance, String currency) {
         var account = BankAccount.open(accountId, holder, initialBalance, currency);
-        var events = persistEvents(account);
-        events.forEach(this::projectEvent);
+        commit(account);
         return account;
     }
 
     public BankAccount deposit(String accountId, BigDecimal amount, String description) {
         var account = loadAccount(accountId);
         account.deposit(amount, description);
-        var events = persistEvents(account);
-        events.forEach(this::projectEvent);
+        commit(account);
         return account;
     }
 
     public BankAccount withdraw(String accountId, BigDecimal amount, String description) {
         var account = loadAccount(accountId);
         account.withdraw(amount, description);
-        var events = persistEvents(account);
-        events.forEach(this::projectEvent);
+        commit(account);
         return account;
     }
 
     public BankAccount transfer(String accountId, BigDecimal amount, String targetAccountId, String description) {
         var account = loadAccount(accountId);
         account.transfer(amount, targetAccountId, description);
-        var events = persistEvents(account);
-        events.forEach(this::projectEvent);
+        commit(account);
         return account;
     }
 
@@ -65,6 +65,10 @@ public class BankAccountCommandService {
         return BankAccount.replayFrom(events);
     }
 
+    private void commit(BankAccount account) {
+        projectionFence.shared(() -> persistEvents(account).forEach(this::projectEvent));
+    }
+
     private List<AccountEvent> persistEvents(BankAccount account) {
         var events = List.copyOf(account.getUncommittedEvents());
         eventStore.appendAll(events, COLLECTION);
@@ -24,6 +24,10 @@ public class AccountSummaryProjector {
     }
 
     public void project(AccountEvent event) {
+        project(event, COLLECTION);
+    }
+
+    public void project(AccountEvent event, String collection) {
         switch (event) {
             case AccountOpened e -> {
                 var doc = new AccountSummaryDocument(
@@ -36,7 +40,7 @@ public class AccountSummaryProjector {
                         BigDecimal.ZERO,
                         e.occurredAt(),
                         e.version());
-                mongoTemplate.insert(doc, COLLECTION);
+                mongoTemplate.insert(doc, collection);
             }
             case FundsDeposited e -> {
                 var query = Query.query(Criteria.where("_id").is(e.aggregateId()));
@@ -47,7 +51,7 @@ public class AccountSummaryProjector {
                         .inc("totalDeposited", new Decimal128(e.amount()))
                         .set("lastActivityAt", e.occurredAt())
                         .set("projectedVersion", e.version());
-                mongoTemplate.updateFirst(query, update, COLLECTION);
+                mongoTemplate.updateFirst(query, update, collection);
             }
             case FundsWithdrawn e -> {
                 var query = Query.query(Criteria.where("_id").is(e.aggregateId()));
@@ -58,7 +62,7 @@ public class AccountSummaryProjector {
                         .inc("totalWithdrawn", new Decimal128(e.amount()))
                         .set("lastActivityAt", e.occurredAt())
                         .set("projectedVersion", e.version());
-                mongoTemplate.updateFirst(query, update, COLLECTION);
+                mongoTemplate.updateFirst(query, update, collection);
             }
             case FundsTransferred e -> {
                 var query = Query.query(Criteria.where("_id").is(e.aggregateId()));
@@ -69,7 +73,7 @@ public class AccountSummaryProjector {
                         .inc("totalWithdrawn", new Decimal128(e.amount()))
                         .set("lastActivityAt", e.occurredAt())
                         .set("projectedVersion", e.version());
-                mongoTemplate.updateFirst(query, update, COLLECTION);
+                mongoTemplate.updateFirst(query, update, collection);
             }
         }
     }
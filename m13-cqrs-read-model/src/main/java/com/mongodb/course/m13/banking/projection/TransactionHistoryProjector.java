@@ -2,6 +2,12 @@ package com.mongodb.course.m13.banking.projection;
 
 import com.mongodb.course.m13.banking.event.*;
 import com.mongodb.course.m13.banking.readmodel.TransactionHistoryDocument;
+import org.bson.Document;
+import org.bson.types.Decimal128;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
@@ -9,85 +15,186 @@ import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Service;
 
 import java.math.BigDecimal;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
+/**
+ * Writes one history entry per account event, carrying the running balance in a bounded cache
+ * keyed by target collection and account. Events are applied strictly in version order:
+ * already-applied versions are skipped and early arrivals wait for their predecessor. A gap or an
+ * entry that already exists resumes from the newest stored entry, which another instance may
+ * have written.
+ */
 @Service
 public class TransactionHistoryProjector {
 
+    private static final Logger log = LoggerFactory.getLogger(TransactionHistoryProjector.class);
+
     private static final String COLLECTION = "m13_transaction_history";
 
     private final MongoTemplate mongoTemplate;
+    private final int maxCachedAccounts;
+    private final int maxParked;
+    private final Map<String, RunningBalance> balances;
 
-    public TransactionHistoryProjector(MongoTemplate mongoTemplate) {
+    public TransactionHistoryProjector(MongoTemplate mongoTemplate,
+                                       @Value("${projection.history.balance-cache.max-entries:10000}") int maxCachedAccounts,
+                                       @Value("${projection.history.max-parked:1000}") int maxParked) {
         this.mongoTemplate = mongoTemplate;
+        this.maxCachedAccounts = maxCachedAccounts;
+        this.maxParked = maxParked;
+        this.balances = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, RunningBalance> eldest) {
+                if (size() <= TransactionHistoryProjector.this.maxCachedAccounts) {
+                    return false;
+                }
+                if (!eldest.getValue().parked.isEmpty()) {
+                    log.warn("Evicting history of {} with {} parked events", eldest.getKey(),
+                            eldest.getValue().parked.size());
+                }
+                return true;
+            }
+        };
     }
 
     public void project(AccountEvent event) {
-        switch (event) {
-            case AccountOpened e -> {
-                var doc = new TransactionHistoryDocument(
-                        e.eventId(),
-                        e.aggregateId(),
-                        "OPENING",
-                        e.initialBalance(),
-                        "Account opened",
-                        null,
-                        e.initialBalance(),
-                        e.occurredAt());
-                mongoTemplate.insert(doc, COLLECTION);
+        project(event, COLLECTION);
+    }
+
+    public void project(AccountEvent event, String collection) {
+        var running = runningBalance(collection, event.aggregateId());
+        synchronized (running) {
+            if (!running.seeded || event.version() > running.version + 1) {
+                // Cold start, or entries this cache has not seen may have been written elsewhere
+                seed(running, event.aggregateId(), collection);
             }
-            case FundsDeposited e -> {
-                var balanceAfter = getLatestBalance(e.aggregateId()).add(e.amount());
-                var doc = new TransactionHistoryDocument(
-                        e.eventId(),
-                        e.aggregateId(),
-                        "DEPOSIT",
-                        e.amount(),
-                        e.description(),
-                        null,
-                        balanceAfter,
-                        e.occurredAt());
-                mongoTemplate.insert(doc, COLLECTION);
+            if (event.version() <= running.version) {
+                log.debug("Skipping duplicate v{} for {}", event.version(), event.aggregateId());
+                return;
             }
-            case FundsWithdrawn e -> {
-                var balanceAfter = getLatestBalance(e.aggregateId()).subtract(e.amount());
-                var doc = new TransactionHistoryDocument(
-                        e.eventId(),
-                        e.aggregateId(),
-                        "WITHDRAWAL",
-                        e.amount(),
-                        e.description(),
-                        null,
-                        balanceAfter,
-                        e.occurredAt());
-                mongoTemplate.insert(doc, COLLECTION);
+            if (event.version() > running.version + 1) {
+                park(running, event);
+                return;
             }
-            case FundsTransferred e -> {
-                var balanceAfter = getLatestBalance(e.aggregateId()).subtract(e.amount());
-                var doc = new TransactionHistoryDocument(
-                        e.eventId(),
-                        e.aggregateId(),
-                        "TRANSFER",
-                        e.amount(),
-                        e.description(),
-                        e.targetAccountId(),
-                        balanceAfter,
-                        e.occurredAt());
-                mongoTemplate.insert(doc, COLLECTION);
+            apply(running, event, collection);
+            AccountEvent next;
+            while ((next = running.parked.get(running.version + 1)) != null) {
+                apply(running, next, collection);
+                running.parked.remove(next.version());
             }
+            running.parked.headMap(running.version, true).clear();
+        }
+    }
+
+    private void park(RunningBalance running, AccountEvent event) {
+        if (running.parked.size() >= maxParked) {
+            // Their entries come back with the next rebuild
+            log.warn("Dropping {} history events of {} parked behind v{}", running.parked.size(),
+                    event.aggregateId(), running.version + 1);
+            running.parked.clear();
         }
+        running.parked.put(event.version(), event);
     }
 
     public void rebuildAll(List<AccountEvent> events) {
         mongoTemplate.remove(new Query(), COLLECTION);
+        forget(COLLECTION);
         events.forEach(this::project);
     }
 
-    private BigDecimal getLatestBalance(String accountId) {
+    /**
+     * Drops cached running balances for a collection whose contents were removed or replaced.
+     */
+    public void forget(String collection) {
+        var prefix = collection + ":";
+        synchronized (balances) {
+            balances.keySet().removeIf(key -> key.startsWith(prefix));
+        }
+    }
+
+    private void apply(RunningBalance running, AccountEvent event, String collection) {
+        var doc = switch (event) {
+            case AccountOpened e -> new TransactionHistoryDocument(
+                    e.eventId(),
+                    e.aggregateId(),
+                    e.version(),
+                    "OPENING",
+                    e.initialBalance(),
+                    "Account opened",
+                    null,
+                    e.initialBalance(),
+                    e.occurredAt());
+            case FundsDeposited e -> new TransactionHistoryDocument(
+                    e.eventId(),
+                    e.aggregateId(),
+                    e.version(),
+                    "DEPOSIT",
+                    e.amount(),
+                    e.description(),
+                    null,
+                    running.balance.add(e.amount()),
+                    e.occurredAt());
+            case FundsWithdrawn e -> new TransactionHistoryDocument(
+                    e.eventId(),
+                    e.aggregateId(),
+                    e.version(),
+                    "WITHDRAWAL",
+                    e.amount(),
+                    e.description(),
+                    null,
+                    running.balance.subtract(e.amount()),
+                    e.occurredAt());
+            case FundsTransferred e -> new TransactionHistoryDocument(
+                    e.eventId(),
+                    e.aggregateId(),
+                    e.version(),
+                    "TRANSFER",
+                    e.amount(),
+                    e.description(),
+                    e.targetAccountId(),
+                    running.balance.subtract(e.amount()),
+                    e.occurredAt());
+        };
+        try {
+            mongoTemplate.insert(doc, collection);
+        } catch (DuplicateKeyException e) {
+            // Another writer got here first; its stored balance is the one to continue from
+            log.debug("History entry {} already exists in {}", doc.eventId(), collection);
+            seed(running, event.aggregateId(), collection);
+            return;
+        }
+        running.version = event.version();
+        running.balance = doc.balanceAfter();
+    }
+
+    private RunningBalance runningBalance(String collection, String accountId) {
+        synchronized (balances) {
+            return balances.computeIfAbsent(collection + ":" + accountId, key -> new RunningBalance());
+        }
+    }
+
+    // Resume from the newest history entry of the account when it is ahead of the cache
+    private void seed(RunningBalance running, String accountId, String collection) {
         var query = Query.query(Criteria.where("accountId").is(accountId))
-                .with(Sort.by(Sort.Direction.DESC, "occurredAt"))
+                .with(Sort.by(Sort.Direction.DESC, "version"))
                 .limit(1);
-        var latest = mongoTemplate.findOne(query, TransactionHistoryDocument.class, COLLECTION);
-        return latest != null ? latest.balanceAfter() : BigDecimal.ZERO;
+        query.fields().include("version", "balanceAfter");
+        var latest = mongoTemplate.findOne(query, Document.class, collection);
+        if (latest != null && latest.get("version") instanceof Number version
+                && version.longValue() > running.version) {
+            running.version = version.longValue();
+            running.balance = latest.get("balanceAfter", Decimal128.class).bigDecimalValue();
+        }
+        running.seeded = true;
+    }
+
+    private static final class RunningBalance {
+        private final TreeMap<Long, AccountEvent> parked = new TreeMap<>();
+        private boolean seeded;
+        private long version;
+        private BigDecimal balance = BigDecimal.ZERO;
     }
 }
@@ -12,6 +12,7 @@ import java.time.Instant;
 public record TransactionHistoryDocument(
         @Id String eventId,
         String accountId,
+        long version,
         String transactionType,
         @Field(targetType = FieldType.DECIMAL128) BigDecimal amount,
         String description,
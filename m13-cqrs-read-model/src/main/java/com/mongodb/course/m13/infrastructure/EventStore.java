@@ -2,14 +2,19 @@ package com.mongodb.course.m13.infrastructure;
 
 import com.mongodb.course.m13.shared.DomainEvent;
 import jakarta.annotation.PostConstruct;
+import org.bson.Document;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
 import org.springframework.data.mongodb.core.index.CompoundIndexDefinition;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Service;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 
 @Service
 public class EventStore {
@@ -52,10 +57,43 @@ public class EventStore {
         return (List<T>) mongoTemplate.find(query, type, collection);
     }
 
+    public <T extends DomainEvent> Stream<T> streamAllEvents(Class<T> type, String collection, int batchSize) {
+        var query = new Query()
+                .with(Sort.by(Sort.Direction.ASC, "occurredAt", "version"))
+                .cursorBatchSize(batchSize);
+        return mongoTemplate.stream(query, type, collection);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T extends DomainEvent> List<T> loadEventsAfterVersion(String aggregateId, long afterVersion,
+                                                                  Class<T> type, String collection) {
+        var query = Query.query(Criteria.where("aggregateId").is(aggregateId).and("version").gt(afterVersion))
+                .with(Sort.by(Sort.Direction.ASC, "version"));
+        return (List<T>) mongoTemplate.find(query, type, collection);
+    }
+
+    /**
+     * The latest version of every aggregate, read off the {aggregateId, version} index.
+     */
+    public Map<String, Long> latestVersions(String collection) {
+        var aggregation = Aggregation.newAggregation(
+                Aggregation.sort(Sort.by(Sort.Direction.ASC, "aggregateId").and(Sort.by(Sort.Direction.DESC, "version"))),
+                Aggregation.group("aggregateId").first("version").as("version"));
+        var latest = new HashMap<String, Long>();
+        for (var doc : mongoTemplate.aggregate(aggregation, collection, Document.class)) {
+            latest.put(doc.getString("_id"), doc.get("version", Number.class).longValue());
+        }
+        return latest;
+    }
+
     public void ensureIndexes(String collection) {
         var indexDef = new CompoundIndexDefinition(
                 new org.bson.Document("aggregateId", 1).append("version", 1))
                 .unique();
         mongoTemplate.indexOps(collection).ensureIndex(indexDef);
+
+        // Replay order: lets the streaming cursor walk the index instead of a blocking sort
+        mongoTemplate.indexOps(collection).ensureIndex(new CompoundIndexDefinition(
+                new org.bson.Document("occurredAt", 1).append("version", 1)));
     }
 }
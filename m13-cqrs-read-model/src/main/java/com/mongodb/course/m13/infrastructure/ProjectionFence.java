@@ -0,0 +1,34 @@
+package com.mongodb.course.m13.infrastructure;
+
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Pauses live projection while a rebuild swaps read models. Commands append and project on the
+ * shared side; the rebuild's final catch-up and swap hold the exclusive side, so no event lands in
+ * a collection that is about to be replaced or is missed by the shadow that replaces it.
+ */
+@Component
+public class ProjectionFence {
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public void shared(Runnable action) {
+        lock.readLock().lock();
+        try {
+            action.run();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void exclusive(Runnable action) {
+        lock.writeLock().lock();
+        try {
+            action.run();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
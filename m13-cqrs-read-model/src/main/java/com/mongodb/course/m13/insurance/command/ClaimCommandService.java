@@ -1,6 +1,7 @@
 package com.mongodb.course.m13.insurance.command;
 
 import com.mongodb.course.m13.infrastructure.EventStore;
+import com.mongodb.course.m13.infrastructure.ProjectionFence;
 import com.mongodb.course.m13.insurance.event.ClaimEvent;
 import com.mongodb.course.m13.insurance.projection.ClaimDashboardProjector;
 import com.mongodb.course.m13.insurance.projection.ClaimStatisticsProjector;
@@ -15,13 +16,16 @@ public class ClaimCommandService {
     private static final String COLLECTION = "m13_claim_events";
 
     private final EventStore eventStore;
+    private final ProjectionFence projectionFence;
     private final ClaimDashboardProjector claimDashboardProjector;
     private final ClaimStatisticsProjector claimStatisticsProjector;
 
     public ClaimCommandService(EventStore eventStore,
+                               ProjectionFence projectionFence,
                                ClaimDashboardProjector claimDashboardProjector,
                                ClaimStatisticsProjector claimStatisticsProjector) {
         this.eventStore = eventStore;
+        this.projectionFence = projectionFence;
         this.claimDashboardProjector = claimDashboardProjector;
         this.claimStatisticsProjector = claimStatisticsProjector;
     }
@@ -29,48 +33,42 @@ public class ClaimCommandService {
     public ClaimProcess fileClaim(String claimId, String policyId, String claimantName,
                                   BigDecimal claimedAmount, String category) {
         var claim = ClaimProcess.file(claimId, policyId, claimantName, claimedAmount, category);
-        var events = persistEvents(claim);
-        events.forEach(this::projectEvent);
+        commit(claim);
         return claim;
     }
 
     public ClaimProcess investigate(String claimId, String investigatorName, String findings) {
         var claim = loadClaim(claimId);
         claim.investigate(investigatorName, findings);
-        var events = persistEvents(claim);
-        events.forEach(this::projectEvent);
+        commit(claim);
         return claim;
     }
 
     public ClaimProcess assess(String claimId, String assessorName, BigDecimal assessedAmount, String notes) {
         var claim = loadClaim(claimId);
         claim.assess(assessorName, assessedAmount, notes);
-        var events = persistEvents(claim);
-        events.forEach(this::projectEvent);
+        commit(claim);
         return claim;
     }
 
     public ClaimProcess approve(String claimId, BigDecimal approvedAmount, String approverName) {
         var claim = loadClaim(claimId);
         claim.approve(approvedAmount, approverName);
-        var events = persistEvents(claim);
-        events.forEach(this::projectEvent);
+        commit(claim);
         return claim;
     }
 
     public ClaimProcess reject(String claimId, String reason, String rejectorName) {
         var claim = loadClaim(claimId);
         claim.reject(reason, rejectorName);
-        var events = persistEvents(claim);
-        events.forEach(this::projectEvent);
+        commit(claim);
         return claim;
     }
 
     public ClaimProcess pay(String claimId, BigDecimal paidAmount, String paymentReference) {
         var claim = loadClaim(claimId);
         claim.pay(paidAmount, paymentReference);
-        var events = persistEvents(claim);
-        events.forEach(this::projectEvent);
+        commit(claim);
         return claim;
     }
 
@@ -82,6 +80,10 @@ public class ClaimCommandService {
         return ClaimProcess.replayFrom(events);
     }
 
+    private void commit(ClaimProcess claim) {
+        projectionFence.shared(() -> persistEvents(claim).forEach(this::projectEvent));
+    }
+
     private List<ClaimEvent> persistEvents(ClaimProcess claim) {
         var events = List.copyOf(claim.getUncommittedEvents());
         eventStore.appendAll(events, COLLECTION);
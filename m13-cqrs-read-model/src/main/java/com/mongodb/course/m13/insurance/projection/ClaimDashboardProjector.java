@@ -23,6 +23,10 @@ public class ClaimDashboardProjector {
     }
 
     public void project(ClaimEvent event) {
+        project(event, COLLECTION);
+    }
+
+    public void project(ClaimEvent event, String collection) {
         switch (event) {
             case ClaimFiled e -> {
                 var timeline = List.of(new TimelineEntry("ClaimFiled", e.occurredAt(),
@@ -41,7 +45,7 @@ public class ClaimDashboardProjector {
                         1,
                         e.version(),
                         timeline);
-                mongoTemplate.insert(doc, COLLECTION);
+                mongoTemplate.insert(doc, collection);
             }
             case ClaimInvestigated e -> {
                 var query = Query.query(Criteria.where("_id").is(e.aggregateId()));
@@ -54,7 +58,7 @@ public class ClaimDashboardProjector {
                         .set("projectedVersion", e.version())
                         .inc("eventCount", 1)
                         .push("timeline", entry);
-                mongoTemplate.updateFirst(query, update, COLLECTION);
+                mongoTemplate.updateFirst(query, update, collection);
             }
             case ClaimAssessed e -> {
                 var query = Query.query(Criteria.where("_id").is(e.aggregateId()));
@@ -68,7 +72,7 @@ public class ClaimDashboardProjector {
                         .set("projectedVersion", e.version())
                         .inc("eventCount", 1)
                         .push("timeline", entry);
-                mongoTemplate.updateFirst(query, update, COLLECTION);
+                mongoTemplate.updateFirst(query, update, collection);
             }
             case ClaimApproved e -> {
                 var query = Query.query(Criteria.where("_id").is(e.aggregateId()));
@@ -82,7 +86,7 @@ public class ClaimDashboardProjector {
                         .set("projectedVersion", e.version())
                         .inc("eventCount", 1)
                         .push("timeline", entry);
-                mongoTemplate.updateFirst(query, update, COLLECTION);
+                mongoTemplate.updateFirst(query, update, collection);
             }
             case ClaimRejected e -> {
                 var query = Query.query(Criteria.where("_id").is(e.aggregateId()));
@@ -94,7 +98,7 @@ public class ClaimDashboardProjector {
                         .set("projectedVersion", e.version())
                         .inc("eventCount", 1)
                         .push("timeline", entry);
-                mongoTemplate.updateFirst(query, update, COLLECTION);
+                mongoTemplate.updateFirst(query, update, collection);
             }
             case ClaimPaid e -> {
                 var query = Query.query(Criteria.where("_id").is(e.aggregateId()));
@@ -107,7 +111,7 @@ public class ClaimDashboardProjector {
                         .set("projectedVersion", e.version())
                         .inc("eventCount", 1)
                         .push("timeline", entry);
-                mongoTemplate.updateFirst(query, update, COLLECTION);
+                mongoTemplate.updateFirst(query, update, collection);
             }
         }
     }
@@ -25,6 +25,10 @@ public class ClaimStatisticsProjector {
     }
 
     public void project(ClaimEvent event) {
+        project(event, COLLECTION, DASHBOARD_COLLECTION);
+    }
+
+    public void project(ClaimEvent event, String collection, String dashboardCollection) {
         switch (event) {
             case ClaimFiled e -> {
                 var query = Query.query(Criteria.where("_id").is(e.category()));
@@ -38,33 +42,33 @@ public class ClaimStatisticsProjector {
                         .setOnInsert("rejectedCount", 0)
                         .setOnInsert("paidCount", 0)
                         .set("lastUpdatedAt", e.occurredAt());
-                mongoTemplate.upsert(query, update, COLLECTION);
+                mongoTemplate.upsert(query, update, collection);
             }
             case ClaimApproved e -> {
-                var category = lookupCategory(e.aggregateId());
+                var category = lookupCategory(e.aggregateId(), dashboardCollection);
                 var query = Query.query(Criteria.where("_id").is(category));
                 var update = new Update()
                         .inc("approvedCount", 1)
                         .inc("totalApprovedAmount", new Decimal128(e.approvedAmount()))
                         .set("lastUpdatedAt", e.occurredAt());
-                mongoTemplate.updateFirst(query, update, COLLECTION);
+                mongoTemplate.updateFirst(query, update, collection);
             }
             case ClaimRejected e -> {
-                var category = lookupCategory(e.aggregateId());
+                var category = lookupCategory(e.aggregateId(), dashboardCollection);
                 var query = Query.query(Criteria.where("_id").is(category));
                 var update = new Update()
                         .inc("rejectedCount", 1)
                         .set("lastUpdatedAt", e.occurredAt());
-                mongoTemplate.updateFirst(query, update, COLLECTION);
+                mongoTemplate.updateFirst(query, update, collection);
             }
             case ClaimPaid e -> {
-                var category = lookupCategory(e.aggregateId());
+                var category = lookupCategory(e.aggregateId(), dashboardCollection);
                 var query = Query.query(Criteria.where("_id").is(category));
                 var update = new Update()
                         .inc("paidCount", 1)
                         .inc("totalPaidAmount", new Decimal128(e.paidAmount()))
                         .set("lastUpdatedAt", e.occurredAt());
-                mongoTemplate.updateFirst(query, update, COLLECTION);
+                mongoTemplate.updateFirst(query, update, collection);
             }
             case ClaimInvestigated _, ClaimAssessed _ -> {
                 // No statistics impact
@@ -72,14 +76,46 @@ public class ClaimStatisticsProjector {
         }
     }
 
+    public void accumulate(ClaimEvent event, ClaimStatisticsTally tally, String dashboardCollection) {
+        switch (event) {
+            case ClaimFiled e -> tally.filed(e.category(), e.claimedAmount(), e.occurredAt());
+            case ClaimApproved e -> tally.approved(
+                    lookupCategory(e.aggregateId(), dashboardCollection), e.approvedAmount(), e.occurredAt());
+            case ClaimRejected e -> tally.rejected(
+                    lookupCategory(e.aggregateId(), dashboardCollection), e.occurredAt());
+            case ClaimPaid e -> tally.paid(
+                    lookupCategory(e.aggregateId(), dashboardCollection), e.paidAmount(), e.occurredAt());
+            case ClaimInvestigated _, ClaimAssessed _ -> {
+                // No statistics impact
+            }
+        }
+    }
+
+    public void flush(ClaimStatisticsTally tally, String collection) {
+        tally.byCategory().forEach((category, counters) -> {
+            var query = Query.query(Criteria.where("_id").is(category));
+            var update = new Update()
+                    .inc("totalClaims", counters.totalClaims)
+                    .inc("filedCount", counters.filedCount)
+                    .inc("approvedCount", counters.approvedCount)
+                    .inc("rejectedCount", counters.rejectedCount)
+                    .inc("paidCount", counters.paidCount)
+                    .inc("totalClaimedAmount", new Decimal128(counters.totalClaimedAmount))
+                    .inc("totalApprovedAmount", new Decimal128(counters.totalApprovedAmount))
+                    .inc("totalPaidAmount", new Decimal128(counters.totalPaidAmount))
+                    .max("lastUpdatedAt", counters.lastUpdatedAt);
+            mongoTemplate.upsert(query, update, collection);
+        });
+    }
+
     public void rebuildAll(List<ClaimEvent> events) {
         mongoTemplate.remove(new Query(), COLLECTION);
         events.forEach(this::project);
     }
 
-    private String lookupCategory(String claimId) {
+    private String lookupCategory(String claimId, String dashboardCollection) {
         var query = Query.query(Criteria.where("_id").is(claimId));
-        var dashboard = mongoTemplate.findOne(query, ClaimDashboardDocument.class, DASHBOARD_COLLECTION);
+        var dashboard = mongoTemplate.findOne(query, ClaimDashboardDocument.class, dashboardCollection);
         if (dashboard == null) {
             throw new IllegalStateException("Dashboard not found for claim: " + claimId);
         }
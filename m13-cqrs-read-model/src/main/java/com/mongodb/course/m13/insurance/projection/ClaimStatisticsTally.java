@@ -0,0 +1,80 @@
+package com.mongodb.course.m13.insurance.projection;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory per-category statistics deltas. Partitioned rebuilds keep one tally per partition
+ * and merge them before writing, so category documents are not contended by every worker.
+ */
+public final class ClaimStatisticsTally {
+
+    private final Map<String, Counters> byCategory = new LinkedHashMap<>();
+
+    void filed(String category, BigDecimal claimedAmount, Instant at) {
+        var counters = counters(category, at);
+        counters.totalClaims++;
+        counters.filedCount++;
+        counters.totalClaimedAmount = counters.totalClaimedAmount.add(claimedAmount);
+    }
+
+    void approved(String category, BigDecimal approvedAmount, Instant at) {
+        var counters = counters(category, at);
+        counters.approvedCount++;
+        counters.totalApprovedAmount = counters.totalApprovedAmount.add(approvedAmount);
+    }
+
+    void rejected(String category, Instant at) {
+        counters(category, at).rejectedCount++;
+    }
+
+    void paid(String category, BigDecimal paidAmount, Instant at) {
+        var counters = counters(category, at);
+        counters.paidCount++;
+        counters.totalPaidAmount = counters.totalPaidAmount.add(paidAmount);
+    }
+
+    public void merge(ClaimStatisticsTally other) {
+        other.byCategory.forEach((category, theirs) -> {
+            var ours = counters(category, theirs.lastUpdatedAt);
+            ours.totalClaims += theirs.totalClaims;
+            ours.filedCount += theirs.filedCount;
+            ours.approvedCount += theirs.approvedCount;
+            ours.rejectedCount += theirs.rejectedCount;
+            ours.paidCount += theirs.paidCount;
+            ours.totalClaimedAmount = ours.totalClaimedAmount.add(theirs.totalClaimedAmount);
+            ours.totalApprovedAmount = ours.totalApprovedAmount.add(theirs.totalApprovedAmount);
+            ours.totalPaidAmount = ours.totalPaidAmount.add(theirs.totalPaidAmount);
+        });
+    }
+
+    public boolean isEmpty() {
+        return byCategory.isEmpty();
+    }
+
+    Map<String, Counters> byCategory() {
+        return byCategory;
+    }
+
+    private Counters counters(String category, Instant at) {
+        var counters = byCategory.computeIfAbsent(category, c -> new Counters());
+        if (counters.lastUpdatedAt == null || at.isAfter(counters.lastUpdatedAt)) {
+            counters.lastUpdatedAt = at;
+        }
+        return counters;
+    }
+
+    static final class Counters {
+        int totalClaims;
+        int filedCount;
+        int approvedCount;
+        int rejectedCount;
+        int paidCount;
+        BigDecimal totalClaimedAmount = BigDecimal.ZERO;
+        BigDecimal totalApprovedAmount = BigDecimal.ZERO;
+        BigDecimal totalPaidAmount = BigDecimal.ZERO;
+        Instant lastUpdatedAt;
+    }
+}
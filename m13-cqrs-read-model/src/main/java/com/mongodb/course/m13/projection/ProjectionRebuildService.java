@@ -1,67 +1,349 @@
 package com.mongodb.course.m13.projection;
 
+import com.mongodb.MongoNamespace;
+import com.mongodb.client.model.RenameCollectionOptions;
 import com.mongodb.course.m13.banking.event.AccountEvent;
 import com.mongodb.course.m13.banking.projection.AccountSummaryProjector;
 import com.mongodb.course.m13.banking.projection.TransactionHistoryProjector;
 import com.mongodb.course.m13.infrastructure.EventStore;
+import com.mongodb.course.m13.infrastructure.ProjectionFence;
 import com.mongodb.course.m13.insurance.event.ClaimEvent;
 import com.mongodb.course.m13.insurance.projection.ClaimDashboardProjector;
 import com.mongodb.course.m13.insurance.projection.ClaimStatisticsProjector;
+import com.mongodb.course.m13.insurance.projection.ClaimStatisticsTally;
+import com.mongodb.course.m13.shared.DomainEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Service;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
 @Service
 public class ProjectionRebuildService {
 
+    private static final Logger log = LoggerFactory.getLogger(ProjectionRebuildService.class);
+
     private static final String ACCOUNT_EVENTS = "m13_account_events";
     private static final String CLAIM_EVENTS = "m13_claim_events";
+    private static final String ACCOUNT_SUMMARIES = "m13_account_summaries";
+    private static final String TRANSACTION_HISTORY = "m13_transaction_history";
+    private static final String CLAIM_DASHBOARDS = "m13_claim_dashboards";
+    private static final String CLAIM_STATISTICS = "m13_claim_statistics";
+    private static final String SHADOW_SUFFIX = "_next";
+    private static final int MAX_CATCH_UP_ROUNDS = 5;
+    private static final Object END_OF_STREAM = new Object();
 
     private final EventStore eventStore;
+    private final ProjectionFence projectionFence;
     private final MongoTemplate mongoTemplate;
     private final AccountSummaryProjector accountSummaryProjector;
     private final TransactionHistoryProjector transactionHistoryProjector;
     private final ClaimDashboardProjector claimDashboardProjector;
     private final ClaimStatisticsProjector claimStatisticsProjector;
+    private final int batchSize;
+    private final int parallelism;
 
     public ProjectionRebuildService(EventStore eventStore,
+                                    ProjectionFence projectionFence,
                                     MongoTemplate mongoTemplate,
                                     AccountSummaryProjector accountSummaryProjector,
                                     TransactionHistoryProjector transactionHistoryProjector,
                                     ClaimDashboardProjector claimDashboardProjector,
-                                    ClaimStatisticsProjector claimStatisticsProjector) {
+                                    ClaimStatisticsProjector claimStatisticsProjector,
+                                    @Value("${projection.rebuild.batch-size:1000}") int batchSize,
+                                    @Value("${projection.rebuild.parallelism:0}") int parallelism) {
         this.eventStore = eventStore;
+        this.projectionFence = projectionFence;
         this.mongoTemplate = mongoTemplate;
         this.accountSummaryProjector = accountSummaryProjector;
         this.transactionHistoryProjector = transactionHistoryProjector;
         this.claimDashboardProjector = claimDashboardProjector;
         this.claimStatisticsProjector = claimStatisticsProjector;
+        this.batchSize = batchSize;
+        this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+    }
+
+    public RebuildStats rebuildBankingProjections() {
+        return rebuildBanking(false);
+    }
+
+    public RebuildStats rebuildInsuranceProjections() {
+        return rebuildInsurance(false);
     }
 
-    public void rebuildBankingProjections() {
-        var events = eventStore.loadAllEvents(AccountEvent.class, ACCOUNT_EVENTS);
-        accountSummaryProjector.rebuildAll(events);
-        transactionHistoryProjector.rebuildAll(events);
+    public List<RebuildStats> rebuildAll() {
+        return List.of(rebuildBankingProjections(), rebuildInsuranceProjections());
     }
 
-    public void rebuildInsuranceProjections() {
-        var events = eventStore.loadAllEvents(ClaimEvent.class, CLAIM_EVENTS);
-        claimDashboardProjector.rebuildAll(events);
-        claimStatisticsProjector.rebuildAll(events);
+    public RebuildStats rebuildBankingProjectionsParallel() {
+        return rebuildBanking(true);
     }
 
-    public void rebuildAll() {
-        rebuildBankingProjections();
-        rebuildInsuranceProjections();
+    public RebuildStats rebuildInsuranceProjectionsParallel() {
+        return rebuildInsurance(true);
+    }
+
+    public List<RebuildStats> rebuildAllParallel() {
+        try (var executor = Executors.newFixedThreadPool(2)) {
+            var banking = executor.submit(this::rebuildBankingProjectionsParallel);
+            var insurance = executor.submit(this::rebuildInsuranceProjectionsParallel);
+            return List.of(await(banking), await(insurance));
+        }
     }
 
     public void clearBankingReadModels() {
-        mongoTemplate.remove(new Query(), "m13_account_summaries");
-        mongoTemplate.remove(new Query(), "m13_transaction_history");
+        mongoTemplate.remove(new Query(), ACCOUNT_SUMMARIES);
+        mongoTemplate.remove(new Query(), TRANSACTION_HISTORY);
+        transactionHistoryProjector.forget(TRANSACTION_HISTORY);
     }
 
     public void clearInsuranceReadModels() {
-        mongoTemplate.remove(new Query(), "m13_claim_dashboards");
-        mongoTemplate.remove(new Query(), "m13_claim_statistics");
+        mongoTemplate.remove(new Query(), CLAIM_DASHBOARDS);
+        mongoTemplate.remove(new Query(), CLAIM_STATISTICS);
+    }
+
+    // Blue/green: replay into *_next shadows while the live read models keep serving, catch up
+    // on events appended meanwhile, then fence live projection for a final catch-up and the swap
+    private RebuildStats rebuildBanking(boolean parallel) {
+        var summaries = prepareShadow(ACCOUNT_SUMMARIES);
+        var history = prepareShadow(TRANSACTION_HISTORY);
+        transactionHistoryProjector.forget(history);
+        var projected = new ConcurrentHashMap<String, Long>();
+        Consumer<AccountEvent> projector = inVersionOrder(projected, event -> {
+            accountSummaryProjector.project(event, summaries);
+            transactionHistoryProjector.project(event, history);
+        });
+
+        var stats = parallel
+                ? replayPartitioned(AccountEvent.class, ACCOUNT_EVENTS, Collections.nCopies(parallelism, projector))
+                : replay(AccountEvent.class, ACCOUNT_EVENTS, projector);
+        converge(AccountEvent.class, ACCOUNT_EVENTS, projected, projector, summaries, history);
+
+        projectionFence.exclusive(() -> {
+            catchUp(AccountEvent.class, ACCOUNT_EVENTS, projected, projector);
+            swap(summaries, ACCOUNT_SUMMARIES);
+            swap(history, TRANSACTION_HISTORY);
+            // Running balances were cached against the shadow name; live projection reseeds from the swapped-in entries
+            transactionHistoryProjector.forget(history);
+            transactionHistoryProjector.forget(TRANSACTION_HISTORY);
+        });
+        return stats;
+    }
+
+    private RebuildStats rebuildInsurance(boolean parallel) {
+        var dashboards = prepareShadow(CLAIM_DASHBOARDS);
+        var statistics = prepareShadow(CLAIM_STATISTICS);
+        var projected = new ConcurrentHashMap<String, Long>();
+
+        RebuildStats stats;
+        if (parallel) {
+            var tallies = new ArrayList<ClaimStatisticsTally>();
+            var partitions = new ArrayList<Consumer<ClaimEvent>>();
+            for (int i = 0; i < parallelism; i++) {
+                var tally = new ClaimStatisticsTally();
+                tallies.add(tally);
+                partitions.add(inVersionOrder(projected, event -> {
+                    claimDashboardProjector.project(event, dashboards);
+                    claimStatisticsProjector.accumulate(event, tally, dashboards);
+                }));
+            }
+            stats = replayPartitioned(ClaimEvent.class, CLAIM_EVENTS, partitions);
+
+            // Statistics span aggregates, so partitions only tally them and the merge is written once
+            var merged = new ClaimStatisticsTally();
+            tallies.forEach(merged::merge);
+            claimStatisticsProjector.flush(merged, statistics);
+        } else {
+            stats = replay(ClaimEvent.class, CLAIM_EVENTS, inVersionOrder(projected, event -> {
+                claimDashboardProjector.project(event, dashboards);
+                claimStatisticsProjector.project(event, statistics, dashboards);
+            }));
+        }
+        Consumer<ClaimEvent> projector = inVersionOrder(projected, event -> {
+            claimDashboardProjector.project(event, dashboards);
+            claimStatisticsProjector.project(event, statistics, dashboards);
+        });
+        converge(ClaimEvent.class, CLAIM_EVENTS, projected, projector, dashboards, statistics);
+
+        projectionFence.exclusive(() -> {
+            catchUp(ClaimEvent.class, CLAIM_EVENTS, projected, projector);
+            swap(dashboards, CLAIM_DASHBOARDS);
+            swap(statistics, CLAIM_STATISTICS);
+        });
+        return stats;
+    }
+
+    private String prepareShadow(String collection) {
+        var shadow = collection + SHADOW_SUFFIX;
+        mongoTemplate.dropCollection(shadow);
+        mongoTemplate.createCollection(shadow);
+        return shadow;
+    }
+
+    private void swap(String shadow, String collection) {
+        var target = new MongoNamespace(mongoTemplate.getDb().getName(), collection);
+        mongoTemplate.getCollection(shadow).renameCollection(target, new RenameCollectionOptions().dropTarget(true));
+    }
+
+    // Each aggregate's shadow state stays a gap-free prefix of its stream: an event the replay
+    // cursor reaches before a predecessor it missed is dropped here and read back by catch-up
+    private static <T extends DomainEvent> Consumer<T> inVersionOrder(Map<String, Long> projected,
+                                                                      Consumer<T> projector) {
+        return event -> {
+            if (event.version() == projected.getOrDefault(event.aggregateId(), 0L) + 1) {
+                projector.accept(event);
+                projected.put(event.aggregateId(), event.version());
+            }
+        };
+    }
+
+    // Catch-up rounds run while commands continue, shrinking what the fenced round has to apply.
+    // If writes keep outpacing them the shadows are dropped rather than swapped in behind.
+    private <T extends DomainEvent> void converge(Class<T> type, String collection, Map<String, Long> projected,
+                                                  Consumer<T> projector, String... shadows) {
+        for (int round = 1; round <= MAX_CATCH_UP_ROUNDS; round++) {
+            long applied = catchUp(type, collection, projected, projector);
+            log.info("Catch-up round {} applied {} events from {}", round, applied, collection);
+            if (applied == 0) {
+                return;
+            }
+        }
+        for (var shadow : shadows) {
+            mongoTemplate.dropCollection(shadow);
+        }
+        throw new IllegalStateException("Rebuild from " + collection + " did not catch up after "
+                + MAX_CATCH_UP_ROUNDS + " rounds; live read models left in place");
+    }
+
+    // Compares each aggregate's latest stored version with what the shadow holds and applies the
+    // difference by version, so it is immune to clock skew and to inserts that land late
+    private <T extends DomainEvent> long catchUp(Class<T> type, String collection, Map<String, Long> projected,
+                                                 Consumer<T> projector) {
+        long applied = 0;
+        for (var latest : eventStore.latestVersions(collection).entrySet()) {
+            long version = projected.getOrDefault(latest.getKey(), 0L);
+            if (latest.getValue() > version) {
+                for (T event : eventStore.loadEventsAfterVersion(latest.getKey(), version, type, collection)) {
+                    projector.accept(event);
+                    applied++;
+                }
+            }
+        }
+        return applied;
+    }
+
+    private <T extends DomainEvent> RebuildStats replay(Class<T> type, String collection, Consumer<T> projector) {
+        long start = System.nanoTime();
+        long count = 0;
+        try (var events = eventStore.streamAllEvents(type, collection, batchSize)) {
+            var iterator = events.iterator();
+            while (iterator.hasNext()) {
+                projector.accept(iterator.next());
+                count++;
+            }
+        }
+        var stats = new RebuildStats(collection, count, Duration.ofNanos(System.nanoTime() - start));
+        log.info("Replayed {} events from {} in {} ms ({} events/sec)", stats.eventCount(), collection,
+                stats.elapsed().toMillis(), String.format("%.1f", stats.eventsPerSecond()));
+        return stats;
+    }
+
+    private <T extends DomainEvent> RebuildStats replayPartitioned(Class<T> type, String collection,
+                                                                   List<Consumer<T>> partitions) {
+        long start = System.nanoTime();
+        long count = 0;
+        var queues = new ArrayList<BlockingQueue<Object>>();
+        for (int i = 0; i < partitions.size(); i++) {
+            queues.add(new ArrayBlockingQueue<>(batchSize));
+        }
+
+        try (var workers = Executors.newFixedThreadPool(partitions.size())) {
+            var results = new ArrayList<Future<?>>();
+            for (int i = 0; i < partitions.size(); i++) {
+                var queue = queues.get(i);
+                var projector = partitions.get(i);
+                results.add(workers.submit(() -> drain(queue, projector)));
+            }
+
+            // Every event of an aggregate lands on the same partition, preserving its order
+            try (var events = eventStore.streamAllEvents(type, collection, batchSize)) {
+                var iterator = events.iterator();
+                while (iterator.hasNext()) {
+                    var event = iterator.next();
+                    put(queues.get(partitionOf(event.aggregateId(), partitions.size())), event);
+                    count++;
+                }
+            } finally {
+                queues.forEach(queue -> put(queue, END_OF_STREAM));
+            }
+            results.forEach(this::await);
+        }
+
+        var stats = new RebuildStats(collection, count, Duration.ofNanos(System.nanoTime() - start));
+        log.info("Replayed {} events from {} across {} partitions in {} ms ({} events/sec)", stats.eventCount(),
+                collection, partitions.size(), stats.elapsed().toMillis(),
+                String.format("%.1f", stats.eventsPerSecond()));
+        return stats;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> Void drain(BlockingQueue<Object> queue, Consumer<T> projector) throws InterruptedException {
+        RuntimeException failure = null;
+        Object item;
+        while ((item = queue.take()) != END_OF_STREAM) {
+            // Keep draining after a failure so the reader never blocks on a full queue
+            if (failure == null) {
+                try {
+                    projector.accept((T) item);
+                } catch (RuntimeException e) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return null;
+    }
+
+    static int partitionOf(String aggregateId, int partitions) {
+        return Math.floorMod(aggregateId.hashCode(), partitions);
+    }
+
+    private void put(BlockingQueue<Object> queue, Object item) {
+        try {
+            queue.put(item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while dispatching replay events", e);
+        }
+    }
+
+    private <R> R await(Future<R> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for projection rebuild", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new IllegalStateException("Projection rebuild failed", e.getCause());
+        }
     }
 }
@@ -0,0 +1,14 @@
+package com.mongodb.course.m13.projection;
+
+import java.time.Duration;
+
+public record RebuildStats(
+        String source,
+        long eventCount,
+        Duration elapsed
+) {
+    public double eventsPerSecond() {
+        long millis = Math.max(1, elapsed.toMillis());
+        return eventCount * 1000.0 / millis;
+    }
+}
@@ -34,6 +34,7 @@ class TransactionHistoryProjectorTest {
     @BeforeEach
     void cleanup() {
         mongoTemplate.remove(new Query(), "m13_transaction_history");
+        projector.forget("m13_transaction_history");
     }
 
     @Test
@@ -90,4 +91,27 @@ class TransactionHistoryProjectorTest {
         assertThat(docs.get(2).transactionType()).isEqualTo("WITHDRAWAL");
         assertThat(docs.get(2).balanceAfter()).isEqualByComparingTo(new BigDecimal("13000"));
     }
+
+    @Test
+    void projectDuplicateAndOutOfOrderEvents_appliesEachVersionOnce() {
+        var now = Instant.now();
+        var opened = new AccountOpened(UUID.randomUUID().toString(), "ACC-004", 1,
+                now, "Dave", new BigDecimal("1000"), "TWD");
+        var deposited = new FundsDeposited(UUID.randomUUID().toString(), "ACC-004", 2,
+                now.plusMillis(100), new BigDecimal("500"), "Bonus");
+        var withdrawn = new FundsWithdrawn(UUID.randomUUID().toString(), "ACC-004", 3,
+                now.plusMillis(200), new BigDecimal("300"), "Rent");
+
+        projector.project(opened);
+        projector.project(withdrawn);
+        projector.project(deposited);
+        projector.project(deposited);
+
+        var query = Query.query(Criteria.where("accountId").is("ACC-004"))
+                .with(Sort.by(Sort.Direction.ASC, "version"));
+        var docs = mongoTemplate.find(query, TransactionHistoryDocument.class, "m13_transaction_history");
+        assertThat(docs).hasSize(3);
+        assertThat(docs.get(1).balanceAfter()).isEqualByComparingTo(new BigDecimal("1500"));
+        assertThat(docs.get(2).balanceAfter()).isEqualByComparingTo(new BigDecimal("1200"));
+    }
 }
@@ -2,6 +2,7 @@ package com.mongodb.course.m13.banking.query;
 
 import com.mongodb.course.m13.SharedContainersConfig;
 import com.mongodb.course.m13.banking.command.BankAccountCommandService;
+import com.mongodb.course.m13.banking.projection.TransactionHistoryProjector;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -28,11 +29,15 @@ class BankAccountQueryServiceTest {
     @Autowired
     private MongoTemplate mongoTemplate;
 
+    @Autowired
+    private TransactionHistoryProjector transactionHistoryProjector;
+
     @BeforeEach
     void cleanup() {
         mongoTemplate.remove(new Query(), "m13_account_events");
         mongoTemplate.remove(new Query(), "m13_account_summaries");
         mongoTemplate.remove(new Query(), "m13_transaction_history");
+        transactionHistoryProjector.forget("m13_transaction_history");
     }
 
     @Test
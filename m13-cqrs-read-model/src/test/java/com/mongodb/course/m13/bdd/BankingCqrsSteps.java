@@ -1,6 +1,7 @@
 package com.mongodb.course.m13.bdd;
 
 import com.mongodb.course.m13.banking.command.BankAccountCommandService;
+import com.mongodb.course.m13.banking.projection.TransactionHistoryProjector;
 import com.mongodb.course.m13.banking.query.BankAccountQueryService;
 import com.mongodb.course.m13.banking.readmodel.AccountSummaryDocument;
 import com.mongodb.course.m13.banking.readmodel.TransactionHistoryDocument;
@@ -32,6 +33,9 @@ public class BankingCqrsSteps {
     @Autowired
     private MongoTemplate mongoTemplate;
 
+    @Autowired
+    private TransactionHistoryProjector transactionHistoryProjector;
+
     private List<TransactionHistoryDocument> transactionHistory;
     private List<AccountSummaryDocument> topAccounts;
 
@@ -40,6 +44,7 @@ public class BankingCqrsSteps {
         mongoTemplate.remove(new Query(), "m13_account_events");
         mongoTemplate.remove(new Query(), "m13_account_summaries");
         mongoTemplate.remove(new Query(), "m13_transaction_history");
+        transactionHistoryProjector.forget("m13_transaction_history");
     }
 
     @When("開立帳戶 {string} 持有人 {string} 初始餘額 {int} 元")
@@ -0,0 +1,139 @@
+package com.mongodb.course.m13.projection;
+
+import com.mongodb.course.m13.SharedContainersConfig;
+import com.mongodb.course.m13.banking.command.BankAccountCommandService;
+import com.mongodb.course.m13.banking.projection.TransactionHistoryProjector;
+import com.mongodb.course.m13.banking.query.BankAccountQueryService;
+import com.mongodb.course.m13.insurance.command.ClaimCommandService;
+import com.mongodb.course.m13.insurance.query.ClaimQueryService;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.math.BigDecimal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest(properties = {"projection.rebuild.batch-size=2", "projection.rebuild.parallelism=3"})
+@Import(SharedContainersConfig.class)
+class ProjectionRebuildServiceTest {
+
+    @Autowired
+    private ProjectionRebuildService rebuildService;
+
+    @Autowired
+    private BankAccountCommandService commandService;
+
+    @Autowired
+    private BankAccountQueryService queryService;
+
+    @Autowired
+    private ClaimCommandService claimCommandService;
+
+    @Autowired
+    private ClaimQueryService claimQueryService;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private TransactionHistoryProjector transactionHistoryProjector;
+
+    @BeforeEach
+    void cleanup() {
+        mongoTemplate.remove(new Query(), "m13_account_events");
+        mongoTemplate.remove(new Query(), "m13_account_summaries");
+        mongoTemplate.remove(new Query(), "m13_transaction_history");
+        transactionHistoryProjector.forget("m13_transaction_history");
+        mongoTemplate.remove(new Query(), "m13_claim_events");
+        mongoTemplate.remove(new Query(), "m13_claim_dashboards");
+        mongoTemplate.remove(new Query(), "m13_claim_statistics");
+    }
+
+    @Test
+    void rebuildBankingProjections_streamsAcrossCursorBatches() {
+        commandService.openAccount("ACC-RS1", "Alice", new BigDecimal("1000"), "TWD");
+        commandService.deposit("ACC-RS1", new BigDecimal("500"), "Salary");
+        commandService.withdraw("ACC-RS1", new BigDecimal("200"), "Rent");
+        commandService.openAccount("ACC-RS2", "Bob", new BigDecimal("3000"), "TWD");
+        commandService.deposit("ACC-RS2", new BigDecimal("100"), "Bonus");
+
+        var stats = rebuildService.rebuildBankingProjections();
+
+        assertThat(stats.eventCount()).isEqualTo(5);
+        assertThat(stats.eventsPerSecond()).isPositive();
+        assertThat(queryService.getAccountSummary("ACC-RS1").orElseThrow().currentBalance())
+                .isEqualByComparingTo(new BigDecimal("1300"));
+        assertThat(queryService.getAccountSummary("ACC-RS2").orElseThrow().currentBalance())
+                .isEqualByComparingTo(new BigDecimal("3100"));
+        assertThat(queryService.getTransactionHistory("ACC-RS1", 0, 10)).hasSize(3);
+    }
+
+    @Test
+    void rebuildBankingProjectionsParallel_preservesPerAccountOrder() {
+        for (int i = 1; i <= 6; i++) {
+            String accountId = "ACC-RP" + i;
+            commandService.openAccount(accountId, "Holder" + i, new BigDecimal("1000"), "TWD");
+            commandService.deposit(accountId, new BigDecimal("100"), "Deposit");
+            commandService.withdraw(accountId, new BigDecimal("50"), "Withdraw");
+        }
+
+        var stats = rebuildService.rebuildBankingProjectionsParallel();
+
+        assertThat(stats.eventCount()).isEqualTo(18);
+        for (int i = 1; i <= 6; i++) {
+            String accountId = "ACC-RP" + i;
+            assertThat(queryService.getAccountSummary(accountId).orElseThrow().currentBalance())
+                    .isEqualByComparingTo(new BigDecimal("1050"));
+            assertThat(queryService.getTransactionHistory(accountId, 0, 10)).hasSize(3);
+        }
+    }
+
+    @Test
+    void rebuildInsuranceProjectionsParallel_mergesCategoryStatistics() {
+        for (int i = 1; i <= 4; i++) {
+            String claimId = "CLM-RP" + i;
+            claimCommandService.fileClaim(claimId, "POL-" + i, "Claimant" + i, new BigDecimal("10000"), "Medical");
+            claimCommandService.investigate(claimId, "Inspector", "OK");
+            claimCommandService.assess(claimId, "Assessor", new BigDecimal("8000"), "Reasonable");
+            claimCommandService.approve(claimId, new BigDecimal("8000"), "Manager");
+        }
+        claimCommandService.fileClaim("CLM-RP5", "POL-5", "Claimant5", new BigDecimal("5000"), "Accident");
+        claimCommandService.reject("CLM-RP5", "Not covered", "Manager");
+        var expected = claimQueryService.getStatisticsByCategory("Medical").orElseThrow();
+
+        rebuildService.rebuildInsuranceProjectionsParallel();
+
+        var medical = claimQueryService.getStatisticsByCategory("Medical").orElseThrow();
+        assertThat(medical.totalClaims()).isEqualTo(4);
+        assertThat(medical.approvedCount()).isEqualTo(4);
+        assertThat(medical.totalClaimedAmount()).isEqualByComparingTo(new BigDecimal("40000"));
+        assertThat(medical.totalApprovedAmount()).isEqualByComparingTo(new BigDecimal("32000"));
+        assertThat(medical.lastUpdatedAt()).isEqualTo(expected.lastUpdatedAt());
+        var accident = claimQueryService.getStatisticsByCategory("Accident").orElseThrow();
+        assertThat(accident.totalClaims()).isEqualTo(1);
+        assertThat(accident.rejectedCount()).isEqualTo(1);
+        assertThat(claimQueryService.getClaimsByCategory("Medical")).hasSize(4);
+    }
+
+    @Test
+    void rebuildBankingProjections_swapsShadowCollectionsIn() {
+        commandService.openAccount("ACC-RB1", "Alice", new BigDecimal("1000"), "TWD");
+        commandService.deposit("ACC-RB1", new BigDecimal("250"), "Salary");
+        mongoTemplate.insert(new Document("_id", "ACC-STALE").append("projectedVersion", 1), "m13_account_summaries");
+
+        rebuildService.rebuildBankingProjections();
+
+        assertThat(mongoTemplate.collectionExists("m13_account_summaries_next")).isFalse();
+        assertThat(mongoTemplate.collectionExists("m13_transaction_history_next")).isFalse();
+        assertThat(queryService.getAccountSummary("ACC-STALE")).isEmpty();
+        assertThat(queryService.getAccountSummary("ACC-RB1").orElseThrow().currentBalance())
+                .isEqualByComparingTo(new BigDecimal("1250"));
+        assertThat(queryService.getTransactionHistory("ACC-RB1", 0, 10)).hasSize(2);
+    }
+}
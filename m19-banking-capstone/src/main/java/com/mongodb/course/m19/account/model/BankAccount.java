@@ -35,6 +35,14 @@ public class BankAccount {
     }
 
     public AccountEvent deposit(BigDecimal amount, String description) {
+        return deposit(amount, description, UUID.randomUUID().toString());
+    }
+
+    /**
+     * Takes the id of the event to record from the caller, so that a repeated command can be
+     * recognised in the account's stream.
+     */
+    public AccountEvent deposit(BigDecimal amount, String description, String eventId) {
         if (amount.compareTo(BigDecimal.ZERO) <= 0) {
             throw new IllegalArgumentException("Deposit amount must be positive");
         }
@@ -42,7 +50,7 @@ public class BankAccount {
             throw new IllegalStateException("Account is closed");
         }
         var event = new FundsDeposited(
-                UUID.randomUUID().toString(), accountId, version + 1, Instant.now(),
+                eventId, accountId, version + 1, Instant.now(),
                 amount, description);
         apply(event);
         uncommittedEvents.add(event);
@@ -50,6 +58,10 @@ public class BankAccount {
     }
 
     public AccountEvent withdraw(BigDecimal amount, String description) {
+        return withdraw(amount, description, UUID.randomUUID().toString());
+    }
+
+    public AccountEvent withdraw(BigDecimal amount, String description, String eventId) {
         if (amount.compareTo(BigDecimal.ZERO) <= 0) {
             throw new IllegalArgumentException("Withdrawal amount must be positive");
         }
@@ -60,7 +72,7 @@ public class BankAccount {
             throw new IllegalStateException("Insufficient funds: balance=" + balance + ", requested=" + amount);
         }
         var event = new FundsWithdrawn(
-                UUID.randomUUID().toString(), accountId, version + 1, Instant.now(),
+                eventId, accountId, version + 1, Instant.now(),
                 amount, description);
         apply(event);
         uncommittedEvents.add(event);
@@ -68,6 +80,10 @@ public class BankAccount {
     }
 
     public AccountEvent transferOut(BigDecimal amount, String targetAccountId, String description) {
+        return transferOut(amount, targetAccountId, description, UUID.randomUUID().toString());
+    }
+
+    public AccountEvent transferOut(BigDecimal amount, String targetAccountId, String description, String eventId) {
         if (amount.compareTo(BigDecimal.ZERO) <= 0) {
             throw new IllegalArgumentException("Transfer amount must be positive");
         }
@@ -78,7 +94,7 @@ public class BankAccount {
             throw new IllegalStateException("Insufficient funds: balance=" + balance + ", requested=" + amount);
         }
         var event = new FundsTransferredOut(
-                UUID.randomUUID().toString(), accountId, version + 1, Instant.now(),
+                eventId, accountId, version + 1, Instant.now(),
                 amount, targetAccountId, description);
         apply(event);
         uncommittedEvents.add(event);
@@ -132,25 +148,18 @@ public class BankAccount {
         events.forEach(this::apply);
     }
 
-    public Map<String, Object> toSnapshot() {
-        var state = new LinkedHashMap<String, Object>();
-        state.put("accountId", accountId);
-        state.put("accountHolder", accountHolder);
-        state.put("balance", balance.toPlainString());
-        state.put("currency", currency);
-        state.put("version", version);
-        state.put("closed", closed);
-        return state;
+    public BankAccountSnapshot toSnapshot() {
+        return new BankAccountSnapshot(accountId, accountHolder, balance, currency, version, closed);
     }
 
-    public static BankAccount fromSnapshot(Map<String, Object> state) {
+    public static BankAccount fromSnapshot(BankAccountSnapshot snapshot) {
         var account = new BankAccount();
-        account.accountId = (String) state.get("accountId");
-        account.accountHolder = (String) state.get("accountHolder");
-        account.balance = new BigDecimal((String) state.get("balance"));
-        account.currency = (String) state.get("currency");
-        account.version = ((Number) state.get("version")).longValue();
-        account.closed = Boolean.TRUE.equals(state.get("closed"));
+        account.accountId = snapshot.accountId();
+        account.accountHolder = snapshot.accountHolder();
+        account.balance = snapshot.balance();
+        account.currency = snapshot.currency();
+        account.version = snapshot.version();
+        account.closed = snapshot.closed();
         return account;
     }
 
@@ -0,0 +1,17 @@
+package com.mongodb.course.m19.account.model;
+
+import com.mongodb.course.m19.shared.AggregateSnapshot;
+import org.springframework.data.mongodb.core.mapping.Field;
+import org.springframework.data.mongodb.core.mapping.FieldType;
+
+import java.math.BigDecimal;
+
+public record BankAccountSnapshot(
+        String accountId,
+        String accountHolder,
+        @Field(targetType = FieldType.DECIMAL128) BigDecimal balance,
+        String currency,
+        long version,
+        boolean closed
+) implements AggregateSnapshot {
+}
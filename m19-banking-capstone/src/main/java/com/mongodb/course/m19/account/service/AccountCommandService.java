@@ -1,106 +1,189 @@
 package com.mongodb.course.m19.account.service;
 
 import com.mongodb.course.m19.account.event.AccountEvent;
+import com.mongodb.course.m19.account.event.FundsTransferredIn;
 import com.mongodb.course.m19.account.model.BankAccount;
+import com.mongodb.course.m19.account.model.BankAccountSnapshot;
+import com.mongodb.course.m19.infrastructure.AggregateCache;
+import com.mongodb.course.m19.infrastructure.AppendResult;
 import com.mongodb.course.m19.infrastructure.EventStore;
 import com.mongodb.course.m19.infrastructure.SnapshotDocument;
-import com.mongodb.course.m19.projection.AccountSummaryProjector;
-import com.mongodb.course.m19.projection.TransactionLedgerProjector;
+import com.mongodb.course.m19.infrastructure.Snapshotter;
+import com.mongodb.course.m19.projection.ProjectionPipeline;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.stereotype.Service;
 
 import java.math.BigDecimal;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.List;
-import java.util.UUID;
+import java.util.function.Consumer;
 
 @Service
 public class AccountCommandService {
 
+    private static final Logger log = LoggerFactory.getLogger(AccountCommandService.class);
+
     private static final String ACCOUNT_EVENTS = "m19_account_events";
     private static final String AGGREGATE_TYPE = "BankAccount";
-    private static final int SNAPSHOT_INTERVAL = 10;
+    private static final int MAX_ATTEMPTS = 5;
 
     private final EventStore eventStore;
-    private final AccountSummaryProjector summaryProjector;
-    private final TransactionLedgerProjector ledgerProjector;
+    private final ProjectionPipeline projectionPipeline;
+    private final Snapshotter snapshotter;
+    private final AggregateCache<BankAccountSnapshot> aggregateCache;
+    private final boolean soleWriter;
 
     public AccountCommandService(EventStore eventStore,
-                                 AccountSummaryProjector summaryProjector,
-                                 TransactionLedgerProjector ledgerProjector) {
+                                 ProjectionPipeline projectionPipeline,
+                                 Snapshotter snapshotter,
+                                 @Value("${aggregate-cache.max-entries:10000}") int cacheMaxEntries,
+                                 @Value("${aggregate-cache.sole-writer:false}") boolean soleWriter) {
         this.eventStore = eventStore;
-        this.summaryProjector = summaryProjector;
-        this.ledgerProjector = ledgerProjector;
+        this.projectionPipeline = projectionPipeline;
+        this.snapshotter = snapshotter;
+        this.aggregateCache = new AggregateCache<>(cacheMaxEntries);
+        this.soleWriter = soleWriter;
+        snapshotter.register(AGGREGATE_TYPE, ACCOUNT_EVENTS, id -> loadAccount(id).toSnapshot());
     }
 
     public BankAccount openAccount(String accountId, String accountHolder,
                                    BigDecimal initialBalance, String currency) {
         var account = BankAccount.open(accountId, accountHolder, initialBalance, currency);
-        saveAndProject(account);
+        var events = List.copyOf(account.getUncommittedEvents());
+        account.clearUncommittedEvents();
+        if (eventStore.append(accountId, 0, events, ACCOUNT_EVENTS) instanceof AppendResult.Conflict) {
+            throw new IllegalStateException("Account already exists: " + accountId);
+        }
+        aggregateCache.put(accountId, account.toSnapshot());
+        project(account, events);
         return account;
     }
 
     public BankAccount deposit(String accountId, BigDecimal amount, String description) {
-        var account = loadAccount(accountId);
-        account.deposit(amount, description);
-        saveAndProject(account);
-        return account;
+        return execute(accountId, account -> account.deposit(amount, description));
     }
 
     public BankAccount withdraw(String accountId, BigDecimal amount, String description) {
-        var account = loadAccount(accountId);
-        account.withdraw(amount, description);
-        saveAndProject(account);
-        return account;
+        return execute(accountId, account -> account.withdraw(amount, description));
     }
 
     public BankAccount accrueInterest(String accountId, BigDecimal amount) {
-        var account = loadAccount(accountId);
-        account.accrueInterest(amount);
-        saveAndProject(account);
-        return account;
+        return execute(accountId, account -> account.accrueInterest(amount));
     }
 
     public BankAccount closeAccount(String accountId) {
-        var account = loadAccount(accountId);
-        account.close();
-        saveAndProject(account);
-        return account;
+        return execute(accountId, BankAccount::close);
+    }
+
+    /**
+     * Applies the command to an account the caller already hydrated, as saga steps do; the store is
+     * only read again if the append conflicts. The event is recorded with {@code eventId}, and a
+     * command whose event is already in the account's stream is not applied again.
+     */
+    public BankAccount deposit(BankAccount account, BigDecimal amount, String description, String eventId) {
+        return execute(account, eventId, current -> current.deposit(amount, description, eventId));
+    }
+
+    public BankAccount withdraw(BankAccount account, BigDecimal amount, String description, String eventId) {
+        return execute(account, eventId, current -> current.withdraw(amount, description, eventId));
+    }
+
+    public BankAccount transferOut(BankAccount account, BigDecimal amount, String targetAccountId,
+                                   String description, String eventId) {
+        return execute(account, eventId, current -> current.transferOut(amount, targetAccountId, description, eventId));
+    }
+
+    public BankAccount transferIn(BankAccount account, BigDecimal amount, String sourceAccountId,
+                                  String description, String eventId) {
+        return execute(account, eventId, current -> current.applyTransferIn(new FundsTransferredIn(
+                eventId, current.getAccountId(), current.getVersion() + 1, Instant.now(),
+                amount, sourceAccountId, description)));
     }
 
     public BankAccount loadAccount(String accountId) {
-        var snapshotOpt = eventStore.loadLatestSnapshot(accountId, AGGREGATE_TYPE);
-        if (snapshotOpt.isPresent()) {
-            var snapshot = snapshotOpt.get();
-            var account = BankAccount.fromSnapshot(snapshot.state());
-            var newEvents = eventStore.loadEventsAfterVersion(
-                    accountId, snapshot.version(), AccountEvent.class, ACCOUNT_EVENTS);
-            account.replayAfterSnapshot(newEvents);
+        var cached = aggregateCache.get(accountId);
+        if (cached.isPresent()) {
+            var account = BankAccount.fromSnapshot(cached.get().state());
+            // A sole writer's cache is authoritative; a stale entry still surfaces as an append conflict
+            if (!soleWriter) {
+                account.replayAfterSnapshot(eventStore.loadEventsAfterVersion(
+                        accountId, cached.get().version(), AccountEvent.class, ACCOUNT_EVENTS));
+                aggregateCache.put(accountId, account.toSnapshot());
+            }
             return account;
         }
-        var events = eventStore.loadEvents(accountId, AccountEvent.class, ACCOUNT_EVENTS);
-        return BankAccount.replayFrom(events);
+        var account = loadAccountFromStore(accountId);
+        aggregateCache.put(accountId, account.toSnapshot());
+        return account;
     }
 
-    private void saveAndProject(BankAccount account) {
-        var events = List.copyOf(account.getUncommittedEvents());
-        account.clearUncommittedEvents();
+    /**
+     * Drops every cached aggregate, for when event streams are deleted underneath the service.
+     */
+    public void clearCache() {
+        aggregateCache.clear();
+    }
 
-        eventStore.appendAll(events, ACCOUNT_EVENTS);
+    public AggregateCache.CacheStats cacheStats() {
+        return aggregateCache.stats();
+    }
 
-        for (var event : events) {
-            summaryProjector.project(event);
-            ledgerProjector.project(event);
+    private BankAccount execute(String accountId, Consumer<BankAccount> command) {
+        return execute(loadAccount(accountId), null, command);
+    }
+
+    private BankAccount execute(BankAccount current, String eventId, Consumer<BankAccount> command) {
+        String accountId = current.getAccountId();
+        for (int attempt = 1; ; attempt++) {
+            if (eventId != null && eventStore.containsEvent(accountId, eventId, ACCOUNT_EVENTS)) {
+                log.info("Command {} already applied to {}", eventId, accountId);
+                return loadAccount(accountId);
+            }
+            var account = BankAccount.fromSnapshot(current.toSnapshot());
+            command.accept(account);
+            var events = List.copyOf(account.getUncommittedEvents());
+            account.clearUncommittedEvents();
+
+            switch (eventStore.append(accountId, current.getVersion(), events, ACCOUNT_EVENTS)) {
+                case AppendResult.Appended _ -> {
+                    aggregateCache.put(accountId, account.toSnapshot());
+                    project(account, events);
+                    return account;
+                }
+                case AppendResult.Conflict conflict -> {
+                    if (attempt >= MAX_ATTEMPTS) {
+                        throw new OptimisticLockingFailureException("Account " + accountId
+                                + " modified concurrently: expected version " + conflict.expectedVersion()
+                                + ", actual " + conflict.actualVersion());
+                    }
+                    current.replayAfterSnapshot(eventStore.loadEventsAfterVersion(
+                            accountId, current.getVersion(), AccountEvent.class, ACCOUNT_EVENTS));
+                }
+            }
         }
+    }
 
-        if (account.getVersion() % SNAPSHOT_INTERVAL == 0) {
-            var snapshot = new SnapshotDocument(
-                    UUID.randomUUID().toString(),
-                    account.getAccountId(),
-                    AGGREGATE_TYPE,
-                    account.getVersion(),
-                    Instant.now(),
-                    account.toSnapshot());
-            eventStore.saveSnapshot(snapshot);
+    private BankAccount loadAccountFromStore(String accountId) {
+        long start = System.nanoTime();
+        var loaded = eventStore.loadSnapshotAndTail(accountId, AGGREGATE_TYPE, AccountEvent.class, ACCOUNT_EVENTS);
+        BankAccount account;
+        if (loaded.snapshot().isPresent()) {
+            account = BankAccount.fromSnapshot((BankAccountSnapshot) loaded.snapshot().get().state());
+            account.replayAfterSnapshot(loaded.events());
+        } else {
+            account = BankAccount.replayFrom(loaded.events());
         }
+        snapshotter.recordLoad(AGGREGATE_TYPE, accountId, loaded.snapshot().map(SnapshotDocument::version).orElse(0L),
+                loaded.events().size(), Duration.ofNanos(System.nanoTime() - start));
+        return account;
+    }
+
+    private void project(BankAccount account, List<AccountEvent> events) {
+        projectionPipeline.afterAppend(events);
+        snapshotter.afterAppend(AGGREGATE_TYPE, account.getAccountId(), account.getVersion(), account::toSnapshot);
     }
 }
@@ -25,8 +25,18 @@ public class IndexConfig {
                 .ensureIndex(new CompoundIndexDefinition(
                         new Document("accountId", 1).append("occurredAt", -1)));
 
+        // Transaction ledger: running-balance seed reads the newest entry by version
+        mongoTemplate.indexOps("m19_transaction_ledger")
+                .ensureIndex(new CompoundIndexDefinition(
+                        new Document("accountId", 1).append("version", -1)));
+
         // Account summaries: balance ranking
         mongoTemplate.indexOps("m19_account_summaries")
                 .ensureIndex(new Index().on("currentBalance", Sort.Direction.DESC));
+
+        // Saga logs: recovery scans in-flight sagas oldest first
+        mongoTemplate.indexOps("m19_transfer_saga_logs")
+                .ensureIndex(new CompoundIndexDefinition(
+                        new Document("status", 1).append("startedAt", 1)));
     }
 }
@@ -0,0 +1,10 @@
+package com.mongodb.course.m19.infrastructure;
+
+public sealed interface AppendResult {
+
+    record Appended(long version) implements AppendResult {
+    }
+
+    record Conflict(String aggregateId, long expectedVersion, long actualVersion) implements AppendResult {
+    }
+}
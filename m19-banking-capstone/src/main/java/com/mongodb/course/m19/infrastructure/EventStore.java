@@ -2,6 +2,12 @@ package com.mongodb.course.m19.infrastructure;
 
 import com.mongodb.course.m19.shared.DomainEvent;
 import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.index.CompoundIndexDefinition;
@@ -9,19 +15,38 @@ import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Service;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
 
 @Service
 public class EventStore {
 
+    private static final Logger log = LoggerFactory.getLogger(EventStore.class);
+
     private static final String ACCOUNT_EVENTS = "m19_account_events";
     private static final String SNAPSHOTS = "m19_snapshots";
+    // Events map their eventId to the document _id
+    private static final String EVENT_ID = "_id";
 
     private final MongoTemplate mongoTemplate;
+    private final GroupCommitAppender groupCommitAppender;
+    private final SnapshotPruner snapshotPruner;
+    private final int tailLookupLimit;
+    private final LongAdder snapshotsWritten = new LongAdder();
+    private final LongAdder snapshotBytes = new LongAdder();
+    private final LongAdder snapshotsDecoded = new LongAdder();
+    private final LongAdder snapshotDecodeNanos = new LongAdder();
 
-    public EventStore(MongoTemplate mongoTemplate) {
+    public EventStore(MongoTemplate mongoTemplate, GroupCommitAppender groupCommitAppender,
+                      SnapshotPruner snapshotPruner,
+                      @Value("${snapshot.tail-lookup.max-events:500}") int tailLookupLimit) {
         this.mongoTemplate = mongoTemplate;
+        this.groupCommitAppender = groupCommitAppender;
+        this.snapshotPruner = snapshotPruner;
+        this.tailLookupLimit = tailLookupLimit;
     }
 
     @PostConstruct
@@ -34,9 +59,34 @@ public class EventStore {
     }
 
     public <T extends DomainEvent> List<T> appendAll(List<T> events, String collection) {
-        return events.stream()
-                .map(e -> append(e, collection))
-                .toList();
+        return groupCommitAppender.append(events, collection);
+    }
+
+    public <T extends DomainEvent> AppendResult append(String aggregateId, long expectedVersion,
+                                                       List<T> events, String collection) {
+        long nextVersion = expectedVersion;
+        for (var event : events) {
+            nextVersion++;
+            if (!aggregateId.equals(event.aggregateId()) || event.version() != nextVersion) {
+                throw new IllegalArgumentException("Expected event " + aggregateId + " v" + nextVersion
+                        + " but got " + event.aggregateId() + " v" + event.version());
+            }
+        }
+        try {
+            groupCommitAppender.append(events, collection);
+            return new AppendResult.Appended(nextVersion);
+        } catch (DuplicateKeyException e) {
+            return new AppendResult.Conflict(aggregateId, expectedVersion, currentVersion(aggregateId, collection));
+        }
+    }
+
+    /**
+     * Whether the aggregate's stream holds the event with this id, for commands that record
+     * caller-chosen event ids so that a repeat can be recognised.
+     */
+    public boolean containsEvent(String aggregateId, String eventId, String collection) {
+        var query = Query.query(Criteria.where("aggregateId").is(aggregateId).and(EVENT_ID).is(eventId));
+        return mongoTemplate.exists(query, collection);
     }
 
     @SuppressWarnings("unchecked")
@@ -61,8 +111,24 @@ public class EventStore {
         return mongoTemplate.count(query, collection);
     }
 
+    public long currentVersion(String aggregateId, String collection) {
+        var query = Query.query(Criteria.where("aggregateId").is(aggregateId))
+                .with(Sort.by(Sort.Direction.DESC, "version"))
+                .limit(1);
+        query.fields().include("version");
+        var latest = mongoTemplate.findOne(query, Document.class, collection);
+        return latest != null ? ((Number) latest.get("version")).longValue() : 0;
+    }
+
     public SnapshotDocument saveSnapshot(SnapshotDocument snapshot) {
-        return mongoTemplate.insert(snapshot);
+        var document = new Document();
+        mongoTemplate.getConverter().write(snapshot, document);
+        mongoTemplate.insert(document, SNAPSHOTS);
+        snapshotsWritten.increment();
+        snapshotBytes.add(new RawBsonDocument(document, mongoTemplate.getDb().getCodecRegistry().get(Document.class))
+                .getByteBuffer().remaining());
+        snapshotPruner.schedulePrune(snapshot.aggregateId(), snapshot.aggregateType());
+        return snapshot;
     }
 
     public Optional<SnapshotDocument> loadLatestSnapshot(String aggregateId, String aggregateType) {
@@ -71,13 +137,94 @@ public class EventStore {
                         .and("aggregateType").is(aggregateType))
                 .with(Sort.by(Sort.Direction.DESC, "version"))
                 .limit(1);
-        return Optional.ofNullable(mongoTemplate.findOne(query, SnapshotDocument.class));
+        return Optional.ofNullable(mongoTemplate.findOne(query, Document.class, SNAPSHOTS))
+                .flatMap(this::decodeSnapshot);
+    }
+
+    public SnapshotStats snapshotStats() {
+        return new SnapshotStats(snapshotsWritten.sum(), snapshotBytes.sum(),
+                snapshotsDecoded.sum(), snapshotDecodeNanos.sum());
+    }
+
+    // One round trip: a single seed document looks up the latest snapshot, then the events after
+    // its version. $unionWith cannot see the snapshot version, so correlated $lookups are used instead.
+    // The looked-up tail is capped to keep the result well under the 16MB document limit; a longer
+    // tail is read on by a cursor after the last event it returned.
+    public <T extends DomainEvent> SnapshotAndTail<T> loadSnapshotAndTail(
+            String aggregateId, String aggregateType, Class<T> type, String collection) {
+        var snapshotLookup = new Document("from", SNAPSHOTS)
+                .append("pipeline", List.of(
+                        new Document("$match", new Document("aggregateId", aggregateId)
+                                .append("aggregateType", aggregateType)),
+                        new Document("$sort", new Document("version", -1)),
+                        new Document("$limit", 1)))
+                .append("as", "snapshot");
+        var tailLookup = new Document("from", collection)
+                .append("let", new Document("after", new Document("$ifNull", List.of("$snapshot.version", 0L))))
+                .append("pipeline", List.of(
+                        new Document("$match", new Document("aggregateId", aggregateId)),
+                        new Document("$match", new Document("$expr",
+                                new Document("$gt", List.of("$version", "$$after")))),
+                        new Document("$sort", new Document("version", 1)),
+                        new Document("$limit", tailLookupLimit)))
+                .append("as", "events");
+        var pipeline = List.of(
+                new Document("$documents", List.of(new Document())),
+                new Document("$lookup", snapshotLookup),
+                new Document("$set", new Document("snapshot", new Document("$first", "$snapshot"))),
+                new Document("$lookup", tailLookup));
+
+        var result = mongoTemplate.getDb().aggregate(pipeline).first();
+        var rawSnapshot = result.get("snapshot", Document.class);
+        var snapshot = Optional.ofNullable(rawSnapshot).flatMap(this::decodeSnapshot);
+        if (rawSnapshot != null && snapshot.isEmpty()) {
+            // The tail starts after the unreadable snapshot; replay from the first event instead
+            return new SnapshotAndTail<>(Optional.empty(), loadEvents(aggregateId, type, collection));
+        }
+        var converter = mongoTemplate.getConverter();
+        var events = new ArrayList<T>();
+        for (var doc : result.getList("events", Document.class)) {
+            events.add(converter.read(type, doc));
+        }
+        if (events.size() == tailLookupLimit) {
+            events.addAll(loadEventsAfterVersion(aggregateId, events.getLast().version(), type, collection));
+        }
+        return new SnapshotAndTail<>(snapshot, events);
+    }
+
+    // Snapshots written before the typed codec carry no type hint and fail here; their aggregates
+    // replay in full until a typed snapshot is taken and pruning removes the old one.
+    private Optional<SnapshotDocument> decodeSnapshot(Document raw) {
+        long start = System.nanoTime();
+        try {
+            var snapshot = mongoTemplate.getConverter().read(SnapshotDocument.class, raw);
+            snapshotsDecoded.increment();
+            snapshotDecodeNanos.add(System.nanoTime() - start);
+            return Optional.of(snapshot);
+        } catch (RuntimeException e) {
+            log.warn("Ignoring unreadable snapshot {} of {}", raw.get("_id"), raw.get("aggregateId"), e);
+            return Optional.empty();
+        }
     }
 
     public void ensureIndexes(String collection) {
         var indexDef = new CompoundIndexDefinition(
-                new org.bson.Document("aggregateId", 1).append("version", 1))
+                new Document("aggregateId", 1).append("version", 1))
                 .unique();
         mongoTemplate.indexOps(collection).ensureIndex(indexDef);
     }
+
+    /**
+     * Totals since startup: the encoded BSON size of the snapshots written and the time spent
+     * decoding the snapshots read.
+     */
+    public record SnapshotStats(long written, long writtenBytes, long decoded, long decodeNanos) {
+        public long averageBytes() {
+            return written == 0 ? 0 : writtenBytes / written;
+        }
+
+        public Duration averageDecodeTime() {
+            return decoded == 0 ? Duration.ZERO : Duration.ofNanos(decodeNanos / decoded);
+        }
+    }
 }
@@ -0,0 +1,240 @@
+package com.mongodb.course.m19.infrastructure;
+
+import com.mongodb.course.m19.shared.DomainEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Admits events to the projectors at most once and in version order per aggregate. The last
+ * projected version of an aggregate is seeded from its read model on first sight; events at or
+ * below it are duplicates and events beyond the next version are parked until the gap closes.
+ * Admitted events only count as projected once the batch carrying their writes has flushed; a
+ * failed flush parks them again, so their redelivery or the aggregate's next event retries them.
+ * A gap still open after {@code maxGapMs} is filled from the event store.
+ */
+public class ProjectionGuard<E extends DomainEvent> {
+
+    private static final Logger log = LoggerFactory.getLogger(ProjectionGuard.class);
+
+    private final int maxEntries;
+    private final long maxGapNanos;
+    private final ToLongFunction<String> projectedVersion;
+    private final GapLoader<E> gapLoader;
+    private final LinkedHashMap<String, AggregateProgress<E>> progress;
+
+    private long applied;
+    private long duplicates;
+    private long gaps;
+    private long gapFills;
+    private long staleWrites;
+
+    public ProjectionGuard(int maxEntries, long maxGapMs,
+                           ToLongFunction<String> projectedVersion, GapLoader<E> gapLoader) {
+        this.maxEntries = maxEntries;
+        this.maxGapNanos = maxGapMs * 1_000_000;
+        this.projectedVersion = projectedVersion;
+        this.gapLoader = gapLoader;
+        this.progress = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, AggregateProgress<E>> eldest) {
+                if (size() <= ProjectionGuard.this.maxEntries || !eldest.getValue().staged.isEmpty()) {
+                    return false;
+                }
+                if (!eldest.getValue().parked.isEmpty()) {
+                    // Reseeded on its next event, whose gap is then filled from the event store
+                    log.warn("Evicting {} with {} parked events", eldest.getKey(), eldest.getValue().parked.size());
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Admits {@code event} and hands it, followed by any parked successors it releases, to
+     * {@code apply} in version order. Their progress commits when {@code batch} flushes. Returns the
+     * applied events, none when {@code event} is a duplicate or arrives ahead of a missing version.
+     */
+    public List<E> admit(E event, ProjectionBatch batch, Consumer<E> apply) {
+        var aggregateId = event.aggregateId();
+        var ready = admit(event);
+        if (ready.isEmpty()) {
+            return ready;
+        }
+        long version = ready.getLast().version();
+        try {
+            ready.forEach(apply);
+        } catch (RuntimeException e) {
+            rollback(aggregateId);
+            throw e;
+        }
+        batch.onFlush(() -> commit(aggregateId, version), () -> rollback(aggregateId));
+        return ready;
+    }
+
+    private List<E> admit(E event) {
+        var aggregateId = event.aggregateId();
+        // Seed outside the lock; the rare entry evicted in between is seeded under it
+        Long seed = tracks(aggregateId) ? null : projectedVersion.applyAsLong(aggregateId);
+        long filledAfter;
+        long filledBefore;
+        synchronized (this) {
+            var aggregate = progress(aggregateId, seed);
+            var ready = offer(aggregate, event);
+            if (!ready.isEmpty() || !aggregate.gapExpired(maxGapNanos)) {
+                return ready;
+            }
+            filledAfter = aggregate.pending;
+            filledBefore = aggregate.parked.firstKey();
+        }
+        // The missing versions are not coming; read them back outside the lock
+        var missing = gapLoader.load(aggregateId, filledAfter).stream()
+                .filter(loaded -> loaded.version() < filledBefore)
+                .toList();
+        synchronized (this) {
+            var aggregate = progress(aggregateId, null);
+            missing.forEach(loaded -> aggregate.parked.putIfAbsent(loaded.version(), loaded));
+            aggregate.gapSince = System.nanoTime();
+            gapFills++;
+            log.info("Filled gap v{}..v{} of {} from the event store", filledAfter + 1, filledBefore - 1, aggregateId);
+            return drain(aggregate);
+        }
+    }
+
+    private AggregateProgress<E> progress(String aggregateId, Long seed) {
+        return progress.computeIfAbsent(aggregateId, id ->
+                new AggregateProgress<>(seed != null ? seed : projectedVersion.applyAsLong(id)));
+    }
+
+    private List<E> offer(AggregateProgress<E> aggregate, E event) {
+        if (event.version() <= aggregate.pending) {
+            duplicates++;
+            log.debug("Skipping duplicate v{} for {}", event.version(), event.aggregateId());
+            return List.of();
+        }
+        boolean fresh = aggregate.parked.putIfAbsent(event.version(), event) == null;
+        if (!fresh) {
+            // Already parked, possibly by a failed flush; it may be next in line all the same
+            duplicates++;
+        }
+        var ready = drain(aggregate);
+        if (fresh && aggregate.parked.containsKey(event.version())) {
+            gaps++;
+            log.debug("Parking v{} for {} behind v{}", event.version(), event.aggregateId(), aggregate.pending + 1);
+        }
+        return ready;
+    }
+
+    private List<E> drain(AggregateProgress<E> aggregate) {
+        var ready = new ArrayList<E>();
+        E next;
+        while ((next = aggregate.parked.remove(aggregate.pending + 1)) != null) {
+            ready.add(next);
+            aggregate.stage(next);
+        }
+        aggregate.parked.headMap(aggregate.pending, true).clear();
+        if (aggregate.parked.isEmpty()) {
+            aggregate.gapSince = 0;
+        } else if (aggregate.gapSince == 0 || !ready.isEmpty()) {
+            aggregate.gapSince = System.nanoTime();
+        }
+        return ready;
+    }
+
+    private synchronized void commit(String aggregateId, long version) {
+        var aggregate = progress.get(aggregateId);
+        if (aggregate != null) {
+            applied += aggregate.commit(version);
+        }
+    }
+
+    private synchronized void rollback(String aggregateId) {
+        var aggregate = progress.get(aggregateId);
+        if (aggregate != null && !aggregate.staged.isEmpty()) {
+            log.warn("Projection of {} v{}..v{} failed, parking it for a retry", aggregateId,
+                    aggregate.staged.firstKey(), aggregate.staged.lastKey());
+            aggregate.rollback();
+        }
+    }
+
+    public synchronized void recordStaleWrites(long count) {
+        staleWrites += count;
+    }
+
+    /**
+     * Forgets all tracked versions, for read models that were removed or rebuilt.
+     */
+    public synchronized void reset() {
+        progress.clear();
+    }
+
+    public synchronized GuardStats stats() {
+        int parked = progress.values().stream().mapToInt(aggregate -> aggregate.parked.size()).sum();
+        return new GuardStats(applied, duplicates, gaps, gapFills, staleWrites, parked);
+    }
+
+    private synchronized boolean tracks(String aggregateId) {
+        return progress.containsKey(aggregateId);
+    }
+
+    /**
+     * Reads the stored events of an aggregate after a version, in version order.
+     */
+    @FunctionalInterface
+    public interface GapLoader<E> {
+        List<E> load(String aggregateId, long afterVersion);
+    }
+
+    /**
+     * Counts since startup: {@code duplicates} were dropped as already projected, {@code gaps}
+     * arrived ahead of a missing version, {@code gapFills} read missing versions back from the event
+     * store, {@code staleWrites} were read-model updates skipped because another worker had already
+     * projected past them, {@code parked} events still wait for a gap.
+     */
+    public record GuardStats(long applied, long duplicates, long gaps, long gapFills, long staleWrites, int parked) {
+    }
+
+    private static final class AggregateProgress<E extends DomainEvent> {
+        private final TreeMap<Long, E> parked = new TreeMap<>();
+        private final TreeMap<Long, E> staged = new TreeMap<>();
+        private long version;
+        private long pending;
+        private long gapSince;
+
+        AggregateProgress(long version) {
+            this.version = version;
+            this.pending = version;
+        }
+
+        void stage(E event) {
+            staged.put(event.version(), event);
+            pending = event.version();
+        }
+
+        int commit(long upTo) {
+            var committed = staged.headMap(upTo, true);
+            int count = committed.size();
+            committed.clear();
+            version = Math.max(version, upTo);
+            return count;
+        }
+
+        void rollback() {
+            parked.putAll(staged);
+            staged.clear();
+            pending = version;
+            gapSince = System.nanoTime();
+        }
+
+        boolean gapExpired(long maxGapNanos) {
+            return !parked.isEmpty() && System.nanoTime() - gapSince > maxGapNanos;
+        }
+    }
+}
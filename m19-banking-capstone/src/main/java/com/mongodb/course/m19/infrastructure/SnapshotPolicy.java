@@ -0,0 +1,33 @@
+package com.mongodb.course.m19.infrastructure;
+
+import java.time.Duration;
+
+/**
+ * Decides whether an aggregate's event tail has become expensive enough to warrant a new snapshot.
+ */
+@FunctionalInterface
+public interface SnapshotPolicy {
+
+    boolean shouldSnapshot(TailStats tail);
+
+    record TailStats(
+            String aggregateType,
+            String aggregateId,
+            long version,
+            long eventsSinceSnapshot,
+            Duration estimatedReplayTime
+    ) {}
+
+    static SnapshotPolicy eventCount(long maxTailEvents) {
+        return tail -> tail.eventsSinceSnapshot() >= maxTailEvents;
+    }
+
+    static SnapshotPolicy replayTime(Duration maxReplayTime) {
+        return tail -> tail.eventsSinceSnapshot() > 0
+                && tail.estimatedReplayTime().compareTo(maxReplayTime) >= 0;
+    }
+
+    default SnapshotPolicy or(SnapshotPolicy other) {
+        return tail -> shouldSnapshot(tail) || other.shouldSnapshot(tail);
+    }
+}
@@ -0,0 +1,279 @@
+package com.mongodb.course.m19.infrastructure;
+
+import com.mongodb.course.m19.shared.AggregateSnapshot;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Takes snapshots off the command path: the {@link SnapshotPolicy} is consulted after each append,
+ * snapshot inserts are queued to a writer thread, and a periodic catch-up pass snapshots aggregates
+ * whose event tails have grown long without passing through a command.
+ */
+@Component
+public class Snapshotter {
+
+    private static final Logger log = LoggerFactory.getLogger(Snapshotter.class);
+
+    private static final String SNAPSHOTS = "m19_snapshots";
+    private static final int TRACKED_AGGREGATES = 10_000;
+
+    private final MongoTemplate mongoTemplate;
+    private final EventStore eventStore;
+    private final SnapshotPolicy policy;
+    private final long catchUpIntervalMs;
+    private final long catchUpMinTailEvents;
+    private final int catchUpBatchSize;
+    private final int catchUpScanEvents;
+
+    private final Map<String, Long> snapshotVersions = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > TRACKED_AGGREGATES;
+        }
+    };
+    private final Map<String, ReplayCost> replayCosts = new ConcurrentHashMap<>();
+    private final Map<String, Registration> registrations = new ConcurrentHashMap<>();
+    private final Map<String, SnapshotDocument> pendingWrites = new ConcurrentHashMap<>();
+    private final Map<String, String> scanPositions = new ConcurrentHashMap<>();
+    private final ExecutorService writer =
+            Executors.newSingleThreadExecutor(Thread.ofVirtual().name("snapshot-writer").factory());
+    private final ScheduledExecutorService catchUpScheduler =
+            Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("snapshot-catch-up").factory());
+
+    public Snapshotter(MongoTemplate mongoTemplate,
+                       EventStore eventStore,
+                       SnapshotPolicy policy,
+                       @Value("${snapshot.catch-up.interval-ms:300000}") long catchUpIntervalMs,
+                       @Value("${snapshot.catch-up.min-tail-events:10}") long catchUpMinTailEvents,
+                       @Value("${snapshot.catch-up.batch-size:100}") int catchUpBatchSize,
+                       @Value("${snapshot.catch-up.scan-events:10000}") int catchUpScanEvents) {
+        this.mongoTemplate = mongoTemplate;
+        this.eventStore = eventStore;
+        this.policy = policy;
+        this.catchUpIntervalMs = catchUpIntervalMs;
+        this.catchUpMinTailEvents = catchUpMinTailEvents;
+        this.catchUpBatchSize = catchUpBatchSize;
+        this.catchUpScanEvents = catchUpScanEvents;
+    }
+
+    @PostConstruct
+    void start() {
+        if (catchUpIntervalMs > 0) {
+            catchUpScheduler.scheduleWithFixedDelay(this::runCatchUp,
+                    catchUpIntervalMs, catchUpIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        catchUpScheduler.shutdownNow();
+        writer.shutdown();
+    }
+
+    public void register(String aggregateType, String eventCollection, Function<String, AggregateSnapshot> loader) {
+        registrations.put(aggregateType, new Registration(aggregateType, eventCollection, loader));
+    }
+
+    public void recordLoad(String aggregateType, String aggregateId, long snapshotVersion,
+                           int replayedEvents, Duration loadTime) {
+        trackSnapshotVersion(key(aggregateType, aggregateId), snapshotVersion);
+        if (replayedEvents > 0) {
+            replayCosts.computeIfAbsent(aggregateType, t -> new ReplayCost()).record(replayedEvents, loadTime);
+        }
+    }
+
+    public void afterAppend(String aggregateType, String aggregateId, long version,
+                            Supplier<AggregateSnapshot> state) {
+        var key = key(aggregateType, aggregateId);
+        long snapshotVersion = knownSnapshotVersion(key);
+        if (policy.shouldSnapshot(tailStats(aggregateType, aggregateId, version, version - snapshotVersion))) {
+            trackSnapshotVersion(key, version);
+            enqueue(key, new SnapshotDocument(UUID.randomUUID().toString(), aggregateId, aggregateType,
+                    version, Instant.now(), state.get()));
+        }
+    }
+
+    public int catchUp() {
+        int written = 0;
+        for (var registration : registrations.values()) {
+            for (var candidate : findLongTails(registration)) {
+                String aggregateId = candidate.getString("_id");
+                long version = ((Number) candidate.get("version")).longValue();
+                long tail = ((Number) candidate.get("tail")).longValue();
+                if (!policy.shouldSnapshot(tailStats(registration.aggregateType(), aggregateId, version, tail))) {
+                    continue;
+                }
+                try {
+                    var loaded = registration.loader().apply(aggregateId);
+                    eventStore.saveSnapshot(new SnapshotDocument(UUID.randomUUID().toString(), aggregateId,
+                            registration.aggregateType(), loaded.version(), Instant.now(), loaded));
+                    trackSnapshotVersion(key(registration.aggregateType(), aggregateId), loaded.version());
+                    written++;
+                } catch (RuntimeException e) {
+                    log.warn("Catch-up snapshot failed for {} {}", registration.aggregateType(), aggregateId, e);
+                }
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Forgets tracked snapshot versions and catch-up scan positions, for when the event and
+     * snapshot collections are cleared underneath it.
+     */
+    public void reset() {
+        synchronized (snapshotVersions) {
+            snapshotVersions.clear();
+        }
+        scanPositions.clear();
+    }
+
+    public void flush() {
+        try {
+            writer.submit(() -> { }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Snapshot writer failed", e.getCause());
+        }
+    }
+
+    private void runCatchUp() {
+        try {
+            int written = catchUp();
+            if (written > 0) {
+                log.info("Catch-up snapshotter wrote {} snapshots", written);
+            }
+        } catch (RuntimeException e) {
+            log.warn("Catch-up snapshot pass failed", e);
+        }
+    }
+
+    private void enqueue(String key, SnapshotDocument snapshot) {
+        // Coalesce: a newer snapshot replaces one still waiting to be written
+        if (pendingWrites.put(key, snapshot) == null) {
+            writer.execute(() -> {
+                var latest = pendingWrites.remove(key);
+                if (latest == null) {
+                    return;
+                }
+                try {
+                    eventStore.saveSnapshot(latest);
+                } catch (RuntimeException e) {
+                    log.warn("Snapshot write failed for {} v{}", key, latest.version(), e);
+                }
+            });
+        }
+    }
+
+    // Each pass walks the next catchUpScanEvents events of the {aggregateId, version} index, newest
+    // version first per aggregate, and resumes after the last aggregate it saw; the scan wraps
+    // around once it reaches the end, so every aggregate is visited at a bounded cost per pass.
+    private List<Document> findLongTails(Registration registration) {
+        var position = scanPositions.get(registration.aggregateType());
+        var pipeline = new ArrayList<Document>();
+        if (position != null) {
+            pipeline.add(new Document("$match", new Document("aggregateId", new Document("$lt", position))));
+        }
+        var latestSnapshot = new Document("from", SNAPSHOTS)
+                .append("let", new Document("id", "$_id"))
+                .append("pipeline", List.of(
+                        new Document("$match", new Document("aggregateType", registration.aggregateType())
+                                .append("$expr", new Document("$eq", List.of("$aggregateId", "$$id")))),
+                        new Document("$sort", new Document("version", -1)),
+                        new Document("$limit", 1),
+                        new Document("$project", new Document("version", 1))))
+                .append("as", "snapshot");
+        var snapshotVersion = new Document("$ifNull", List.of(new Document("$first", "$snapshot.version"), 0L));
+        pipeline.addAll(List.of(
+                new Document("$sort", new Document("aggregateId", -1).append("version", -1)),
+                new Document("$limit", catchUpScanEvents),
+                new Document("$group", new Document("_id", "$aggregateId")
+                        .append("version", new Document("$first", "$version"))
+                        .append("scanned", new Document("$sum", 1))),
+                new Document("$lookup", latestSnapshot),
+                new Document("$set", new Document("tail",
+                        new Document("$subtract", List.of("$version", snapshotVersion))))));
+        var window = mongoTemplate.getCollection(registration.eventCollection())
+                .aggregate(pipeline)
+                .into(new ArrayList<>());
+
+        long scanned = window.stream().mapToLong(doc -> ((Number) doc.get("scanned")).longValue()).sum();
+        if (scanned < catchUpScanEvents) {
+            scanPositions.remove(registration.aggregateType());
+        } else {
+            window.stream().map(doc -> doc.getString("_id")).min(Comparator.naturalOrder())
+                    .ifPresent(last -> scanPositions.put(registration.aggregateType(), last));
+        }
+        return window.stream()
+                .filter(doc -> ((Number) doc.get("tail")).longValue() >= catchUpMinTailEvents)
+                .sorted(Comparator.comparing((Document doc) -> ((Number) doc.get("tail")).longValue()).reversed())
+                .limit(catchUpBatchSize)
+                .toList();
+    }
+
+    private SnapshotPolicy.TailStats tailStats(String aggregateType, String aggregateId,
+                                               long version, long eventsSinceSnapshot) {
+        var cost = replayCosts.get(aggregateType);
+        var estimate = cost != null ? cost.estimate(eventsSinceSnapshot) : Duration.ZERO;
+        return new SnapshotPolicy.TailStats(aggregateType, aggregateId, version, eventsSinceSnapshot, estimate);
+    }
+
+    private long knownSnapshotVersion(String key) {
+        synchronized (snapshotVersions) {
+            return snapshotVersions.getOrDefault(key, 0L);
+        }
+    }
+
+    private void trackSnapshotVersion(String key, long version) {
+        synchronized (snapshotVersions) {
+            snapshotVersions.put(key, version);
+        }
+    }
+
+    private static String key(String aggregateType, String aggregateId) {
+        return aggregateType + ":" + aggregateId;
+    }
+
+    private record Registration(
+            String aggregateType,
+            String eventCollection,
+            Function<String, AggregateSnapshot> loader
+    ) {}
+
+    private static final class ReplayCost {
+        private double nanosPerEvent;
+
+        synchronized void record(int events, Duration elapsed) {
+            double sample = (double) elapsed.toNanos() / events;
+            nanosPerEvent = nanosPerEvent == 0 ? sample : nanosPerEvent * 0.8 + sample * 0.2;
+        }
+
+        synchronized Duration estimate(long events) {
+            return Duration.ofNanos((long) (nanosPerEvent * events));
+        }
+    }
+}
@@ -17,13 +17,23 @@ public record SagaLog(
         Map<String, Object> context,
         Instant startedAt,
         Instant completedAt,
-        String failureReason
+        String failureReason,
+        String leaseOwner,
+        Instant leaseUntil,
+        SagaDurability durability
 ) {
 
-    public static SagaLog create(String sagaId, String sagaType, List<String> stepNames, Map<String, Object> initialContext) {
+    public static SagaLog create(String sagaId, String sagaType, List<String> stepNames, Map<String, Object> initialContext,
+                                 SagaDurability durability) {
         List<StepLog> steps = stepNames.stream()
                 .map(StepLog::pending)
                 .toList();
-        return new SagaLog(sagaId, sagaType, SagaStatus.STARTED, 0, steps, initialContext, Instant.now(), null, null);
+        return new SagaLog(sagaId, sagaType, SagaStatus.RUNNING, 0, steps, initialContext, Instant.now(), null, null,
+                null, null, durability);
+    }
+
+    public SagaLog leasedTo(String owner, Instant until) {
+        return new SagaLog(sagaId, sagaType, status, currentStepIndex, steps, context, startedAt, completedAt,
+                failureReason, owner, until, durability);
     }
 }
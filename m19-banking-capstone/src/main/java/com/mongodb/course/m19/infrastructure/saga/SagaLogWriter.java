@@ -0,0 +1,84 @@
+package com.mongodb.course.m19.infrastructure.saga;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.time.Instant;
+import java.util.Map;
+
+/**
+ * Merges the changes to one saga's log into a single update, written after each step or, under
+ * {@link SagaDurability#CHECKPOINT}, only when the saga changes status. A write or lease renewal
+ * that finds the saga leased elsewhere fails every later call with a {@link SagaLeaseLostException}.
+ */
+final class SagaLogWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(SagaLogWriter.class);
+
+    private final SagaLogRepository repository;
+    private final String sagaId;
+    private final SagaDurability durability;
+    private Update pending = new Update();
+    private volatile boolean leaseLost;
+
+    SagaLogWriter(SagaLogRepository repository, String sagaId, SagaDurability durability) {
+        this.repository = repository;
+        this.sagaId = sagaId;
+        this.durability = durability;
+    }
+
+    void stepSucceeded(int stepIndex, StepLog stepLog, Map<String, Object> context) {
+        step(stepIndex, stepLog).set("context", context);
+        written(false);
+    }
+
+    void stepFailed(int stepIndex, StepLog stepLog, String reason) {
+        step(stepIndex, stepLog)
+                .set("failureReason", reason)
+                .set("status", SagaStatus.COMPENSATING);
+        written(true);
+    }
+
+    void stepUpdated(int stepIndex, StepLog stepLog) {
+        pending.set("steps." + stepIndex, stepLog);
+        written(false);
+    }
+
+    void finish(SagaStatus status) {
+        pending.set("status", status).set("completedAt", Instant.now());
+        written(true);
+    }
+
+    void renewLease() {
+        try {
+            if (!repository.renewLease(sagaId)) {
+                leaseLost = true;
+            }
+        } catch (RuntimeException e) {
+            // The next renewal or write tries again before the lease runs out
+            log.warn("Saga [{}] lease renewal failed", sagaId, e);
+        }
+    }
+
+    void checkLease() {
+        if (leaseLost) {
+            throw new SagaLeaseLostException(sagaId);
+        }
+    }
+
+    private Update step(int stepIndex, StepLog stepLog) {
+        return pending.set("steps." + stepIndex, stepLog).set("currentStepIndex", stepIndex);
+    }
+
+    private void written(boolean checkpoint) {
+        checkLease();
+        if (checkpoint || durability == SagaDurability.STEP) {
+            if (!repository.update(sagaId, pending)) {
+                leaseLost = true;
+                checkLease();
+            }
+            pending = new Update();
+        }
+    }
+}
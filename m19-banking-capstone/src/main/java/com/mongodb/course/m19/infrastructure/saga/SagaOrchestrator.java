@@ -1,11 +1,27 @@
 package com.mongodb.course.m19.infrastructure.saga;
 
+import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.util.BitSet;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
 
 @Service
 public class SagaOrchestrator {
@@ -13,54 +29,263 @@ public class SagaOrchestrator {
     private static final Logger log = LoggerFactory.getLogger(SagaOrchestrator.class);
 
     private final SagaLogRepository sagaLogRepository;
+    private final SagaDurability durability;
+    private final int maxConcurrency;
+    private final int queueCapacity;
+    private final Semaphore permits;
+    private final ExecutorService executor =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("m19-saga-", 0).factory());
+    private final ScheduledExecutorService leaseRenewer =
+            Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("m19-saga-lease").factory());
+    private final AtomicInteger admitted = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
 
-    public SagaOrchestrator(SagaLogRepository sagaLogRepository) {
+    public SagaOrchestrator(SagaLogRepository sagaLogRepository,
+                            @Value("${saga.log.durability:STEP}") SagaDurability durability,
+                            @Value("${saga.async.max-concurrency:64}") int maxConcurrency,
+                            @Value("${saga.async.queue-capacity:1000}") int queueCapacity) {
         this.sagaLogRepository = sagaLogRepository;
+        this.durability = durability;
+        this.maxConcurrency = maxConcurrency;
+        this.queueCapacity = queueCapacity;
+        this.permits = new Semaphore(maxConcurrency, true);
+    }
+
+    @PreDestroy
+    void shutdown() {
+        leaseRenewer.shutdownNow();
+        executor.shutdown();
+    }
+
+    /**
+     * Runs the saga on its own virtual thread. At most {@code max-concurrency} sagas execute at
+     * once and up to {@code queue-capacity} more wait for a slot; beyond that the returned future
+     * fails with a {@link RejectedExecutionException}.
+     */
+    public CompletableFuture<String> executeAsync(String sagaType, List<SagaStep> steps, SagaContext context) {
+        return executeAsync(sagaType, SagaGraph.linear(steps), context);
+    }
+
+    public CompletableFuture<String> executeAsync(String sagaType, SagaGraph graph, SagaContext context) {
+        if (admitted.incrementAndGet() > maxConcurrency + queueCapacity) {
+            admitted.decrementAndGet();
+            rejected.incrementAndGet();
+            return CompletableFuture.failedFuture(
+                    new RejectedExecutionException("Saga queue full, rejected " + sagaType));
+        }
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    admitted.decrementAndGet();
+                    throw new CompletionException(e);
+                }
+                inFlight.incrementAndGet();
+                try {
+                    return execute(sagaType, graph, context);
+                } finally {
+                    inFlight.decrementAndGet();
+                    permits.release();
+                    admitted.decrementAndGet();
+                }
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            // The executor is shutting down
+            admitted.decrementAndGet();
+            rejected.incrementAndGet();
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    public AsyncStats asyncStats() {
+        int running = inFlight.get();
+        return new AsyncStats(running, Math.max(0, admitted.get() - running), rejected.get());
     }
 
     public String execute(String sagaType, List<SagaStep> steps, SagaContext context) {
+        return execute(sagaType, SagaGraph.linear(steps), context);
+    }
+
+    /**
+     * Runs every step once its dependencies have succeeded, concurrently where the graph allows.
+     * After a failure no further steps start; once the running ones finish, the succeeded steps
+     * are compensated in reverse topological order. Throws a {@link SagaLeaseLostException} when
+     * another node took the saga over, which then finishes it.
+     */
+    public String execute(String sagaType, SagaGraph graph, SagaContext context) {
         String sagaId = UUID.randomUUID().toString();
         context.put("sagaId", sagaId);
-        List<String> stepNames = steps.stream().map(SagaStep::name).toList();
 
-        var sagaLog = SagaLog.create(sagaId, sagaType, stepNames, context.toMap());
-        sagaLogRepository.save(sagaLog);
-        sagaLogRepository.updateStatus(sagaId, SagaStatus.RUNNING);
+        sagaLogRepository.save(SagaLog.create(sagaId, sagaType, graph.stepNames(), context.toMap(), durability));
+        run(sagaId, graph.nodes(), context, new SagaLogWriter(sagaLogRepository, sagaId, durability),
+                new BitSet(), false);
+        return sagaId;
+    }
+
+    /**
+     * Finishes a saga another process left in flight, with its context rebuilt from the log. Steps
+     * the log records as succeeded are not run again; a saga that was compensating only undoes
+     * them. The step that was executing when the process died is run again, so it must tolerate
+     * a repeat. Sagas logged under {@link SagaDurability#CHECKPOINT} are refused: their log may not
+     * record steps that already ran.
+     */
+    public void resume(SagaLog stored, SagaGraph graph, SagaContext context) {
+        if (stored.durability() == SagaDurability.CHECKPOINT) {
+            throw new IllegalStateException("Saga [" + stored.sagaId() + "] was logged at checkpoints only "
+                    + "and cannot be resumed");
+        }
+        var stepNames = stored.steps().stream().map(StepLog::stepName).toList();
+        if (!stepNames.equals(graph.stepNames())) {
+            throw new IllegalStateException("Saga [" + stored.sagaId() + "] was logged with steps " + stepNames
+                    + " but " + stored.sagaType() + " now has " + graph.stepNames());
+        }
+        var succeeded = new BitSet(stepNames.size());
+        for (int i = 0; i < stepNames.size(); i++) {
+            if ("SUCCEEDED".equals(stored.steps().get(i).status())) {
+                succeeded.set(i);
+            }
+        }
+        log.info("Saga [{}] resuming {} with {} of {} steps succeeded", stored.sagaId(), stored.status(),
+                succeeded.cardinality(), stepNames.size());
+        run(stored.sagaId(), graph.nodes(), context, new SagaLogWriter(sagaLogRepository, stored.sagaId(), durability),
+                succeeded, stored.status() == SagaStatus.COMPENSATING);
+    }
+
+    private void run(String sagaId, List<SagaGraph.Node> nodes, SagaContext context, SagaLogWriter sagaLog,
+                     BitSet succeeded, boolean failed) {
+        long renewMs = Math.max(1, sagaLogRepository.leaseDuration().toMillis() / 3);
+        var heartbeat = leaseRenewer.scheduleAtFixedRate(sagaLog::renewLease, renewMs, renewMs, TimeUnit.MILLISECONDS);
+        try {
+            runSteps(sagaId, nodes, context, sagaLog, succeeded, failed);
+        } finally {
+            heartbeat.cancel(false);
+        }
+    }
+
+    private void runSteps(String sagaId, List<SagaGraph.Node> nodes, SagaContext context, SagaLogWriter sagaLog,
+                          BitSet succeeded, boolean failed) {
+        var started = (BitSet) succeeded.clone();
+        var running = new ExecutorCompletionService<StepOutcome>(executor);
+        int inProgress = 0;
+
+        while (true) {
+            if (!failed) {
+                var ready = IntStream.range(0, nodes.size())
+                        .filter(i -> !started.get(i) && nodes.get(i).dependsOn().stream().allMatch(succeeded::get))
+                        .toArray();
+                if (ready.length > 0) {
+                    sagaLog.checkLease();
+                }
+                if (ready.length == 1 && inProgress == 0) {
+                    // Nothing to overlap with, so stay on the caller's thread
+                    started.set(ready[0]);
+                    failed = record(sagaId, sagaLog, nodes, runStep(sagaId, nodes, ready[0], context),
+                            context, succeeded, false);
+                    continue;
+                }
+                for (int index : ready) {
+                    started.set(index);
+                    running.submit(() -> runStep(sagaId, nodes, index, context));
+                    inProgress++;
+                }
+            }
+            if (inProgress == 0) {
+                break;
+            }
+            var outcome = awaitNext(running);
+            inProgress--;
+            failed = record(sagaId, sagaLog, nodes, outcome, context, succeeded, failed);
+        }
 
-        int lastCompletedIndex = -1;
+        if (failed) {
+            compensate(sagaId, sagaLog, nodes, context, succeeded);
+            return;
+        }
+
+        sagaLog.finish(SagaStatus.COMPLETED);
+        log.info("Saga [{}] completed successfully", sagaId);
+        release(sagaId, nodes, context);
+    }
 
-        for (int i = 0; i < steps.size(); i++) {
-            var step = steps.get(i);
+    private void release(String sagaId, List<SagaGraph.Node> nodes, SagaContext context) {
+        for (var node : nodes) {
             try {
-                log.info("Saga [{}] executing step {}: {}", sagaId, i, step.name());
-                step.execute(context);
-                lastCompletedIndex = i;
-                sagaLogRepository.updateStep(sagaId, i, StepLog.pending(step.name()).succeeded());
-                sagaLogRepository.updateContext(sagaId, context.toMap());
+                node.step().release(context);
             } catch (Exception e) {
-                log.warn("Saga [{}] step {} failed: {}", sagaId, step.name(), e.getMessage());
-                sagaLogRepository.updateStep(sagaId, i, StepLog.pending(step.name()).failed(e.getMessage()));
-                sagaLogRepository.updateFailureReason(sagaId, e.getMessage());
-                compensate(sagaId, steps, context, lastCompletedIndex);
-                return sagaId;
+                // A marker left behind only costs space; the saga itself is done
+                log.warn("Saga [{}] could not release step {}: {}", sagaId, node.step().name(), e.getMessage());
             }
         }
+    }
 
-        sagaLogRepository.updateStatus(sagaId, SagaStatus.COMPLETED);
-        log.info("Saga [{}] completed successfully", sagaId);
-        return sagaId;
+    private StepOutcome runStep(String sagaId, List<SagaGraph.Node> nodes, int index, SagaContext context) {
+        var step = nodes.get(index).step();
+        try {
+            log.info("Saga [{}] executing step {}: {}", sagaId, index, step.name());
+            step.execute(context);
+            return new StepOutcome(index, null);
+        } catch (Exception e) {
+            return new StepOutcome(index, e);
+        }
     }
 
-    private void compensate(String sagaId, List<SagaStep> steps, SagaContext context, int lastCompletedIndex) {
-        sagaLogRepository.updateStatus(sagaId, SagaStatus.COMPENSATING);
+    /**
+     * Logs a finished step and returns whether the saga has failed. Only the first failure moves
+     * the saga to compensation and becomes its failure reason.
+     */
+    private boolean record(String sagaId, SagaLogWriter sagaLog, List<SagaGraph.Node> nodes, StepOutcome outcome,
+                           SagaContext context, BitSet succeeded, boolean failed) {
+        var step = nodes.get(outcome.index()).step();
+        if (outcome.error() == null) {
+            succeeded.set(outcome.index());
+            sagaLog.stepSucceeded(outcome.index(), StepLog.pending(step.name()).succeeded(), context.toMap());
+            return failed;
+        }
+        String reason = outcome.error().getMessage();
+        log.warn("Saga [{}] step {} failed: {}", sagaId, step.name(), reason);
+        var stepLog = StepLog.pending(step.name()).failed(reason);
+        if (failed) {
+            sagaLog.stepUpdated(outcome.index(), stepLog);
+        } else {
+            sagaLog.stepFailed(outcome.index(), stepLog, reason);
+        }
+        return true;
+    }
+
+    private static StepOutcome awaitNext(CompletionService<StepOutcome> running) {
+        // Running steps must settle before compensation starts, so keep waiting through interrupts
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return running.take().resultNow();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void compensate(String sagaId, SagaLogWriter sagaLog, List<SagaGraph.Node> nodes, SagaContext context,
+                            BitSet succeeded) {
         boolean compensationFailed = false;
 
-        for (int i = lastCompletedIndex; i >= 0; i--) {
-            var step = steps.get(i);
+        for (int i = succeeded.previousSetBit(nodes.size() - 1); i >= 0; i = succeeded.previousSetBit(i - 1)) {
+            var step = nodes.get(i).step();
+            sagaLog.checkLease();
             try {
                 log.info("Saga [{}] compensating step {}: {}", sagaId, i, step.name());
                 step.compensate(context);
-                sagaLogRepository.updateStep(sagaId, i, StepLog.pending(step.name()).succeeded().compensated());
+                sagaLog.stepUpdated(i, StepLog.pending(step.name()).succeeded().compensated());
+            } catch (SagaLeaseLostException e) {
+                throw e;
             } catch (Exception e) {
                 log.error("Saga [{}] compensation failed for step {}: {}", sagaId, step.name(), e.getMessage());
                 compensationFailed = true;
@@ -68,9 +293,15 @@ public class SagaOrchestrator {
         }
 
         if (compensationFailed) {
-            sagaLogRepository.updateStatus(sagaId, SagaStatus.FAILED);
+            sagaLog.finish(SagaStatus.FAILED);
         } else {
-            sagaLogRepository.updateStatus(sagaId, SagaStatus.COMPENSATED);
+            sagaLog.finish(SagaStatus.COMPENSATED);
         }
     }
+
+    private record StepOutcome(int index, Exception error) {
+    }
+
+    public record AsyncStats(int inFlight, int queued, long rejected) {
+    }
 }
@@ -0,0 +1,141 @@
+package com.mongodb.course.m19.infrastructure.saga;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Finishes sagas whose process died mid-flight. It periodically looks for RUNNING or COMPENSATING
+ * logs with an expired lease and claims each one atomically, so several nodes can share the scan.
+ * Each claimed saga is handed back to the {@link SagaOrchestrator} with the graph registered for
+ * its type. A saga logged under {@link SagaDurability#CHECKPOINT} cannot tell which steps already
+ * ran, so it is marked FAILED for manual resolution instead.
+ */
+@Service
+public class SagaRecoveryService {
+
+    private static final Logger log = LoggerFactory.getLogger(SagaRecoveryService.class);
+
+    private final SagaLogRepository sagaLogRepository;
+    private final SagaOrchestrator orchestrator;
+    private final boolean enabled;
+    private final long intervalMs;
+    private final int batchSize;
+    private final Map<String, Registration> registrations = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("m19-saga-recovery").factory());
+
+    public SagaRecoveryService(SagaLogRepository sagaLogRepository,
+                               SagaOrchestrator orchestrator,
+                               @Value("${saga.recovery.enabled:true}") boolean enabled,
+                               @Value("${saga.recovery.interval-ms:30000}") long intervalMs,
+                               @Value("${saga.recovery.batch-size:100}") int batchSize) {
+        this.sagaLogRepository = sagaLogRepository;
+        this.orchestrator = orchestrator;
+        this.enabled = enabled;
+        this.intervalMs = intervalMs;
+        this.batchSize = batchSize;
+    }
+
+    @PostConstruct
+    void start() {
+        if (enabled) {
+            scheduler.scheduleWithFixedDelay(this::runRecovery, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    public void register(String sagaType, SagaGraph graph) {
+        register(sagaType, graph, context -> { });
+    }
+
+    /**
+     * {@code rehydrate} restores context entries the log cannot round-trip, such as aggregates,
+     * before the saga resumes.
+     */
+    public void register(String sagaType, SagaGraph graph, Consumer<SagaContext> rehydrate) {
+        registrations.put(sagaType, new Registration(graph, rehydrate));
+    }
+
+    /**
+     * Claims and finishes stale sagas batch by batch; returns how many were resumed.
+     */
+    public int recoverStaleSagas() {
+        int recovered = 0;
+        while (true) {
+            var candidates = sagaLogRepository.findStale(batchSize);
+            int claimed = 0;
+            for (var sagaId : candidates) {
+                var stored = sagaLogRepository.claim(sagaId);
+                if (stored.isEmpty()) {
+                    // Another node got there first
+                    continue;
+                }
+                claimed++;
+                if (recover(stored.get())) {
+                    recovered++;
+                }
+            }
+            // Claimed sagas hold a fresh lease, so the next batch only holds sagas nobody owns
+            if (claimed == 0) {
+                return recovered;
+            }
+        }
+    }
+
+    private boolean recover(SagaLog stored) {
+        var registration = registrations.get(stored.sagaType());
+        if (registration == null) {
+            log.warn("Saga [{}] of unknown type {} left for a node that knows it", stored.sagaId(), stored.sagaType());
+            return false;
+        }
+        if (stored.durability() == SagaDurability.CHECKPOINT) {
+            log.error("Saga [{}] was logged at checkpoints only; marking it FAILED for manual resolution",
+                    stored.sagaId());
+            sagaLogRepository.update(stored.sagaId(), new Update()
+                    .set("status", SagaStatus.FAILED)
+                    .set("failureReason", "Interrupted with checkpoint-only log; resolve manually")
+                    .set("completedAt", Instant.now()));
+            return false;
+        }
+        try {
+            var context = new SagaContext(stored.context());
+            registration.rehydrate().accept(context);
+            orchestrator.resume(stored, registration.graph(), context);
+            return true;
+        } catch (RuntimeException e) {
+            log.error("Saga [{}] recovery failed; retrying once its lease expires", stored.sagaId(), e);
+            return false;
+        }
+    }
+
+    private void runRecovery() {
+        try {
+            int recovered = recoverStaleSagas();
+            if (recovered > 0) {
+                log.info("Recovered {} stale sagas", recovered);
+            }
+        } catch (RuntimeException e) {
+            log.warn("Saga recovery pass failed", e);
+        }
+    }
+
+    private record Registration(SagaGraph graph, Consumer<SagaContext> rehydrate) {
+    }
+}
@@ -0,0 +1,199 @@
+package com.mongodb.course.m19.projection;
+
+import com.mongodb.course.m19.account.event.*;
+import com.mongodb.course.m19.projection.readmodel.AccountSummaryDocument;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Keeps the top {@code capacity} account summaries by balance in memory. It is loaded from the
+ * balance index, then kept current by {@link #projected} with the balances the ledger projection
+ * computes as its batches flush. Every account outside the ranking has a balance no higher than
+ * the lowest ranked one. An account that falls below that line therefore leaves a gap, and the
+ * ranking reloads once a query reaches into the gap or the last load is older than
+ * {@code max-staleness-ms}.
+ */
+@Component
+public class BalanceLeaderboard {
+
+    private static final String SUMMARIES = "m19_account_summaries";
+    private static final Comparator<AccountSummaryDocument> RANKING = Comparator
+            .comparing(AccountSummaryDocument::currentBalance, Comparator.reverseOrder())
+            .thenComparing(AccountSummaryDocument::accountId);
+
+    private final MongoTemplate mongoTemplate;
+    private final int capacity;
+    private final long maxStalenessNanos;
+    private final TreeSet<AccountSummaryDocument> ranking = new TreeSet<>(RANKING);
+    private final Map<String, AccountSummaryDocument> members = new HashMap<>();
+    private boolean loaded;
+    private boolean complete;
+    private long loadedAt;
+    private long hits;
+    private long reloads;
+
+    public BalanceLeaderboard(MongoTemplate mongoTemplate,
+                              @Value("${dashboard.top-accounts.capacity:100}") int capacity,
+                              @Value("${dashboard.top-accounts.max-staleness-ms:30000}") long maxStalenessMs) {
+        this.mongoTemplate = mongoTemplate;
+        this.capacity = capacity;
+        this.maxStalenessNanos = Duration.ofMillis(maxStalenessMs).toNanos();
+    }
+
+    @PostConstruct
+    synchronized void bootstrap() {
+        reload();
+    }
+
+    public List<AccountSummaryDocument> top(int limit) {
+        if (limit > capacity) {
+            return load(limit);
+        }
+        synchronized (this) {
+            if (!loaded || System.nanoTime() - loadedAt > maxStalenessNanos
+                    || (ranking.size() < limit && !complete)) {
+                reload();
+            } else {
+                hits++;
+            }
+            return ranking.stream().limit(limit).toList();
+        }
+    }
+
+    /**
+     * Re-ranks an account with the balance the ledger projection computed for {@code event}, once
+     * the batch carrying it has flushed. The summary is only read when the account enters the
+     * ranking from below, or when its ranked summary missed earlier events.
+     */
+    public void projected(AccountEvent event, BigDecimal balance) {
+        synchronized (this) {
+            if (!loaded) {
+                return;
+            }
+            var current = members.get(event.aggregateId());
+            if (current != null && event.version() <= current.projectedVersion()) {
+                return;
+            }
+            if (current != null && event.version() == current.projectedVersion() + 1) {
+                offer(advance(current, event, balance));
+                return;
+            }
+            if (event instanceof AccountOpened opened) {
+                offer(AccountSummaryProjector.opened(opened));
+                return;
+            }
+            if (current == null && !ranks(event.aggregateId(), balance)) {
+                return;
+            }
+        }
+        var summary = mongoTemplate.findById(event.aggregateId(), AccountSummaryDocument.class, SUMMARIES);
+        synchronized (this) {
+            if (loaded && summary != null) {
+                offer(summary);
+            }
+        }
+    }
+
+    /**
+     * Drops the ranking, so the next query reloads it; for when the summaries are rebuilt.
+     */
+    public synchronized void invalidate() {
+        loaded = false;
+        ranking.clear();
+        members.clear();
+    }
+
+    public synchronized LeaderboardStats stats() {
+        return new LeaderboardStats(hits, reloads, ranking.size());
+    }
+
+    // Below the lowest ranked balance, unseen accounts may rank between the two
+    private boolean ranks(String accountId, BigDecimal balance) {
+        if (complete) {
+            return true;
+        }
+        if (ranking.isEmpty()) {
+            return false;
+        }
+        var lowest = ranking.last();
+        int byBalance = balance.compareTo(lowest.currentBalance());
+        return byBalance > 0 || (byBalance == 0 && accountId.compareTo(lowest.accountId()) < 0);
+    }
+
+    private static AccountSummaryDocument advance(AccountSummaryDocument summary, AccountEvent event,
+                                                  BigDecimal balance) {
+        int deposits = summary.depositCount();
+        int withdrawals = summary.withdrawalCount();
+        int transfersOut = summary.transferOutCount();
+        int transfersIn = summary.transferInCount();
+        var interest = summary.totalInterestEarned();
+        boolean closed = summary.closed();
+        switch (event) {
+            case FundsDeposited _ -> deposits++;
+            case FundsWithdrawn _ -> withdrawals++;
+            case FundsTransferredOut _ -> transfersOut++;
+            case FundsTransferredIn _ -> transfersIn++;
+            case InterestAccrued e -> interest = interest.add(e.amount());
+            case AccountClosed _ -> closed = true;
+            case AccountOpened _ -> { }
+        }
+        return new AccountSummaryDocument(summary.accountId(), summary.accountHolder(), balance,
+                summary.currency(), summary.totalTransactions() + 1, deposits, withdrawals, transfersOut,
+                transfersIn, interest, closed, event.occurredAt(), event.version());
+    }
+
+    private void offer(AccountSummaryDocument summary) {
+        var current = members.get(summary.accountId());
+        if (current != null) {
+            if (current.projectedVersion() > summary.projectedVersion()) {
+                // An update that flushed first already ranked a later state of this account
+                return;
+            }
+            ranking.remove(current);
+            members.remove(summary.accountId());
+        }
+        if (ranks(summary.accountId(), summary.currentBalance())) {
+            ranking.add(summary);
+            members.put(summary.accountId(), summary);
+        }
+        if (ranking.size() > capacity) {
+            members.remove(ranking.pollLast().accountId());
+            complete = false;
+        }
+    }
+
+    private void reload() {
+        var top = load(capacity);
+        invalidate();
+        top.forEach(summary -> {
+            ranking.add(summary);
+            members.put(summary.accountId(), summary);
+        });
+        complete = top.size() < capacity;
+        loaded = true;
+        loadedAt = System.nanoTime();
+        reloads++;
+    }
+
+    private List<AccountSummaryDocument> load(int limit) {
+        var query = new Query()
+                .with(Sort.by(Sort.Direction.DESC, "currentBalance"))
+                .limit(limit);
+        return mongoTemplate.find(query, AccountSummaryDocument.class, SUMMARIES);
+    }
+
+    public record LeaderboardStats(long hits, long reloads, int size) {
+    }
+}
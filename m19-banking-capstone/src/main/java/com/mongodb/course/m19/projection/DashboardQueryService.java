@@ -1,10 +1,8 @@
 package com.mongodb.course.m19.projection;
 
 import com.mongodb.course.m19.projection.readmodel.AccountSummaryDocument;
-import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
-import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Service;
 
 import java.math.BigDecimal;
@@ -17,16 +15,15 @@ public class DashboardQueryService {
     private static final String LEDGER = "m19_transaction_ledger";
 
     private final MongoTemplate mongoTemplate;
+    private final BalanceLeaderboard leaderboard;
 
-    public DashboardQueryService(MongoTemplate mongoTemplate) {
+    public DashboardQueryService(MongoTemplate mongoTemplate, BalanceLeaderboard leaderboard) {
         this.mongoTemplate = mongoTemplate;
+        this.leaderboard = leaderboard;
     }
 
     public List<AccountSummaryDocument> topAccountsByBalance(int limit) {
-        var query = new Query()
-                .with(Sort.by(Sort.Direction.DESC, "currentBalance"))
-                .limit(limit);
-        return mongoTemplate.find(query, AccountSummaryDocument.class, SUMMARIES);
+        return leaderboard.top(limit);
     }
 
     public AccountSummaryDocument getAccountSummary(String accountId) {
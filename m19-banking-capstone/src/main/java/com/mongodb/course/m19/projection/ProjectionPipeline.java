@@ -0,0 +1,179 @@
+package com.mongodb.course.m19.projection;
+
+import com.mongodb.course.m19.account.event.AccountEvent;
+import com.mongodb.course.m19.infrastructure.EventStore;
+import com.mongodb.course.m19.infrastructure.ProjectionBatch;
+import com.mongodb.course.m19.infrastructure.ProjectionGuard;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.IntStream;
+
+/**
+ * Runs every account projector over a batch of events and writes the result with one
+ * {@link ProjectionBatch} flush, for freshly appended events, the {@link ProjectionRunner} and
+ * full replays. A {@link ProjectionGuard} in front of the projectors drops duplicate deliveries
+ * and holds back events that arrive ahead of their predecessor.
+ */
+@Service
+public class ProjectionPipeline {
+
+    private static final Logger log = LoggerFactory.getLogger(ProjectionPipeline.class);
+
+    private static final int LOCK_STRIPES = 64;
+
+    private static final String ACCOUNT_EVENTS = "m19_account_events";
+    private static final String ACCOUNT_SUMMARIES = "m19_account_summaries";
+    private static final String TRANSACTION_LEDGER = "m19_transaction_ledger";
+
+    private final MongoTemplate mongoTemplate;
+    private final EventStore eventStore;
+    private final AccountSummaryProjector summaryProjector;
+    private final TransactionLedgerProjector ledgerProjector;
+    private final BalanceLeaderboard leaderboard;
+    private final int batchSize;
+    private final boolean async;
+    private final int guardSize;
+    private final long maxGapMs;
+    private final ProjectionGuard<AccountEvent> guard;
+    private final ReentrantLock[] stripes = IntStream.range(0, LOCK_STRIPES)
+            .mapToObj(i -> new ReentrantLock())
+            .toArray(ReentrantLock[]::new);
+
+    public ProjectionPipeline(MongoTemplate mongoTemplate,
+                              EventStore eventStore,
+                              AccountSummaryProjector summaryProjector,
+                              TransactionLedgerProjector ledgerProjector,
+                              BalanceLeaderboard leaderboard,
+                              @Value("${projection.batch-size:500}") int batchSize,
+                              @Value("${projection.async.enabled:false}") boolean async,
+                              @Value("${projection.guard.max-entries:10000}") int guardSize,
+                              @Value("${projection.guard.max-gap-ms:30000}") long maxGapMs) {
+        this.mongoTemplate = mongoTemplate;
+        this.eventStore = eventStore;
+        this.summaryProjector = summaryProjector;
+        this.ledgerProjector = ledgerProjector;
+        this.leaderboard = leaderboard;
+        this.batchSize = batchSize;
+        this.async = async;
+        this.guardSize = guardSize;
+        this.maxGapMs = maxGapMs;
+        this.guard = new ProjectionGuard<>(guardSize, maxGapMs, this::projectedVersion, this::storedEventsAfter);
+    }
+
+    /**
+     * Projects events a command has just appended, unless the {@link ProjectionRunner} owns projection.
+     */
+    public void afterAppend(List<AccountEvent> events) {
+        if (!async) {
+            project(events);
+        }
+    }
+
+    public void project(List<AccountEvent> events) {
+        // Concurrent commands on one aggregate must not flush their batches out of version order
+        var locks = events.stream()
+                .mapToInt(event -> Math.floorMod(event.aggregateId().hashCode(), LOCK_STRIPES))
+                .distinct()
+                .sorted()
+                .mapToObj(stripe -> stripes[stripe])
+                .toList();
+        locks.forEach(ReentrantLock::lock);
+        try {
+            var batch = new ProjectionBatch(mongoTemplate);
+            try {
+                events.forEach(event -> project(event, batch));
+                flush(batch);
+            } finally {
+                batch.abort();
+            }
+        } finally {
+            locks.forEach(ReentrantLock::unlock);
+        }
+    }
+
+    /**
+     * Admits {@code event} through the guard and projects whatever it releases into {@code batch}.
+     * Returns the projected events, which may be none or include parked successors.
+     */
+    public List<AccountEvent> project(AccountEvent event, ProjectionBatch batch) {
+        return guard.admit(event, batch, admitted -> apply(admitted, batch));
+    }
+
+    public void flush(ProjectionBatch batch) {
+        long stale = batch.staleUpdates();
+        batch.flush();
+        guard.recordStaleWrites(batch.staleUpdates() - stale);
+    }
+
+    public ProjectionGuard.GuardStats stats() {
+        return guard.stats();
+    }
+
+    /**
+     * Forgets the versions the guard has seen and the cached ledger balances, for when read models
+     * are cleared outside a rebuild.
+     */
+    public void forgetProgress() {
+        guard.reset();
+        ledgerProjector.reset();
+    }
+
+    private void apply(AccountEvent event, ProjectionBatch batch) {
+        summaryProjector.project(event, batch);
+        ledgerProjector.project(event, batch);
+    }
+
+    private List<AccountEvent> storedEventsAfter(String aggregateId, long version) {
+        return eventStore.loadEventsAfterVersion(aggregateId, version, AccountEvent.class, ACCOUNT_EVENTS);
+    }
+
+    public long projectedVersion(String aggregateId) {
+        var query = Query.query(Criteria.where("_id").is(aggregateId));
+        query.fields().include("projectedVersion");
+        var doc = mongoTemplate.findOne(query, Document.class, ACCOUNT_SUMMARIES);
+        return doc != null ? doc.get("projectedVersion", Number.class).longValue() : 0;
+    }
+
+    public long rebuildReadModels() {
+        mongoTemplate.remove(new Query(), ACCOUNT_SUMMARIES);
+        mongoTemplate.remove(new Query(), TRANSACTION_LEDGER);
+        ledgerProjector.reset();
+
+        long start = System.nanoTime();
+        long count = 0;
+        // The read models start empty, so the replay needs no seeding from them
+        var replayGuard = new ProjectionGuard<AccountEvent>(guardSize, maxGapMs, aggregateId -> 0,
+                this::storedEventsAfter);
+        var batch = new ProjectionBatch(mongoTemplate);
+        try {
+            var query = new Query().with(Sort.by("aggregateId", "version"));
+            try (var events = mongoTemplate.stream(query, AccountEvent.class, ACCOUNT_EVENTS)) {
+                var iterator = events.iterator();
+                while (iterator.hasNext()) {
+                    replayGuard.admit(iterator.next(), batch, event -> apply(event, batch));
+                    if (++count % batchSize == 0) {
+                        batch.flush();
+                    }
+                }
+            }
+            batch.flush();
+        } finally {
+            batch.abort();
+        }
+        guard.reset();
+        leaderboard.invalidate();
+        log.info("Replayed {} events from {} in {} ms", count, ACCOUNT_EVENTS,
+                (System.nanoTime() - start) / 1_000_000);
+        return count;
+    }
+}
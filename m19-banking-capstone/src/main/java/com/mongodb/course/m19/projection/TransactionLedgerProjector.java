@@ -1,7 +1,13 @@
 package com.mongodb.course.m19.projection;
 
 import com.mongodb.course.m19.account.event.*;
+import com.mongodb.course.m19.infrastructure.ProjectionBatch;
 import com.mongodb.course.m19.projection.readmodel.TransactionLedgerDocument;
+import org.bson.Document;
+import org.bson.types.Decimal128;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
@@ -9,82 +15,191 @@ import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Service;
 
 import java.math.BigDecimal;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
 
+/**
+ * Writes one ledger entry per account event. The running balance is carried in a bounded
+ * per-account cache and advanced strictly by event version, so each event costs a single insert:
+ * versions already applied are skipped as duplicates, and versions that arrive ahead of their
+ * predecessor are parked until the gap is filled. A balance only becomes the cached one once the
+ * batch carrying its entry has flushed, and a gap first re-reads the newest stored entry, which
+ * another instance may have written. Flushed balances are handed on to the {@link BalanceLeaderboard}.
+ */
 @Service
 public class TransactionLedgerProjector {
 
+    private static final Logger log = LoggerFactory.getLogger(TransactionLedgerProjector.class);
+
     private static final String COLLECTION = "m19_transaction_ledger";
 
     private final MongoTemplate mongoTemplate;
+    private final BalanceLeaderboard leaderboard;
+    private final int maxCachedAccounts;
+    private final int maxParked;
+    private final Map<String, RunningBalance> balances;
 
-    public TransactionLedgerProjector(MongoTemplate mongoTemplate) {
+    public TransactionLedgerProjector(MongoTemplate mongoTemplate,
+                                      BalanceLeaderboard leaderboard,
+                                      @Value("${projection.ledger.balance-cache.max-entries:10000}") int maxCachedAccounts,
+                                      @Value("${projection.ledger.max-parked:1000}") int maxParked) {
         this.mongoTemplate = mongoTemplate;
+        this.leaderboard = leaderboard;
+        this.maxCachedAccounts = maxCachedAccounts;
+        this.maxParked = maxParked;
+        this.balances = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, RunningBalance> eldest) {
+                var running = eldest.getValue();
+                // An account with an unflushed entry keeps its balance until the batch reports back
+                if (size() <= TransactionLedgerProjector.this.maxCachedAccounts
+                        || running.pendingVersion != running.version) {
+                    return false;
+                }
+                if (!running.parked.isEmpty()) {
+                    log.warn("Evicting ledger of {} with {} parked events", eldest.getKey(), running.parked.size());
+                }
+                return true;
+            }
+        };
     }
 
     public void project(AccountEvent event) {
-        switch (event) {
-            case AccountOpened e -> {
-                var doc = new TransactionLedgerDocument(
-                        e.eventId(), e.aggregateId(), "OPENING",
-                        e.initialBalance(), "Account opened", null,
-                        e.initialBalance(), e.occurredAt());
-                mongoTemplate.insert(doc, COLLECTION);
-            }
-            case FundsDeposited e -> {
-                var balanceAfter = getLatestBalance(e.aggregateId()).add(e.amount());
-                var doc = new TransactionLedgerDocument(
-                        e.eventId(), e.aggregateId(), "DEPOSIT",
-                        e.amount(), e.description(), null,
-                        balanceAfter, e.occurredAt());
-                mongoTemplate.insert(doc, COLLECTION);
-            }
-            case FundsWithdrawn e -> {
-                var balanceAfter = getLatestBalance(e.aggregateId()).subtract(e.amount());
-                var doc = new TransactionLedgerDocument(
-                        e.eventId(), e.aggregateId(), "WITHDRAWAL",
-                        e.amount(), e.description(), null,
-                        balanceAfter, e.occurredAt());
-                mongoTemplate.insert(doc, COLLECTION);
-            }
-            case FundsTransferredOut e -> {
-                var balanceAfter = getLatestBalance(e.aggregateId()).subtract(e.amount());
-                var doc = new TransactionLedgerDocument(
-                        e.eventId(), e.aggregateId(), "TRANSFER_OUT",
-                        e.amount(), e.description(), e.targetAccountId(),
-                        balanceAfter, e.occurredAt());
-                mongoTemplate.insert(doc, COLLECTION);
+        var batch = new ProjectionBatch(mongoTemplate);
+        project(event, batch);
+        batch.flush();
+    }
+
+    public void project(AccountEvent event, ProjectionBatch batch) {
+        var running = runningBalance(event.aggregateId());
+        synchronized (running) {
+            if (!running.seeded || event.version() > running.pendingVersion + 1) {
+                // Cold start, or entries this cache has not seen may have been written elsewhere
+                seed(running, event.aggregateId());
             }
-            case FundsTransferredIn e -> {
-                var balanceAfter = getLatestBalance(e.aggregateId()).add(e.amount());
-                var doc = new TransactionLedgerDocument(
-                        e.eventId(), e.aggregateId(), "TRANSFER_IN",
-                        e.amount(), e.description(), e.sourceAccountId(),
-                        balanceAfter, e.occurredAt());
-                mongoTemplate.insert(doc, COLLECTION);
+            if (event.version() <= running.pendingVersion) {
+                log.debug("Skipping duplicate {} v{} for {}", event.getClass().getSimpleName(),
+                        event.version(), event.aggregateId());
+                return;
             }
-            case InterestAccrued e -> {
-                var balanceAfter = getLatestBalance(e.aggregateId()).add(e.amount());
-                var doc = new TransactionLedgerDocument(
-                        e.eventId(), e.aggregateId(), "INTEREST",
-                        e.amount(), "Interest accrued", null,
-                        balanceAfter, e.occurredAt());
-                mongoTemplate.insert(doc, COLLECTION);
+            if (event.version() > running.pendingVersion + 1) {
+                park(running, event);
+                return;
             }
-            case AccountClosed e -> {
-                var doc = new TransactionLedgerDocument(
-                        e.eventId(), e.aggregateId(), "CLOSING",
-                        BigDecimal.ZERO, "Account closed", null,
-                        BigDecimal.ZERO, e.occurredAt());
-                mongoTemplate.insert(doc, COLLECTION);
+            apply(running, event, batch);
+            AccountEvent next;
+            while ((next = running.parked.get(running.pendingVersion + 1)) != null) {
+                apply(running, next, batch);
+                running.parked.remove(next.version());
             }
+            running.parked.headMap(running.pendingVersion, true).clear();
+        }
+    }
+
+    private void park(RunningBalance running, AccountEvent event) {
+        if (running.parked.size() >= maxParked) {
+            // Their entries come back with the next rebuild
+            log.warn("Dropping {} ledger events of {} parked behind v{}", running.parked.size(),
+                    event.aggregateId(), running.pendingVersion + 1);
+            running.parked.clear();
+        }
+        log.debug("Parking out-of-order v{} for {} (ledger at v{})",
+                event.version(), event.aggregateId(), running.pendingVersion);
+        running.parked.put(event.version(), event);
+    }
+
+    private void apply(RunningBalance running, AccountEvent event, ProjectionBatch batch) {
+        var doc = switch (event) {
+            case AccountOpened e -> new TransactionLedgerDocument(
+                    e.eventId(), e.aggregateId(), e.version(), "OPENING",
+                    e.initialBalance(), "Account opened", null,
+                    e.initialBalance(), e.occurredAt());
+            case FundsDeposited e -> new TransactionLedgerDocument(
+                    e.eventId(), e.aggregateId(), e.version(), "DEPOSIT",
+                    e.amount(), e.description(), null,
+                    running.pendingBalance.add(e.amount()), e.occurredAt());
+            case FundsWithdrawn e -> new TransactionLedgerDocument(
+                    e.eventId(), e.aggregateId(), e.version(), "WITHDRAWAL",
+                    e.amount(), e.description(), null,
+                    running.pendingBalance.subtract(e.amount()), e.occurredAt());
+            case FundsTransferredOut e -> new TransactionLedgerDocument(
+                    e.eventId(), e.aggregateId(), e.version(), "TRANSFER_OUT",
+                    e.amount(), e.description(), e.targetAccountId(),
+                    running.pendingBalance.subtract(e.amount()), e.occurredAt());
+            case FundsTransferredIn e -> new TransactionLedgerDocument(
+                    e.eventId(), e.aggregateId(), e.version(), "TRANSFER_IN",
+                    e.amount(), e.description(), e.sourceAccountId(),
+                    running.pendingBalance.add(e.amount()), e.occurredAt());
+            case InterestAccrued e -> new TransactionLedgerDocument(
+                    e.eventId(), e.aggregateId(), e.version(), "INTEREST",
+                    e.amount(), "Interest accrued", null,
+                    running.pendingBalance.add(e.amount()), e.occurredAt());
+            case AccountClosed e -> new TransactionLedgerDocument(
+                    e.eventId(), e.aggregateId(), e.version(), "CLOSING",
+                    BigDecimal.ZERO, "Account closed", null,
+                    BigDecimal.ZERO, e.occurredAt());
+        };
+        // A redelivered entry is skipped by the batch; its balance is the one computed here
+        batch.insert(COLLECTION, doc);
+        running.pendingVersion = event.version();
+        running.pendingBalance = doc.balanceAfter();
+        batch.onFlush(() -> {
+            running.commit(doc.version(), doc.balanceAfter());
+            leaderboard.projected(event, doc.balanceAfter());
+        }, running::rollback);
+    }
+
+    public void reset() {
+        synchronized (balances) {
+            balances.clear();
         }
     }
 
-    private BigDecimal getLatestBalance(String accountId) {
+    private RunningBalance runningBalance(String accountId) {
+        synchronized (balances) {
+            return balances.computeIfAbsent(accountId, id -> new RunningBalance());
+        }
+    }
+
+    // Resume from the newest ledger entry of the account when it is ahead of the cache
+    private void seed(RunningBalance running, String accountId) {
         var query = Query.query(Criteria.where("accountId").is(accountId))
-                .with(Sort.by(Sort.Direction.DESC, "occurredAt"))
+                .with(Sort.by(Sort.Direction.DESC, "version"))
                 .limit(1);
-        var latest = mongoTemplate.findOne(query, TransactionLedgerDocument.class, COLLECTION);
-        return latest != null ? latest.balanceAfter() : BigDecimal.ZERO;
+        query.fields().include("version", "balanceAfter");
+        var latest = mongoTemplate.findOne(query, Document.class, COLLECTION);
+        if (latest != null && latest.get("version") instanceof Number version
+                && version.longValue() > running.pendingVersion) {
+            var balance = latest.get("balanceAfter", Decimal128.class).bigDecimalValue();
+            running.version = running.pendingVersion = version.longValue();
+            running.balance = running.pendingBalance = balance;
+        }
+        running.seeded = true;
+    }
+
+    /**
+     * The balance after {@code version}, the last entry known to be stored, and after
+     * {@code pendingVersion}, the last entry handed to a batch that has not flushed yet.
+     */
+    private static final class RunningBalance {
+        private final TreeMap<Long, AccountEvent> parked = new TreeMap<>();
+        private boolean seeded;
+        private long version;
+        private BigDecimal balance = BigDecimal.ZERO;
+        private long pendingVersion;
+        private BigDecimal pendingBalance = BigDecimal.ZERO;
+
+        synchronized void commit(long version, BigDecimal balance) {
+            if (version > this.version) {
+                this.version = version;
+                this.balance = balance;
+            }
+        }
+
+        synchronized void rollback() {
+            pendingVersion = version;
+            pendingBalance = balance;
+        }
     }
 }
@@ -0,0 +1,5 @@
+package com.mongodb.course.m19.shared;
+
+public interface AggregateSnapshot {
+    long version();
+}
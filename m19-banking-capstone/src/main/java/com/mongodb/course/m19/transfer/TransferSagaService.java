@@ -1,7 +1,9 @@
 package com.mongodb.course.m19.transfer;
 
 import com.mongodb.course.m19.infrastructure.saga.SagaContext;
+import com.mongodb.course.m19.infrastructure.saga.SagaGraph;
 import com.mongodb.course.m19.infrastructure.saga.SagaOrchestrator;
+import com.mongodb.course.m19.infrastructure.saga.SagaRecoveryService;
 import com.mongodb.course.m19.infrastructure.saga.SagaStep;
 import com.mongodb.course.m19.transfer.step.CreditTargetAccountStep;
 import com.mongodb.course.m19.transfer.step.DebitSourceAccountStep;
@@ -11,10 +13,13 @@ import org.springframework.stereotype.Service;
 import java.math.BigDecimal;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 @Service
 public class TransferSagaService {
 
+    private static final String SAGA_TYPE = "FUND_TRANSFER";
+
     private final SagaOrchestrator orchestrator;
     private final DebitSourceAccountStep debitStep;
     private final CreditTargetAccountStep creditStep;
@@ -23,21 +28,32 @@ public class TransferSagaService {
     public TransferSagaService(SagaOrchestrator orchestrator,
                                DebitSourceAccountStep debitStep,
                                CreditTargetAccountStep creditStep,
-                               RecordTransferStep recordStep) {
+                               RecordTransferStep recordStep,
+                               SagaRecoveryService recoveryService) {
         this.orchestrator = orchestrator;
         this.debitStep = debitStep;
         this.creditStep = creditStep;
         this.recordStep = recordStep;
+        recoveryService.register(SAGA_TYPE, SagaGraph.linear(steps()));
     }
 
     public String transfer(String sourceAccountId, String targetAccountId, BigDecimal amount) {
-        var context = new SagaContext(Map.of(
+        return orchestrator.execute(SAGA_TYPE, steps(), context(sourceAccountId, targetAccountId, amount));
+    }
+
+    public CompletableFuture<String> transferAsync(String sourceAccountId, String targetAccountId, BigDecimal amount) {
+        return orchestrator.executeAsync(SAGA_TYPE, steps(), context(sourceAccountId, targetAccountId, amount));
+    }
+
+    private List<SagaStep> steps() {
+        return List.of(debitStep, creditStep, recordStep);
+    }
+
+    private static SagaContext context(String sourceAccountId, String targetAccountId, BigDecimal amount) {
+        return new SagaContext(Map.of(
                 "sourceAccountId", sourceAccountId,
                 "targetAccountId", targetAccountId,
                 "amount", amount.toPlainString()
         ));
-
-        List<SagaStep> steps = List.of(debitStep, creditStep, recordStep);
-        return orchestrator.execute("FUND_TRANSFER", steps, context);
     }
 }
@@ -1,35 +1,22 @@
 package com.mongodb.course.m19.transfer.step;
 
-import com.mongodb.course.m19.account.event.AccountEvent;
-import com.mongodb.course.m19.account.event.FundsDeposited;
 import com.mongodb.course.m19.account.model.BankAccount;
-import com.mongodb.course.m19.infrastructure.EventStore;
+import com.mongodb.course.m19.account.service.AccountCommandService;
 import com.mongodb.course.m19.infrastructure.saga.SagaContext;
 import com.mongodb.course.m19.infrastructure.saga.SagaStep;
-import com.mongodb.course.m19.projection.AccountSummaryProjector;
-import com.mongodb.course.m19.projection.TransactionLedgerProjector;
 import org.springframework.stereotype.Component;
 
 import java.math.BigDecimal;
-import java.time.Instant;
-import java.util.List;
-import java.util.UUID;
 
 @Component
 public class DebitSourceAccountStep implements SagaStep {
 
-    private static final String ACCOUNT_EVENTS = "m19_account_events";
+    private static final String SOURCE_ACCOUNT = "sourceAccount";
 
-    private final EventStore eventStore;
-    private final AccountSummaryProjector summaryProjector;
-    private final TransactionLedgerProjector ledgerProjector;
+    private final AccountCommandService accountCommandService;
 
-    public DebitSourceAccountStep(EventStore eventStore,
-                                  AccountSummaryProjector summaryProjector,
-                                  TransactionLedgerProjector ledgerProjector) {
-        this.eventStore = eventStore;
-        this.summaryProjector = summaryProjector;
-        this.ledgerProjector = ledgerProjector;
+    public DebitSourceAccountStep(AccountCommandService accountCommandService) {
+        this.accountCommandService = accountCommandService;
     }
 
     @Override
@@ -43,19 +30,9 @@ public class DebitSourceAccountStep implements SagaStep {
         String targetAccountId = context.get("targetAccountId", String.class);
         BigDecimal amount = new BigDecimal(context.get("amount", String.class));
 
-        var events = eventStore.loadEvents(sourceAccountId, AccountEvent.class, ACCOUNT_EVENTS);
-        var account = BankAccount.replayFrom(events);
-
-        account.transferOut(amount, targetAccountId, "Transfer to " + targetAccountId);
-
-        var uncommitted = List.copyOf(account.getUncommittedEvents());
-        account.clearUncommittedEvents();
-        eventStore.appendAll(uncommitted, ACCOUNT_EVENTS);
-
-        for (var event : uncommitted) {
-            summaryProjector.project(event);
-            ledgerProjector.project(event);
-        }
+        var account = accountCommandService.transferOut(accountCommandService.loadAccount(sourceAccountId),
+                amount, targetAccountId, "Transfer to " + targetAccountId, context.stepKey(name()));
+        context.attach(SOURCE_ACCOUNT, account);
     }
 
     @Override
@@ -63,18 +40,13 @@ public class DebitSourceAccountStep implements SagaStep {
         String sourceAccountId = context.get("sourceAccountId", String.class);
         BigDecimal amount = new BigDecimal(context.get("amount", String.class));
 
-        var events = eventStore.loadEvents(sourceAccountId, AccountEvent.class, ACCOUNT_EVENTS);
-        var account = BankAccount.replayFrom(events);
-
-        account.deposit(amount, "Reversal: transfer compensation");
-
-        var uncommitted = List.copyOf(account.getUncommittedEvents());
-        account.clearUncommittedEvents();
-        eventStore.appendAll(uncommitted, ACCOUNT_EVENTS);
-
-        for (var event : uncommitted) {
-            summaryProjector.project(event);
-            ledgerProjector.project(event);
+        var account = context.attachment(SOURCE_ACCOUNT, BankAccount.class);
+        if (account == null) {
+            // Resumed after a crash: nothing was attached in this process
+            account = accountCommandService.loadAccount(sourceAccountId);
         }
+        context.attach(SOURCE_ACCOUNT,
+                accountCommandService.deposit(account, amount, "Reversal: transfer compensation",
+                        context.stepKey(name() + ":compensate")));
     }
 }
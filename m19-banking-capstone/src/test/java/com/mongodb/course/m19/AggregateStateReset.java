@@ -0,0 +1,33 @@
+package com.mongodb.course.m19;
+
+import com.mongodb.course.m19.account.service.AccountCommandService;
+import com.mongodb.course.m19.infrastructure.Snapshotter;
+import com.mongodb.course.m19.projection.ProjectionPipeline;
+import org.springframework.boot.test.context.TestComponent;
+
+/**
+ * Clears in-memory state keyed by aggregate id. Tests delete event streams between cases and
+ * reuse ids, which production never does, so they reset this state alongside the collections.
+ * Call it before deleting them, so snapshot writes still queued land first.
+ */
+@TestComponent
+public class AggregateStateReset {
+
+    private final AccountCommandService accountCommandService;
+    private final Snapshotter snapshotter;
+    private final ProjectionPipeline projectionPipeline;
+
+    public AggregateStateReset(AccountCommandService accountCommandService, Snapshotter snapshotter,
+                               ProjectionPipeline projectionPipeline) {
+        this.accountCommandService = accountCommandService;
+        this.snapshotter = snapshotter;
+        this.projectionPipeline = projectionPipeline;
+    }
+
+    public void reset() {
+        accountCommandService.clearCache();
+        snapshotter.flush();
+        snapshotter.reset();
+        projectionPipeline.forgetProgress();
+    }
+}
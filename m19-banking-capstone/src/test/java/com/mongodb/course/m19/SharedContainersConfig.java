@@ -3,9 +3,11 @@ package com.mongodb.course.m19;
 import org.springframework.boot.test.context.TestConfiguration;
 import org.springframework.boot.testcontainers.service.connection.ServiceConnection;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
 import org.testcontainers.containers.MongoDBContainer;
 
 @TestConfiguration(proxyBeanMethods = false)
+@Import(AggregateStateReset.class)
 public class SharedContainersConfig {
 
     private static final MongoDBContainer mongodb = new MongoDBContainer("mongo:8.0");
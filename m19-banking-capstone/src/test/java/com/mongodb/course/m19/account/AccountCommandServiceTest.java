@@ -1,19 +1,35 @@
 package com.mongodb.course.m19.account;
 
+import com.mongodb.course.m19.AggregateStateReset;
 import com.mongodb.course.m19.SharedContainersConfig;
+import com.mongodb.course.m19.account.model.BankAccount;
+import com.mongodb.course.m19.account.model.BankAccountSnapshot;
 import com.mongodb.course.m19.account.service.AccountCommandService;
+import com.mongodb.course.m19.infrastructure.AppendResult;
 import com.mongodb.course.m19.infrastructure.EventStore;
+import com.mongodb.course.m19.infrastructure.Snapshotter;
 import com.mongodb.course.m19.account.event.AccountEvent;
+import com.mongodb.course.m19.account.event.FundsDeposited;
 import com.mongodb.course.m19.projection.DashboardQueryService;
+import org.bson.Document;
+import org.bson.types.Decimal128;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.context.annotation.Import;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 
 import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
@@ -28,14 +44,21 @@ class AccountCommandServiceTest {
     @Autowired
     private EventStore eventStore;
 
+    @Autowired
+    private Snapshotter snapshotter;
+
     @Autowired
     private DashboardQueryService dashboardQueryService;
 
     @Autowired
     private MongoTemplate mongoTemplate;
 
+    @Autowired
+    private AggregateStateReset aggregateStateReset;
+
     @BeforeEach
     void cleanUp() {
+        aggregateStateReset.reset();
         mongoTemplate.remove(new Query(), "m19_account_events");
         mongoTemplate.remove(new Query(), "m19_snapshots");
         mongoTemplate.remove(new Query(), "m19_account_summaries");
@@ -88,4 +111,188 @@ class AccountCommandServiceTest {
         assertThat(summary.closed()).isTrue();
         assertThat(summary.totalInterestEarned()).isEqualByComparingTo(new BigDecimal("500"));
     }
+
+    @Test
+    void concurrentDepositsOnSameAccountAreRetried() throws Exception {
+        accountCommandService.openAccount("ACC-T04", "陳小美", new BigDecimal("1000"), "TWD");
+
+        int threadCount = 4;
+        var executor = Executors.newFixedThreadPool(threadCount);
+        var latch = new CountDownLatch(threadCount);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            futures.add(executor.submit(() -> {
+                latch.countDown();
+                latch.await();
+                return accountCommandService.deposit("ACC-T04", new BigDecimal("100"), "並行存款");
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        var account = accountCommandService.loadAccount("ACC-T04");
+        assertThat(account.getBalance()).isEqualByComparingTo(new BigDecimal("1400"));
+        assertThat(account.getVersion()).isEqualTo(5);
+    }
+
+    @Test
+    void appendWithStaleExpectedVersionReturnsConflict() {
+        accountCommandService.openAccount("ACC-T05", "林大同", new BigDecimal("1000"), "TWD");
+        accountCommandService.deposit("ACC-T05", new BigDecimal("100"), "存款");
+
+        var stale = new FundsDeposited(UUID.randomUUID().toString(), "ACC-T05", 2, Instant.now(),
+                new BigDecimal("50"), "過期版本");
+        var result = eventStore.append("ACC-T05", 1, List.of(stale), "m19_account_events");
+
+        assertThat(result).isEqualTo(new AppendResult.Conflict("ACC-T05", 1, 2));
+    }
+
+    @Test
+    void repeatedCommandsHitAggregateCacheAndSeeExternalAppends() {
+        accountCommandService.openAccount("ACC-T06", "黃小華", new BigDecimal("1000"), "TWD");
+        var before = accountCommandService.cacheStats();
+
+        accountCommandService.deposit("ACC-T06", new BigDecimal("100"), "存款");
+        var external = new FundsDeposited(UUID.randomUUID().toString(), "ACC-T06", 3, Instant.now(),
+                new BigDecimal("50"), "外部寫入");
+        eventStore.append("ACC-T06", 2, List.of(external), "m19_account_events");
+        var account = accountCommandService.loadAccount("ACC-T06");
+
+        var after = accountCommandService.cacheStats();
+        assertThat(after.hits() - before.hits()).isEqualTo(2);
+        assertThat(after.misses()).isEqualTo(before.misses());
+        assertThat(account.getVersion()).isEqualTo(3);
+        assertThat(account.getBalance()).isEqualByComparingTo(new BigDecimal("1150"));
+    }
+
+    @Test
+    void loadSnapshotAndTailReturnsLatestSnapshotAndLaterEvents() {
+        accountCommandService.openAccount("ACC-T07", "周小芳", new BigDecimal("1000"), "TWD");
+        var beforeSnapshot = eventStore.loadSnapshotAndTail(
+                "ACC-T07", "BankAccount", AccountEvent.class, "m19_account_events");
+        assertThat(beforeSnapshot.snapshot()).isEmpty();
+        assertThat(beforeSnapshot.events()).hasSize(1);
+
+        for (int i = 0; i < 11; i++) {
+            accountCommandService.deposit("ACC-T07", new BigDecimal("10"), "存款");
+        }
+        snapshotter.flush();
+
+        var loaded = eventStore.loadSnapshotAndTail(
+                "ACC-T07", "BankAccount", AccountEvent.class, "m19_account_events");
+        assertThat(loaded.snapshot()).isPresent();
+        assertThat(loaded.snapshot().get().version()).isEqualTo(10);
+        assertThat(loaded.events()).extracting(AccountEvent::version).containsExactly(11L, 12L);
+    }
+
+    @Test
+    void catchUpSnapshotsAggregatesWithLongTails() {
+        accountCommandService.openAccount("ACC-T08", "吳小強", new BigDecimal("1000"), "TWD");
+        var deposits = new ArrayList<AccountEvent>();
+        for (long version = 2; version <= 13; version++) {
+            deposits.add(new FundsDeposited(UUID.randomUUID().toString(), "ACC-T08", version, Instant.now(),
+                    new BigDecimal("10"), "批次入帳"));
+        }
+        eventStore.append("ACC-T08", 1, deposits, "m19_account_events");
+
+        int written = snapshotter.catchUp();
+
+        assertThat(written).isEqualTo(1);
+        var loaded = eventStore.loadSnapshotAndTail(
+                "ACC-T08", "BankAccount", AccountEvent.class, "m19_account_events");
+        assertThat(loaded.snapshot()).isPresent();
+        assertThat(loaded.snapshot().get().version()).isEqualTo(13);
+        assertThat(loaded.events()).isEmpty();
+    }
+
+    @Test
+    void snapshotsStoreTypedDecimalFields() {
+        accountCommandService.openAccount("ACC-T09", "鄭小玲", new BigDecimal("1000.50"), "TWD");
+        for (int i = 0; i < 9; i++) {
+            accountCommandService.deposit("ACC-T09", new BigDecimal("10"), "存款");
+        }
+        snapshotter.flush();
+
+        var raw = mongoTemplate.findOne(Query.query(Criteria.where("aggregateId").is("ACC-T09")),
+                Document.class, "m19_snapshots");
+        assertThat(raw).isNotNull();
+        var state = raw.get("state", Document.class);
+        assertThat(state.get("balance")).isInstanceOf(Decimal128.class);
+        assertThat(state.get("version")).isInstanceOf(Long.class);
+
+        var reloaded = BankAccount.fromSnapshot(
+                (BankAccountSnapshot) eventStore.loadLatestSnapshot("ACC-T09", "BankAccount").orElseThrow().state());
+        assertThat(reloaded.getBalance()).isEqualByComparingTo(new BigDecimal("1090.50"));
+        assertThat(reloaded.getVersion()).isEqualTo(10);
+    }
+
+    @Test
+    void snapshotStatsMeasureSizeAndDecodeTime() {
+        var before = eventStore.snapshotStats();
+        accountCommandService.openAccount("ACC-T10", "周小安", new BigDecimal("300"), "TWD");
+        for (int i = 0; i < 9; i++) {
+            accountCommandService.deposit("ACC-T10", new BigDecimal("10"), "存款");
+        }
+        snapshotter.flush();
+        eventStore.loadSnapshotAndTail("ACC-T10", "BankAccount", AccountEvent.class, "m19_account_events");
+
+        var after = eventStore.snapshotStats();
+        assertThat(after.written()).isGreaterThan(before.written());
+        assertThat(after.writtenBytes()).isGreaterThan(before.writtenBytes());
+        assertThat(after.decoded()).isGreaterThan(before.decoded());
+        assertThat(after.decodeNanos()).isGreaterThan(before.decodeNanos());
+    }
+
+    @Test
+    void untypedSnapshotIsReplayedPast() {
+        accountCommandService.openAccount("ACC-T11", "吳小婷", new BigDecimal("200"), "TWD");
+        accountCommandService.deposit("ACC-T11", new BigDecimal("50"), "存款");
+        mongoTemplate.insert(new Document("_id", UUID.randomUUID().toString())
+                .append("aggregateId", "ACC-T11")
+                .append("aggregateType", "BankAccount")
+                .append("version", 2L)
+                .append("createdAt", Instant.now())
+                .append("state", new Document("accountId", "ACC-T11").append("balance", "250")), "m19_snapshots");
+
+        var loaded = eventStore.loadSnapshotAndTail(
+                "ACC-T11", "BankAccount", AccountEvent.class, "m19_account_events");
+
+        assertThat(loaded.snapshot()).isEmpty();
+        assertThat(loaded.events()).extracting(AccountEvent::version).containsExactly(1L, 2L);
+    }
+
+    @Test
+    void tailLongerThanLookupLimitIsReadByCursor() {
+        accountCommandService.openAccount("ACC-T12", "林小宇", new BigDecimal("0"), "TWD");
+        var deposits = new ArrayList<AccountEvent>();
+        for (long version = 2; version <= 1_200; version++) {
+            deposits.add(new FundsDeposited(UUID.randomUUID().toString(), "ACC-T12", version, Instant.now(),
+                    new BigDecimal("1"), "小額入帳"));
+        }
+        eventStore.append("ACC-T12", 1, deposits, "m19_account_events");
+        mongoTemplate.remove(new Query(), "m19_snapshots");
+
+        var loaded = eventStore.loadSnapshotAndTail(
+                "ACC-T12", "BankAccount", AccountEvent.class, "m19_account_events");
+
+        assertThat(loaded.snapshot()).isEmpty();
+        assertThat(loaded.events()).hasSize(1_200);
+        assertThat(loaded.events().getLast().version()).isEqualTo(1_200);
+    }
+
+    @Test
+    void commandWithRecordedEventIdIsAppliedOnce() {
+        accountCommandService.openAccount("ACC-T13", "許小華", new BigDecimal("1000"), "TWD");
+
+        accountCommandService.transferOut(accountCommandService.loadAccount("ACC-T13"), new BigDecimal("300"),
+                "ACC-T14", "轉帳", "saga-1:DEBIT_SOURCE");
+        var repeated = accountCommandService.transferOut(accountCommandService.loadAccount("ACC-T13"),
+                new BigDecimal("300"), "ACC-T14", "轉帳", "saga-1:DEBIT_SOURCE");
+
+        assertThat(repeated.getBalance()).isEqualByComparingTo(new BigDecimal("700"));
+        assertThat(eventStore.countEvents("ACC-T13", "m19_account_events")).isEqualTo(2);
+        assertThat(eventStore.containsEvent("ACC-T13", "saga-1:DEBIT_SOURCE", "m19_account_events")).isTrue();
+    }
 }
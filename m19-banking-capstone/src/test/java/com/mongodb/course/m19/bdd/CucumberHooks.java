@@ -1,7 +1,9 @@
 package com.mongodb.course.m19.bdd;
 
+import com.mongodb.course.m19.AggregateStateReset;
 import com.mongodb.course.m19.notification.TransferNotificationListener;
 import com.mongodb.course.m19.observability.SlowQueryDetector;
+import com.mongodb.course.m19.projection.BalanceLeaderboard;
 import io.cucumber.java.Before;
 import io.cucumber.java.After;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -13,9 +15,12 @@ public class CucumberHooks {
     @Autowired private MongoTemplate mongoTemplate;
     @Autowired private SlowQueryDetector slowQueryDetector;
     @Autowired private TransferNotificationListener notificationListener;
+    @Autowired private BalanceLeaderboard balanceLeaderboard;
+    @Autowired private AggregateStateReset aggregateStateReset;
 
     @Before
     public void cleanUp() {
+        aggregateStateReset.reset();
         mongoTemplate.remove(new Query(), "m19_account_events");
         mongoTemplate.remove(new Query(), "m19_snapshots");
         mongoTemplate.remove(new Query(), "m19_account_summaries");
@@ -25,6 +30,7 @@ public class CucumberHooks {
         mongoTemplate.remove(new Query(), "m19_loan_applications");
         slowQueryDetector.clear();
         notificationListener.clear();
+        balanceLeaderboard.invalidate();
     }
 
     @After
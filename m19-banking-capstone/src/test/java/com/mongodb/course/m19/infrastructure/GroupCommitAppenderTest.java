@@ -0,0 +1,120 @@
+package com.mongodb.course.m19.infrastructure;
+
+import com.mongodb.course.m19.SharedContainersConfig;
+import com.mongodb.course.m19.account.event.AccountEvent;
+import com.mongodb.course.m19.account.event.AccountOpened;
+import com.mongodb.course.m19.account.event.FundsDeposited;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+@SpringBootTest
+@Import(SharedContainersConfig.class)
+class GroupCommitAppenderTest {
+
+    private static final String ACCOUNT_EVENTS = "m19_account_events";
+
+    @Autowired
+    private GroupCommitAppender appender;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @BeforeEach
+    void cleanUp() {
+        mongoTemplate.remove(new Query(), ACCOUNT_EVENTS);
+    }
+
+    @Test
+    void concurrentAppendsAreAllPersisted() throws Exception {
+        int threadCount = 20;
+        var executor = Executors.newFixedThreadPool(threadCount);
+        var latch = new CountDownLatch(threadCount);
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            String accountId = "ACC-GC" + i;
+            futures.add(executor.submit(() -> {
+                latch.countDown();
+                latch.await();
+                appender.append(List.of(opened(accountId), deposited(accountId, 2)), ACCOUNT_EVENTS);
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        assertThat(mongoTemplate.count(new Query(), ACCOUNT_EVENTS)).isEqualTo(threadCount * 2L);
+    }
+
+    @Test
+    void duplicateVersionIsReportedOnlyToConflictingCaller() throws Exception {
+        appender.append(List.of(opened("ACC-GC-DUP")), ACCOUNT_EVENTS);
+
+        int threadCount = 10;
+        var executor = Executors.newFixedThreadPool(threadCount);
+        var latch = new CountDownLatch(threadCount);
+        var conflicts = new AtomicInteger();
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            futures.add(executor.submit(() -> {
+                latch.countDown();
+                latch.await();
+                try {
+                    appender.append(List.of(deposited("ACC-GC-DUP", 2)), ACCOUNT_EVENTS);
+                } catch (DuplicateKeyException e) {
+                    conflicts.incrementAndGet();
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        assertThat(conflicts.get()).isEqualTo(threadCount - 1);
+        assertThat(mongoTemplate.count(new Query(), ACCOUNT_EVENTS)).isEqualTo(2);
+    }
+
+    @Test
+    void duplicateMessageIdentifiesAggregateAndVersion() {
+        appender.append(List.of(opened("ACC-GC-MSG")), ACCOUNT_EVENTS);
+
+        assertThatThrownBy(() -> appender.append(List.of(opened("ACC-GC-MSG")), ACCOUNT_EVENTS))
+                .isInstanceOf(DuplicateKeyException.class)
+                .hasMessageContaining("aggregateId=ACC-GC-MSG")
+                .hasMessageContaining("version=1");
+    }
+
+    private AccountEvent opened(String accountId) {
+        return new AccountOpened(UUID.randomUUID().toString(), accountId, 1, Instant.now(),
+                "Tester", new BigDecimal("1000"), "TWD");
+    }
+
+    private AccountEvent deposited(String accountId, long version) {
+        return new FundsDeposited(UUID.randomUUID().toString(), accountId, version, Instant.now(),
+                new BigDecimal("100"), "Deposit");
+    }
+}
@@ -0,0 +1,69 @@
+package com.mongodb.course.m19.infrastructure;
+
+import com.mongodb.course.m19.SharedContainersConfig;
+import com.mongodb.course.m19.account.model.BankAccountSnapshot;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest(properties = "snapshot.retention.keep=3")
+@Import(SharedContainersConfig.class)
+class SnapshotPrunerTest {
+
+    private static final String SNAPSHOTS = "m19_snapshots";
+
+    @Autowired
+    private SnapshotPruner snapshotPruner;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @BeforeEach
+    void cleanUp() {
+        mongoTemplate.remove(new Query(), SNAPSHOTS);
+    }
+
+    @Test
+    void snapshotLookupIndexExists() {
+        var indexNames = mongoTemplate.indexOps(SNAPSHOTS).getIndexInfo().stream()
+                .map(IndexInfo::getName)
+                .toList();
+
+        assertThat(indexNames).contains("aggregateId_1_aggregateType_1_version_-1");
+    }
+
+    @Test
+    void pruneKeepsNewestSnapshotsPerAggregate() {
+        for (long version = 10; version <= 50; version += 10) {
+            insertSnapshot("ACC-SP1", version);
+        }
+        insertSnapshot("ACC-SP2", 10);
+
+        long deleted = snapshotPruner.prune("ACC-SP1", "BankAccount");
+
+        assertThat(deleted).isEqualTo(2);
+        var remaining = mongoTemplate.findAll(SnapshotDocument.class).stream()
+                .filter(s -> s.aggregateId().equals("ACC-SP1"))
+                .map(SnapshotDocument::version)
+                .toList();
+        assertThat(remaining).containsExactlyInAnyOrder(30L, 40L, 50L);
+        assertThat(mongoTemplate.count(new Query(), SNAPSHOTS)).isEqualTo(4);
+    }
+
+    private void insertSnapshot(String aggregateId, long version) {
+        mongoTemplate.insert(new SnapshotDocument(UUID.randomUUID().toString(), aggregateId, "BankAccount",
+                version, Instant.now(),
+                new BankAccountSnapshot(aggregateId, "Tester", BigDecimal.TEN, "TWD", version, false)));
+    }
+}
@@ -0,0 +1,322 @@
+package com.mongodb.course.m19.infrastructure.saga;
+
+import com.mongodb.course.m19.SharedContainersConfig;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+@SpringBootTest
+@Import(SharedContainersConfig.class)
+class SagaOrchestratorTest {
+
+    @Autowired private SagaLogRepository sagaLogRepository;
+    @Autowired private MongoTemplate mongoTemplate;
+
+    private final List<SagaLog> observed = new ArrayList<>();
+
+    @BeforeEach
+    void cleanUp() {
+        mongoTemplate.remove(new Query(), "m19_transfer_saga_logs");
+        observed.clear();
+    }
+
+    @Test
+    void stepDurabilityPersistsEachStepWithItsContext() {
+        var orchestrator = orchestrator(SagaDurability.STEP, 64, 1000);
+
+        String sagaId = orchestrator.execute("TEST", List.of(new MarkStep("first"), new ObserveStep()),
+                new SagaContext());
+
+        var seen = observed.getFirst();
+        assertThat(seen.status()).isEqualTo(SagaStatus.RUNNING);
+        assertThat(seen.steps().getFirst().status()).isEqualTo("SUCCEEDED");
+        assertThat(seen.context()).containsEntry("first", "done");
+        assertThat(sagaLogRepository.findById(sagaId).orElseThrow().status()).isEqualTo(SagaStatus.COMPLETED);
+    }
+
+    @Test
+    void checkpointDurabilityBuffersStepsUntilStatusChanges() {
+        var orchestrator = orchestrator(SagaDurability.CHECKPOINT, 64, 1000);
+
+        String sagaId = orchestrator.execute("TEST", List.of(new MarkStep("first"), new ObserveStep()),
+                new SagaContext());
+
+        var seen = observed.getFirst();
+        assertThat(seen.status()).isEqualTo(SagaStatus.RUNNING);
+        assertThat(seen.steps().getFirst().status()).isEqualTo("PENDING");
+        assertThat(seen.context()).doesNotContainKey("first");
+
+        var sagaLog = sagaLogRepository.findById(sagaId).orElseThrow();
+        assertThat(sagaLog.status()).isEqualTo(SagaStatus.COMPLETED);
+        assertThat(sagaLog.currentStepIndex()).isEqualTo(1);
+        assertThat(sagaLog.steps()).extracting(StepLog::status).containsExactly("SUCCEEDED", "SUCCEEDED");
+        assertThat(sagaLog.context()).containsEntry("first", "done");
+    }
+
+    @Test
+    void checkpointDurabilityRecordsFailureAndCompensation() {
+        var orchestrator = orchestrator(SagaDurability.CHECKPOINT, 64, 1000);
+
+        String sagaId = orchestrator.execute("TEST", List.of(new MarkStep("first"), new FailingStep()),
+                new SagaContext(Map.of()));
+
+        var sagaLog = sagaLogRepository.findById(sagaId).orElseThrow();
+        assertThat(sagaLog.status()).isEqualTo(SagaStatus.COMPENSATED);
+        assertThat(sagaLog.failureReason()).isEqualTo("boom");
+        assertThat(sagaLog.completedAt()).isNotNull();
+        assertThat(sagaLog.steps()).extracting(StepLog::status).containsExactly("COMPENSATED", "FAILED");
+    }
+
+    @Test
+    void asyncExecutionQueuesBeyondConcurrencyLimitAndRejectsBeyondQueue() throws Exception {
+        var orchestrator = orchestrator(SagaDurability.STEP, 1, 1);
+        var release = new CountDownLatch(1);
+        var started = new CountDownLatch(1);
+        List<SagaStep> steps = List.of(new BlockingStep(started, release));
+
+        var first = orchestrator.executeAsync("TEST", steps, new SagaContext());
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+        var second = orchestrator.executeAsync("TEST", steps, new SagaContext());
+        var third = orchestrator.executeAsync("TEST", steps, new SagaContext());
+
+        assertThat(third).isCompletedExceptionally();
+        assertThat(orchestrator.asyncStats()).isEqualTo(new SagaOrchestrator.AsyncStats(1, 1, 1));
+
+        release.countDown();
+        var firstLog = sagaLogRepository.findById(first.get(5, TimeUnit.SECONDS)).orElseThrow();
+        var secondLog = sagaLogRepository.findById(second.get(5, TimeUnit.SECONDS)).orElseThrow();
+        assertThat(firstLog.status()).isEqualTo(SagaStatus.COMPLETED);
+        assertThat(secondLog.status()).isEqualTo(SagaStatus.COMPLETED);
+        assertThat(orchestrator.asyncStats()).isEqualTo(new SagaOrchestrator.AsyncStats(0, 0, 1));
+        orchestrator.shutdown();
+    }
+
+    @Test
+    void independentStepsRunConcurrently() {
+        var orchestrator = orchestrator(SagaDurability.STEP, 64, 1000);
+        // Each step waits for the other to start, so they only finish when run side by side
+        var rendezvous = new CountDownLatch(2);
+        var left = new RendezvousStep("left", rendezvous);
+        var right = new RendezvousStep("right", rendezvous);
+        var graph = new SagaGraph()
+                .step(left)
+                .step(right)
+                .step(new MarkStep("after"), left, right);
+
+        String sagaId = orchestrator.execute("TEST", graph, new SagaContext());
+
+        var sagaLog = sagaLogRepository.findById(sagaId).orElseThrow();
+        assertThat(sagaLog.status()).isEqualTo(SagaStatus.COMPLETED);
+        assertThat(sagaLog.steps()).extracting(StepLog::status).containsOnly("SUCCEEDED");
+        assertThat(sagaLog.context()).containsEntry("after", "done");
+    }
+
+    @Test
+    void failureCompensatesInReverseTopologicalOrder() {
+        var orchestrator = orchestrator(SagaDurability.STEP, 64, 1000);
+        var compensated = Collections.synchronizedList(new ArrayList<String>());
+        var first = new RecordingStep("first", compensated);
+        var second = new RecordingStep("second", compensated);
+        var third = new RecordingStep("third", compensated);
+        var failing = new FailingStep();
+        var graph = new SagaGraph()
+                .step(first)
+                .step(second, first)
+                .step(third, first)
+                .step(failing, second, third)
+                .step(new MarkStep("never"), failing);
+
+        String sagaId = orchestrator.execute("TEST", graph, new SagaContext());
+
+        var sagaLog = sagaLogRepository.findById(sagaId).orElseThrow();
+        assertThat(sagaLog.status()).isEqualTo(SagaStatus.COMPENSATED);
+        assertThat(compensated).containsExactly("third", "second", "first");
+        assertThat(sagaLog.steps()).extracting(StepLog::status)
+                .containsExactly("COMPENSATED", "COMPENSATED", "COMPENSATED", "FAILED", "PENDING");
+    }
+
+    @Test
+    void lostLeaseStopsTheSaga() {
+        var orchestrator = orchestrator(SagaDurability.STEP, 64, 1000);
+        var context = new SagaContext();
+
+        assertThatThrownBy(() -> orchestrator.execute("TEST",
+                List.of(new TakeOverStep(), new MarkStep("after")), context))
+                .isInstanceOf(SagaLeaseLostException.class);
+
+        assertThat(context.toMap()).doesNotContainKey("after");
+        var sagaLog = sagaLogRepository.findById(context.get("sagaId", String.class)).orElseThrow();
+        assertThat(sagaLog.status()).isEqualTo(SagaStatus.RUNNING);
+        assertThat(sagaLog.leaseOwner()).isEqualTo("other-node");
+    }
+
+    @Test
+    void leaseIsRenewedWhileAStepRuns() {
+        var shortLease = new SagaLogRepository(mongoTemplate, "lease-test-node", 300);
+        var orchestrator = new SagaOrchestrator(shortLease, SagaDurability.STEP, 64, 1000);
+        var staleSeen = Collections.synchronizedList(new ArrayList<String>());
+        var context = new SagaContext();
+
+        orchestrator.execute("TEST", List.of(new StaleCheckStep(shortLease, staleSeen)), context);
+
+        assertThat(staleSeen).doesNotContain(context.get("sagaId", String.class));
+        assertThat(shortLease.findById(context.get("sagaId", String.class)).orElseThrow().status())
+                .isEqualTo(SagaStatus.COMPLETED);
+    }
+
+    private SagaOrchestrator orchestrator(SagaDurability durability, int maxConcurrency, int queueCapacity) {
+        return new SagaOrchestrator(sagaLogRepository, durability, maxConcurrency, queueCapacity);
+    }
+
+    private record BlockingStep(CountDownLatch started, CountDownLatch release) implements SagaStep {
+        @Override
+        public String name() {
+            return "block";
+        }
+
+        @Override
+        public void execute(SagaContext context) {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void compensate(SagaContext context) {
+        }
+    }
+
+    private record RendezvousStep(String name, CountDownLatch rendezvous) implements SagaStep {
+        @Override
+        public void execute(SagaContext context) {
+            rendezvous.countDown();
+            try {
+                if (!rendezvous.await(5, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException(name + " ran alone");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void compensate(SagaContext context) {
+        }
+    }
+
+    private record RecordingStep(String name, List<String> compensated) implements SagaStep {
+        @Override
+        public void execute(SagaContext context) {
+        }
+
+        @Override
+        public void compensate(SagaContext context) {
+            compensated.add(name);
+        }
+    }
+
+    private record StaleCheckStep(SagaLogRepository repository, List<String> staleSeen) implements SagaStep {
+        @Override
+        public String name() {
+            return "stale-check";
+        }
+
+        @Override
+        public void execute(SagaContext context) {
+            try {
+                // Well past the initial lease, which only the heartbeat keeps alive
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            staleSeen.addAll(repository.findStale(10));
+        }
+
+        @Override
+        public void compensate(SagaContext context) {
+        }
+    }
+
+    private record MarkStep(String name) implements SagaStep {
+        @Override
+        public void execute(SagaContext context) {
+            context.put(name, "done");
+        }
+
+        @Override
+        public void compensate(SagaContext context) {
+            context.put(name, "undone");
+        }
+    }
+
+    private class TakeOverStep implements SagaStep {
+        @Override
+        public String name() {
+            return "take-over";
+        }
+
+        @Override
+        public void execute(SagaContext context) {
+            mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(context.get("sagaId", String.class))),
+                    new Update().set("leaseOwner", "other-node"), SagaLog.class);
+        }
+
+        @Override
+        public void compensate(SagaContext context) {
+        }
+    }
+
+    private class ObserveStep implements SagaStep {
+        @Override
+        public String name() {
+            return "observe";
+        }
+
+        @Override
+        public void execute(SagaContext context) {
+            observed.add(sagaLogRepository.findById(context.get("sagaId", String.class)).orElseThrow());
+        }
+
+        @Override
+        public void compensate(SagaContext context) {
+        }
+    }
+
+    private static class FailingStep implements SagaStep {
+        @Override
+        public String name() {
+            return "fail";
+        }
+
+        @Override
+        public void execute(SagaContext context) {
+            throw new IllegalStateException("boom");
+        }
+
+        @Override
+        public void compensate(SagaContext context) {
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.mongodb.course.m19.infrastructure.saga;
+
+import com.mongodb.course.m19.SharedContainersConfig;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest(properties = "saga.recovery.enabled=false")
+@Import(SharedContainersConfig.class)
+class SagaRecoveryServiceTest {
+
+    private static final String SAGA_LOGS = "m19_transfer_saga_logs";
+
+    @Autowired private SagaRecoveryService sagaRecoveryService;
+    @Autowired private SagaLogRepository sagaLogRepository;
+    @Autowired private MongoTemplate mongoTemplate;
+
+    private final List<String> executed = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> compensated = Collections.synchronizedList(new ArrayList<>());
+
+    @BeforeEach
+    void setUp() {
+        mongoTemplate.remove(new Query(), SAGA_LOGS);
+        var reserve = new RecordingStep("RESERVE");
+        var charge = new RecordingStep("CHARGE");
+        sagaRecoveryService.register("TEST_RECOVERY", new SagaGraph().step(reserve).step(charge, reserve),
+                context -> context.put("rehydrated", "yes"));
+    }
+
+    @Test
+    void recoveryScanIndexExists() {
+        var indexNames = mongoTemplate.indexOps(SAGA_LOGS).getIndexInfo().stream()
+                .map(IndexInfo::getName)
+                .toList();
+
+        assertThat(indexNames).contains("status_1_startedAt_1");
+    }
+
+    @Test
+    void runningSagaResumesAfterLastSucceededStep() {
+        insertCrashed("saga-r1", SagaStatus.RUNNING, "SUCCEEDED", "PENDING", Instant.now().minusSeconds(5));
+
+        assertThat(sagaRecoveryService.recoverStaleSagas()).isEqualTo(1);
+
+        var sagaLog = sagaLogRepository.findById("saga-r1").orElseThrow();
+        assertThat(executed).containsExactly("CHARGE");
+        assertThat(sagaLog.status()).isEqualTo(SagaStatus.COMPLETED);
+        assertThat(sagaLog.steps()).extracting(StepLog::status).containsExactly("SUCCEEDED", "SUCCEEDED");
+        assertThat(sagaLog.context()).containsEntry("orderId", "ORD-R1").containsEntry("rehydrated", "yes");
+    }
+
+    @Test
+    void compensatingSagaUndoesSucceededSteps() {
+        insertCrashed("saga-r2", SagaStatus.COMPENSATING, "SUCCEEDED", "FAILED", Instant.now().minusSeconds(5));
+
+        sagaRecoveryService.recoverStaleSagas();
+
+        var sagaLog = sagaLogRepository.findById("saga-r2").orElseThrow();
+        assertThat(executed).isEmpty();
+        assertThat(compensated).containsExactly("RESERVE");
+        assertThat(sagaLog.status()).isEqualTo(SagaStatus.COMPENSATED);
+    }
+
+    @Test
+    void sagaWithLiveLeaseIsLeftAlone() {
+        insertCrashed("saga-r3", SagaStatus.RUNNING, "SUCCEEDED", "PENDING", Instant.now().plusSeconds(60));
+
+        assertThat(sagaRecoveryService.recoverStaleSagas()).isZero();
+
+        assertThat(sagaLogRepository.findById("saga-r3").orElseThrow().status()).isEqualTo(SagaStatus.RUNNING);
+        assertThat(executed).isEmpty();
+    }
+
+    @Test
+    void checkpointLoggedSagaIsFailedInsteadOfResumed() {
+        insertCrashed("saga-r4", SagaStatus.RUNNING, "PENDING", "PENDING", Instant.now().minusSeconds(5),
+                SagaDurability.CHECKPOINT);
+
+        assertThat(sagaRecoveryService.recoverStaleSagas()).isZero();
+
+        var sagaLog = sagaLogRepository.findById("saga-r4").orElseThrow();
+        assertThat(executed).isEmpty();
+        assertThat(sagaLog.status()).isEqualTo(SagaStatus.FAILED);
+        assertThat(sagaLog.completedAt()).isNotNull();
+    }
+
+    private void insertCrashed(String sagaId, SagaStatus status, String firstStep, String secondStep,
+                               Instant leaseUntil) {
+        insertCrashed(sagaId, status, firstStep, secondStep, leaseUntil, SagaDurability.STEP);
+    }
+
+    private void insertCrashed(String sagaId, SagaStatus status, String firstStep, String secondStep,
+                               Instant leaseUntil, SagaDurability durability) {
+        var steps = List.of(
+                new StepLog("RESERVE", firstStep, Instant.now(), null, null),
+                new StepLog("CHARGE", secondStep, null, null, null));
+        mongoTemplate.insert(new SagaLog(sagaId, "TEST_RECOVERY", status, 0, steps,
+                Map.of("sagaId", sagaId, "orderId", "ORD-R1"), Instant.now().minus(Duration.ofHours(1)),
+                null, null, "crashed-node", leaseUntil, durability));
+    }
+
+    private class RecordingStep implements SagaStep {
+
+        private final String name;
+
+        RecordingStep(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public void execute(SagaContext context) {
+            executed.add(name);
+        }
+
+        @Override
+        public void compensate(SagaContext context) {
+            compensated.add(name);
+        }
+    }
+}
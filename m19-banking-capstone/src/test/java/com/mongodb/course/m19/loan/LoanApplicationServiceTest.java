@@ -1,6 +1,7 @@
 package com.mongodb.course.m19.loan;
 
 import com.mongodb.MongoWriteException;
+import com.mongodb.course.m19.AggregateStateReset;
 import com.mongodb.course.m19.SharedContainersConfig;
 import com.mongodb.course.m19.account.service.AccountCommandService;
 import com.mongodb.course.m19.loan.model.Applicant;
@@ -27,9 +28,11 @@ class LoanApplicationServiceTest {
     @Autowired private LoanApplicationService loanApplicationService;
     @Autowired private AccountCommandService accountCommandService;
     @Autowired private MongoTemplate mongoTemplate;
+    @Autowired private AggregateStateReset aggregateStateReset;
 
     @BeforeEach
     void cleanUp() {
+        aggregateStateReset.reset();
         mongoTemplate.remove(new Query(), "m19_account_events");
         mongoTemplate.remove(new Query(), "m19_snapshots");
         mongoTemplate.remove(new Query(), "m19_account_summaries");
@@ -1,7 +1,9 @@
 package com.mongodb.course.m19.projection;
 
+import com.mongodb.course.m19.AggregateStateReset;
 import com.mongodb.course.m19.SharedContainersConfig;
 import com.mongodb.course.m19.account.service.AccountCommandService;
+import com.mongodb.course.m19.projection.readmodel.AccountSummaryDocument;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -20,14 +22,18 @@ class AccountSummaryProjectorTest {
 
     @Autowired private AccountCommandService accountCommandService;
     @Autowired private DashboardQueryService dashboardQueryService;
+    @Autowired private BalanceLeaderboard balanceLeaderboard;
     @Autowired private MongoTemplate mongoTemplate;
+    @Autowired private AggregateStateReset aggregateStateReset;
 
     @BeforeEach
     void cleanUp() {
+        aggregateStateReset.reset();
         mongoTemplate.remove(new Query(), "m19_account_events");
         mongoTemplate.remove(new Query(), "m19_snapshots");
         mongoTemplate.remove(new Query(), "m19_account_summaries");
         mongoTemplate.remove(new Query(), "m19_transaction_ledger");
+        balanceLeaderboard.invalidate();
     }
 
     @Test
@@ -56,4 +62,24 @@ class AccountSummaryProjectorTest {
         assertThat(top2.get(0).accountId()).isEqualTo("RANK-02");
         assertThat(top2.get(1).accountId()).isEqualTo("RANK-01");
     }
+
+    @Test
+    void rankingFollowsBalanceChangesWithoutReloading() {
+        accountCommandService.openAccount("RANK-04", "Alice", new BigDecimal("50000"), "TWD");
+        accountCommandService.openAccount("RANK-05", "Bob", new BigDecimal("80000"), "TWD");
+        accountCommandService.openAccount("RANK-06", "Charlie", new BigDecimal("30000"), "TWD");
+        assertThat(dashboardQueryService.topAccountsByBalance(2))
+                .extracting(AccountSummaryDocument::accountId)
+                .containsExactly("RANK-05", "RANK-04");
+        long reloads = balanceLeaderboard.stats().reloads();
+
+        accountCommandService.withdraw("RANK-05", new BigDecimal("60000"), "Withdrawal");
+        accountCommandService.deposit("RANK-06", new BigDecimal("40000"), "Bonus");
+
+        var top2 = dashboardQueryService.topAccountsByBalance(2);
+        assertThat(top2).extracting(AccountSummaryDocument::accountId)
+                .containsExactly("RANK-06", "RANK-04");
+        assertThat(top2.get(0).currentBalance()).isEqualByComparingTo(new BigDecimal("70000"));
+        assertThat(balanceLeaderboard.stats().reloads()).isEqualTo(reloads);
+    }
 }
@@ -0,0 +1,186 @@
+package com.mongodb.course.m19.projection;
+
+import com.mongodb.course.m19.AggregateStateReset;
+import com.mongodb.course.m19.SharedContainersConfig;
+import com.mongodb.course.m19.account.event.AccountEvent;
+import com.mongodb.course.m19.account.event.AccountOpened;
+import com.mongodb.course.m19.account.event.FundsDeposited;
+import com.mongodb.course.m19.account.event.FundsWithdrawn;
+import com.mongodb.course.m19.account.service.AccountCommandService;
+import com.mongodb.course.m19.projection.readmodel.TransactionLedgerDocument;
+import org.bson.types.Decimal128;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+@SpringBootTest(properties = "projection.batch-size=3")
+@Import(SharedContainersConfig.class)
+class ProjectionPipelineTest {
+
+    @Autowired private ProjectionPipeline projectionPipeline;
+    @Autowired private AccountCommandService accountCommandService;
+    @Autowired private DashboardQueryService dashboardQueryService;
+    @Autowired private MongoTemplate mongoTemplate;
+    @Autowired private AggregateStateReset aggregateStateReset;
+
+    @BeforeEach
+    void cleanUp() {
+        aggregateStateReset.reset();
+        mongoTemplate.remove(new Query(), "m19_account_events");
+        mongoTemplate.remove(new Query(), "m19_snapshots");
+        mongoTemplate.remove(new Query(), "m19_account_summaries");
+        mongoTemplate.remove(new Query(), "m19_transaction_ledger");
+    }
+
+    @Test
+    void batchCoalescesEventsOfOneAccount() {
+        var now = Instant.now();
+        List<AccountEvent> events = List.of(
+                new AccountOpened(UUID.randomUUID().toString(), "PIPE-01", 1, now, "Alice",
+                        new BigDecimal("1000"), "TWD"),
+                new FundsDeposited(UUID.randomUUID().toString(), "PIPE-01", 2, now.plusMillis(1),
+                        new BigDecimal("250.50"), "存款"),
+                new FundsWithdrawn(UUID.randomUUID().toString(), "PIPE-01", 3, now.plusMillis(2),
+                        new BigDecimal("100"), "提款"));
+
+        projectionPipeline.project(events);
+
+        var summary = dashboardQueryService.getAccountSummary("PIPE-01");
+        assertThat(summary.currentBalance()).isEqualByComparingTo(new BigDecimal("1150.50"));
+        assertThat(summary.totalTransactions()).isEqualTo(3);
+        assertThat(summary.depositCount()).isEqualTo(1);
+        assertThat(summary.withdrawalCount()).isEqualTo(1);
+        assertThat(summary.projectedVersion()).isEqualTo(3);
+        assertThat(ledger("PIPE-01")).extracting(TransactionLedgerDocument::balanceAfter)
+                .usingElementComparator(BigDecimal::compareTo)
+                .containsExactly(new BigDecimal("1000"), new BigDecimal("1250.50"), new BigDecimal("1150.50"));
+    }
+
+    @Test
+    void redeliveredAndOutOfOrderEventsAreProjectedOnce() {
+        var now = Instant.now();
+        var opened = new AccountOpened(UUID.randomUUID().toString(), "PIPE-04", 1, now, "Dave",
+                new BigDecimal("1000"), "TWD");
+        var deposited = new FundsDeposited(UUID.randomUUID().toString(), "PIPE-04", 2, now.plusMillis(1),
+                new BigDecimal("200"), "存款");
+        var withdrawn = new FundsWithdrawn(UUID.randomUUID().toString(), "PIPE-04", 3, now.plusMillis(2),
+                new BigDecimal("50"), "提款");
+        var before = projectionPipeline.stats();
+
+        projectionPipeline.project(List.of(opened, deposited));
+        projectionPipeline.project(List.of(deposited, opened));
+        projectionPipeline.project(List.<AccountEvent>of(withdrawn));
+        projectionPipeline.project(List.<AccountEvent>of(withdrawn));
+
+        var summary = dashboardQueryService.getAccountSummary("PIPE-04");
+        assertThat(summary.currentBalance()).isEqualByComparingTo(new BigDecimal("1150"));
+        assertThat(summary.totalTransactions()).isEqualTo(3);
+        assertThat(summary.projectedVersion()).isEqualTo(3);
+        var after = projectionPipeline.stats();
+        assertThat(after.applied() - before.applied()).isEqualTo(3);
+        assertThat(after.duplicates() - before.duplicates()).isEqualTo(3);
+    }
+
+    @Test
+    void eventAheadOfGapWaitsForPredecessor() {
+        var now = Instant.now();
+        var before = projectionPipeline.stats();
+        projectionPipeline.project(List.<AccountEvent>of(new AccountOpened(UUID.randomUUID().toString(),
+                "PIPE-05", 1, now, "Erin", new BigDecimal("500"), "TWD")));
+
+        projectionPipeline.project(List.<AccountEvent>of(new FundsWithdrawn(UUID.randomUUID().toString(),
+                "PIPE-05", 3, now.plusMillis(2), new BigDecimal("100"), "提款")));
+        assertThat(dashboardQueryService.getAccountSummary("PIPE-05").projectedVersion()).isEqualTo(1);
+
+        projectionPipeline.project(List.<AccountEvent>of(new FundsDeposited(UUID.randomUUID().toString(),
+                "PIPE-05", 2, now.plusMillis(1), new BigDecimal("300"), "存款")));
+        var summary = dashboardQueryService.getAccountSummary("PIPE-05");
+        assertThat(summary.currentBalance()).isEqualByComparingTo(new BigDecimal("700"));
+        assertThat(summary.projectedVersion()).isEqualTo(3);
+        assertThat(projectionPipeline.stats().gaps() - before.gaps()).isEqualTo(1);
+    }
+
+    @Test
+    void updateBehindStoredVersionIsSkipped() {
+        var now = Instant.now();
+        projectionPipeline.project(List.<AccountEvent>of(new AccountOpened(UUID.randomUUID().toString(),
+                "PIPE-06", 1, now, "Frank", new BigDecimal("500"), "TWD")));
+        // Another worker has already projected v2
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is("PIPE-06")),
+                new Update().set("projectedVersion", 2L), "m19_account_summaries");
+        var before = projectionPipeline.stats();
+
+        projectionPipeline.project(List.<AccountEvent>of(new FundsDeposited(UUID.randomUUID().toString(),
+                "PIPE-06", 2, now.plusMillis(1), new BigDecimal("300"), "存款")));
+
+        assertThat(dashboardQueryService.getAccountSummary("PIPE-06").currentBalance())
+                .isEqualByComparingTo(new BigDecimal("500"));
+        assertThat(projectionPipeline.stats().staleWrites() - before.staleWrites()).isEqualTo(1);
+    }
+
+    @Test
+    void eventOfFailedFlushIsProjectedOnRedelivery() {
+        var now = Instant.now();
+        projectionPipeline.project(List.<AccountEvent>of(new AccountOpened(UUID.randomUUID().toString(),
+                "PIPE-07", 1, now, "Grace", new BigDecimal("500"), "TWD")));
+        var deposited = new FundsDeposited(UUID.randomUUID().toString(), "PIPE-07", 2, now.plusMillis(1),
+                new BigDecimal("300"), "存款");
+        // $inc on a non-numeric balance fails the flush
+        setBalance("PIPE-07", "corrupt");
+
+        assertThatThrownBy(() -> projectionPipeline.project(List.<AccountEvent>of(deposited)))
+                .isInstanceOf(BulkOperationException.class);
+
+        setBalance("PIPE-07", new Decimal128(new BigDecimal("500")));
+        projectionPipeline.project(List.<AccountEvent>of(deposited));
+        var summary = dashboardQueryService.getAccountSummary("PIPE-07");
+        assertThat(summary.currentBalance()).isEqualByComparingTo(new BigDecimal("800"));
+        assertThat(summary.projectedVersion()).isEqualTo(2);
+    }
+
+    @Test
+    void rebuildReplaysEventsIntoSameReadModels() {
+        accountCommandService.openAccount("PIPE-02", "Bob", new BigDecimal("5000"), "TWD");
+        accountCommandService.deposit("PIPE-02", new BigDecimal("700"), "存款");
+        accountCommandService.withdraw("PIPE-02", new BigDecimal("200"), "提款");
+        accountCommandService.openAccount("PIPE-03", "Carol", new BigDecimal("800"), "TWD");
+        accountCommandService.accrueInterest("PIPE-03", new BigDecimal("8"));
+
+        long replayed = projectionPipeline.rebuildReadModels();
+
+        assertThat(replayed).isEqualTo(5);
+        assertThat(dashboardQueryService.getAccountSummary("PIPE-02").currentBalance())
+                .isEqualByComparingTo(new BigDecimal("5500"));
+        assertThat(dashboardQueryService.getAccountSummary("PIPE-03").totalInterestEarned())
+                .isEqualByComparingTo(new BigDecimal("8"));
+        assertThat(ledger("PIPE-02")).hasSize(3);
+        assertThat(ledger("PIPE-02").getLast().balanceAfter()).isEqualByComparingTo(new BigDecimal("5500"));
+    }
+
+    private void setBalance(String accountId, Object balance) {
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(accountId)),
+                new Update().set("currentBalance", balance), "m19_account_summaries");
+    }
+
+    private List<TransactionLedgerDocument> ledger(String accountId) {
+        var query = Query.query(Criteria.where("accountId").is(accountId))
+                .with(Sort.by(Sort.Direction.ASC, "version"));
+        return mongoTemplate.find(query, TransactionLedgerDocument.class, "m19_transaction_ledger");
+    }
+}
@@ -0,0 +1,58 @@
+package com.mongodb.course.m19.projection;
+
+import com.mongodb.course.m19.AggregateStateReset;
+import com.mongodb.course.m19.SharedContainersConfig;
+import com.mongodb.course.m19.account.service.AccountCommandService;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest(properties = "projection.async.enabled=true")
+@Import(SharedContainersConfig.class)
+class ProjectionRunnerTest {
+
+    @Autowired private ProjectionRunner projectionRunner;
+    @Autowired private AccountCommandService accountCommandService;
+    @Autowired private DashboardQueryService dashboardQueryService;
+    @Autowired private MongoTemplate mongoTemplate;
+    @Autowired private AggregateStateReset aggregateStateReset;
+
+    @BeforeEach
+    void cleanUp() {
+        aggregateStateReset.reset();
+        mongoTemplate.remove(new Query(), "m19_account_events");
+        mongoTemplate.remove(new Query(), "m19_snapshots");
+        mongoTemplate.remove(new Query(), "m19_account_summaries");
+        mongoTemplate.remove(new Query(), "m19_transaction_ledger");
+    }
+
+    @Test
+    void commandsAreProjectedAsynchronouslyAndCheckpointed() {
+        accountCommandService.openAccount("RUN-01", "Alice", new BigDecimal("1000"), "TWD");
+        var account = accountCommandService.deposit("RUN-01", new BigDecimal("300"), "存款");
+
+        assertThat(projectionRunner.awaitProjected("RUN-01", account.getVersion(), Duration.ofSeconds(10))).isTrue();
+
+        var summary = dashboardQueryService.getAccountSummary("RUN-01");
+        assertThat(summary.currentBalance()).isEqualByComparingTo(new BigDecimal("1300"));
+        assertThat(summary.projectedVersion()).isEqualTo(2);
+        var checkpoint = mongoTemplate.findById("m19_account_events", Document.class, "m19_projection_checkpoints");
+        assertThat(checkpoint).isNotNull();
+        assertThat(checkpoint.getString("tokenJson")).isNotBlank();
+    }
+
+    @Test
+    void awaitProjectedTimesOutForUnknownVersion() {
+        assertThat(projectionRunner.awaitProjected("RUN-NONE", 1, Duration.ofMillis(200))).isFalse();
+    }
+}
@@ -0,0 +1,103 @@
+package com.mongodb.course.m19.projection;
+
+import com.mongodb.course.m19.SharedContainersConfig;
+import com.mongodb.course.m19.account.event.AccountOpened;
+import com.mongodb.course.m19.account.event.FundsDeposited;
+import com.mongodb.course.m19.account.event.FundsWithdrawn;
+import com.mongodb.course.m19.projection.readmodel.TransactionLedgerDocument;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest
+@Import(SharedContainersConfig.class)
+class TransactionLedgerProjectorTest {
+
+    private static final String LEDGER = "m19_transaction_ledger";
+
+    @Autowired private TransactionLedgerProjector projector;
+    @Autowired private MongoTemplate mongoTemplate;
+
+    @BeforeEach
+    void cleanUp() {
+        mongoTemplate.remove(new Query(), LEDGER);
+        projector.reset();
+    }
+
+    @Test
+    void duplicateEventsAreSkipped() {
+        var now = Instant.now();
+        var opened = new AccountOpened(UUID.randomUUID().toString(), "LEDGER-01", 1, now,
+                "Alice", new BigDecimal("10000"), "TWD");
+        var deposited = new FundsDeposited(UUID.randomUUID().toString(), "LEDGER-01", 2, now,
+                new BigDecimal("500"), "存款");
+
+        projector.project(opened);
+        projector.project(deposited);
+        projector.project(deposited);
+        projector.project(opened);
+
+        var entries = ledger("LEDGER-01");
+        assertThat(entries).hasSize(2);
+        assertThat(entries.get(1).balanceAfter()).isEqualByComparingTo(new BigDecimal("10500"));
+    }
+
+    @Test
+    void outOfOrderEventsAreAppliedInVersionOrder() {
+        var now = Instant.now();
+        var opened = new AccountOpened(UUID.randomUUID().toString(), "LEDGER-02", 1, now,
+                "Bob", new BigDecimal("1000"), "TWD");
+        var deposited = new FundsDeposited(UUID.randomUUID().toString(), "LEDGER-02", 2, now,
+                new BigDecimal("300"), "存款");
+        var withdrawn = new FundsWithdrawn(UUID.randomUUID().toString(), "LEDGER-02", 3, now,
+                new BigDecimal("200"), "提款");
+
+        projector.project(opened);
+        projector.project(withdrawn);
+        assertThat(ledger("LEDGER-02")).hasSize(1);
+
+        projector.project(deposited);
+
+        var entries = ledger("LEDGER-02");
+        assertThat(entries).extracting(TransactionLedgerDocument::version).containsExactly(1L, 2L, 3L);
+        assertThat(entries).extracting(TransactionLedgerDocument::balanceAfter)
+                .usingElementComparator(BigDecimal::compareTo)
+                .containsExactly(new BigDecimal("1000"), new BigDecimal("1300"), new BigDecimal("1100"));
+    }
+
+    @Test
+    void gapResumesFromEntriesWrittenElsewhere() {
+        var now = Instant.now();
+        projector.project(new AccountOpened(UUID.randomUUID().toString(), "LEDGER-03", 1, now,
+                "Carol", new BigDecimal("1000"), "TWD"));
+        // Another instance has already written v2
+        mongoTemplate.insert(new TransactionLedgerDocument(UUID.randomUUID().toString(), "LEDGER-03", 2,
+                "DEPOSIT", new BigDecimal("400"), "存款", null, new BigDecimal("1400"), now), LEDGER);
+
+        projector.project(new FundsWithdrawn(UUID.randomUUID().toString(), "LEDGER-03", 3, now,
+                new BigDecimal("100"), "提款"));
+
+        assertThat(ledger("LEDGER-03")).extracting(TransactionLedgerDocument::balanceAfter)
+                .usingElementComparator(BigDecimal::compareTo)
+                .containsExactly(new BigDecimal("1000"), new BigDecimal("1400"), new BigDecimal("1300"));
+    }
+
+    private List<TransactionLedgerDocument> ledger(String accountId) {
+        var query = Query.query(Criteria.where("accountId").is(accountId))
+                .with(Sort.by(Sort.Direction.ASC, "version"));
+        return mongoTemplate.find(query, TransactionLedgerDocument.class, LEDGER);
+    }
+}
@@ -1,5 +1,6 @@
 package com.mongodb.course.m19.transfer;
 
+import com.mongodb.course.m19.AggregateStateReset;
 import com.mongodb.course.m19.SharedContainersConfig;
 import com.mongodb.course.m19.account.service.AccountCommandService;
 import com.mongodb.course.m19.infrastructure.saga.SagaLog;
@@ -27,9 +28,11 @@ class TransferSagaServiceTest {
     @Autowired private DashboardQueryService dashboardQueryService;
     @Autowired private SagaLogRepository sagaLogRepository;
     @Autowired private MongoTemplate mongoTemplate;
+    @Autowired private AggregateStateReset aggregateStateReset;
 
     @BeforeEach
     void cleanUp() {
+        aggregateStateReset.reset();
         mongoTemplate.remove(new Query(), "m19_account_events");
         mongoTemplate.remove(new Query(), "m19_snapshots");
         mongoTemplate.remove(new Query(), "m19_account_summaries");
@@ -79,4 +82,41 @@ class TransferSagaServiceTest {
         assertThat(sagaLog.steps().stream().map(s -> s.stepName()))
                 .containsExactly("DEBIT_SOURCE", "CREDIT_TARGET", "RECORD_TRANSFER");
     }
+
+    @Test
+    void asyncTransfersRunConcurrently() {
+        accountCommandService.openAccount("TRF-T07", "Alice", new BigDecimal("30000"), "TWD");
+        accountCommandService.openAccount("TRF-T08", "Bob", new BigDecimal("10000"), "TWD");
+        accountCommandService.openAccount("TRF-T09", "Carol", new BigDecimal("20000"), "TWD");
+        accountCommandService.openAccount("TRF-T10", "Dan", new BigDecimal("10000"), "TWD");
+
+        var first = transferSagaService.transferAsync("TRF-T07", "TRF-T08", new BigDecimal("5000"));
+        var second = transferSagaService.transferAsync("TRF-T09", "TRF-T10", new BigDecimal("7000"));
+
+        assertThat(sagaLogRepository.findById(first.join()).orElseThrow().status()).isEqualTo(SagaStatus.COMPLETED);
+        assertThat(sagaLogRepository.findById(second.join()).orElseThrow().status()).isEqualTo(SagaStatus.COMPLETED);
+        assertThat(dashboardQueryService.getAccountBalance("TRF-T08"))
+                .isEqualByComparingTo(new BigDecimal("15000"));
+        assertThat(dashboardQueryService.getAccountBalance("TRF-T10"))
+                .isEqualByComparingTo(new BigDecimal("17000"));
+    }
+
+    @Test
+    void transferStepsLoadAccountsThroughCommandServiceCache() {
+        accountCommandService.openAccount("TRF-T11", "Alice", new BigDecimal("40000"), "TWD");
+        accountCommandService.openAccount("TRF-T12", "Bob", new BigDecimal("10000"), "TWD");
+        var before = accountCommandService.cacheStats();
+
+        String sagaId = transferSagaService.transfer("TRF-T11", "TRF-T12", new BigDecimal("15000"));
+
+        var after = accountCommandService.cacheStats();
+        assertThat(after.misses()).isEqualTo(before.misses());
+        assertThat(after.hits()).isGreaterThan(before.hits());
+        assertThat(accountCommandService.loadAccount("TRF-T11").getBalance())
+                .isEqualByComparingTo(new BigDecimal("25000"));
+        assertThat(accountCommandService.loadAccount("TRF-T12").getBalance())
+                .isEqualByComparingTo(new BigDecimal("25000"));
+        assertThat(sagaLogRepository.findById(sagaId).orElseThrow().context())
+                .doesNotContainKeys("sourceAccount", "targetAccount");
+    }
 }
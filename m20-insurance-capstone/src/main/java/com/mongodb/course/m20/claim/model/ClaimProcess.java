@@ -66,6 +66,14 @@ public class ClaimProcess {
     }
 
     public void approve(BigDecimal approvedAmount) {
+        approve(approvedAmount, UUID.randomUUID().toString());
+    }
+
+    /**
+     * Takes the id of the event to record from the caller, so that a repeated command can be
+     * recognised in the claim's stream.
+     */
+    public void approve(BigDecimal approvedAmount, String eventId) {
         if (status != ClaimStatus.ASSESSED) {
             throw new IllegalStateException("Can only approve ASSESSED claims, current: " + status);
         }
@@ -73,30 +81,38 @@ public class ClaimProcess {
             throw new IllegalStateException("Cannot approve claim with HIGH fraud risk");
         }
         var event = new ClaimApproved(
-                UUID.randomUUID().toString(), claimId, version + 1, Instant.now(),
+                eventId, claimId, version + 1, Instant.now(),
                 approvedAmount);
         apply(event);
         uncommittedEvents.add(event);
     }
 
     public void reject(String reason) {
+        reject(reason, UUID.randomUUID().toString());
+    }
+
+    public void reject(String reason, String eventId) {
         if (status != ClaimStatus.FILED && status != ClaimStatus.UNDER_INVESTIGATION
                 && status != ClaimStatus.ASSESSED) {
             throw new IllegalStateException("Can only reject FILED/UNDER_INVESTIGATION/ASSESSED claims, current: " + status);
         }
         var event = new ClaimRejected(
-                UUID.randomUUID().toString(), claimId, version + 1, Instant.now(),
+                eventId, claimId, version + 1, Instant.now(),
                 reason);
         apply(event);
         uncommittedEvents.add(event);
     }
 
     public void pay(BigDecimal paidAmount, String paymentReference) {
+        pay(paidAmount, paymentReference, UUID.randomUUID().toString());
+    }
+
+    public void pay(BigDecimal paidAmount, String paymentReference, String eventId) {
         if (status != ClaimStatus.APPROVED) {
             throw new IllegalStateException("Can only pay APPROVED claims, current: " + status);
         }
         var event = new ClaimPaid(
-                UUID.randomUUID().toString(), claimId, version + 1, Instant.now(),
+                eventId, claimId, version + 1, Instant.now(),
                 paidAmount, paymentReference);
         apply(event);
         uncommittedEvents.add(event);
@@ -115,38 +131,24 @@ public class ClaimProcess {
         events.forEach(this::apply);
     }
 
-    public Map<String, Object> toSnapshot() {
-        var state = new LinkedHashMap<String, Object>();
-        state.put("claimId", claimId);
-        state.put("policyId", policyId);
-        state.put("claimantName", claimantName);
-        state.put("category", category);
-        state.put("claimedAmount", claimedAmount.toPlainString());
-        state.put("assessedAmount", assessedAmount != null ? assessedAmount.toPlainString() : null);
-        state.put("approvedAmount", approvedAmount != null ? approvedAmount.toPlainString() : null);
-        state.put("paidAmount", paidAmount != null ? paidAmount.toPlainString() : null);
-        state.put("fraudRisk", fraudRisk);
-        state.put("status", status.name());
-        state.put("version", version);
-        return state;
+    public ClaimProcessSnapshot toSnapshot() {
+        return new ClaimProcessSnapshot(claimId, policyId, claimantName, category, claimedAmount,
+                assessedAmount, approvedAmount, paidAmount, fraudRisk, status, version);
     }
 
-    public static ClaimProcess fromSnapshot(Map<String, Object> state) {
+    public static ClaimProcess fromSnapshot(ClaimProcessSnapshot snapshot) {
         var process = new ClaimProcess();
-        process.claimId = (String) state.get("claimId");
-        process.policyId = (String) state.get("policyId");
-        process.claimantName = (String) state.get("claimantName");
-        process.category = (String) state.get("category");
-        process.claimedAmount = new BigDecimal((String) state.get("claimedAmount"));
-        process.assessedAmount = state.get("assessedAmount") != null
-                ? new BigDecimal((String) state.get("assessedAmount")) : null;
-        process.approvedAmount = state.get("approvedAmount") != null
-                ? new BigDecimal((String) state.get("approvedAmount")) : null;
-        process.paidAmount = state.get("paidAmount") != null
-                ? new BigDecimal((String) state.get("paidAmount")) : null;
-        process.fraudRisk = (String) state.get("fraudRisk");
-        process.status = ClaimStatus.valueOf((String) state.get("status"));
-        process.version = ((Number) state.get("version")).longValue();
+        process.claimId = snapshot.claimId();
+        process.policyId = snapshot.policyId();
+        process.claimantName = snapshot.claimantName();
+        process.category = snapshot.category();
+        process.claimedAmount = snapshot.claimedAmount();
+        process.assessedAmount = snapshot.assessedAmount();
+        process.approvedAmount = snapshot.approvedAmount();
+        process.paidAmount = snapshot.paidAmount();
+        process.fraudRisk = snapshot.fraudRisk();
+        process.status = snapshot.status();
+        process.version = snapshot.version();
         return process;
     }
 
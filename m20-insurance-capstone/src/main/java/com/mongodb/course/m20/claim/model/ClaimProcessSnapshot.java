@@ -0,0 +1,22 @@
+package com.mongodb.course.m20.claim.model;
+
+import com.mongodb.course.m20.shared.AggregateSnapshot;
+import org.springframework.data.mongodb.core.mapping.Field;
+import org.springframework.data.mongodb.core.mapping.FieldType;
+
+import java.math.BigDecimal;
+
+public record ClaimProcessSnapshot(
+        String claimId,
+        String policyId,
+        String claimantName,
+        String category,
+        @Field(targetType = FieldType.DECIMAL128) BigDecimal claimedAmount,
+        @Field(targetType = FieldType.DECIMAL128) BigDecimal assessedAmount,
+        @Field(targetType = FieldType.DECIMAL128) BigDecimal approvedAmount,
+        @Field(targetType = FieldType.DECIMAL128) BigDecimal paidAmount,
+        String fraudRisk,
+        ClaimStatus status,
+        long version
+) implements AggregateSnapshot {
+}
@@ -2,113 +2,178 @@ package com.mongodb.course.m20.claim.service;
 
 import com.mongodb.course.m20.claim.event.ClaimEvent;
 import com.mongodb.course.m20.claim.model.ClaimProcess;
+import com.mongodb.course.m20.claim.model.ClaimProcessSnapshot;
+import com.mongodb.course.m20.infrastructure.AggregateCache;
+import com.mongodb.course.m20.infrastructure.AppendResult;
 import com.mongodb.course.m20.infrastructure.EventStore;
 import com.mongodb.course.m20.infrastructure.SnapshotDocument;
-import com.mongodb.course.m20.projection.ClaimDashboardProjector;
-import com.mongodb.course.m20.projection.ClaimStatisticsProjector;
+import com.mongodb.course.m20.infrastructure.Snapshotter;
+import com.mongodb.course.m20.projection.ProjectionPipeline;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.stereotype.Service;
 
 import java.math.BigDecimal;
-import java.time.Instant;
+import java.time.Duration;
 import java.util.List;
-import java.util.UUID;
+import java.util.function.Consumer;
 
 @Service
 public class ClaimCommandService {
 
+    private static final Logger log = LoggerFactory.getLogger(ClaimCommandService.class);
+
     private static final String CLAIM_EVENTS = "m20_claim_events";
     private static final String AGGREGATE_TYPE = "ClaimProcess";
-    private static final int SNAPSHOT_INTERVAL = 10;
+    private static final int MAX_ATTEMPTS = 5;
 
     private final EventStore eventStore;
-    private final ClaimDashboardProjector dashboardProjector;
-    private final ClaimStatisticsProjector statisticsProjector;
+    private final ProjectionPipeline projectionPipeline;
+    private final Snapshotter snapshotter;
+    private final AggregateCache<ClaimProcessSnapshot> aggregateCache;
+    private final boolean soleWriter;
 
     public ClaimCommandService(EventStore eventStore,
-                               ClaimDashboardProjector dashboardProjector,
-                               ClaimStatisticsProjector statisticsProjector) {
+                               ProjectionPipeline projectionPipeline,
+                               Snapshotter snapshotter,
+                               @Value("${aggregate-cache.max-entries:10000}") int cacheMaxEntries,
+                               @Value("${aggregate-cache.sole-writer:false}") boolean soleWriter) {
         this.eventStore = eventStore;
-        this.dashboardProjector = dashboardProjector;
-        this.statisticsProjector = statisticsProjector;
+        this.projectionPipeline = projectionPipeline;
+        this.snapshotter = snapshotter;
+        this.aggregateCache = new AggregateCache<>(cacheMaxEntries);
+        this.soleWriter = soleWriter;
+        snapshotter.register(AGGREGATE_TYPE, CLAIM_EVENTS, id -> loadClaim(id).toSnapshot());
     }
 
     public ClaimProcess fileClaim(String claimId, String policyId, String claimantName,
                                   String category, BigDecimal claimedAmount, String description) {
         var claim = ClaimProcess.file(claimId, policyId, claimantName, category, claimedAmount, description);
-        saveAndProject(claim);
+        var events = List.copyOf(claim.getUncommittedEvents());
+        claim.clearUncommittedEvents();
+        if (eventStore.append(claimId, 0, events, CLAIM_EVENTS) instanceof AppendResult.Conflict) {
+            throw new IllegalStateException("Claim already exists: " + claimId);
+        }
+        aggregateCache.put(claimId, claim.toSnapshot());
+        project(claim, events);
         return claim;
     }
 
     public ClaimProcess investigate(String claimId, String investigatorName,
                                     String findings, String fraudRisk) {
-        var claim = loadClaim(claimId);
-        claim.investigate(investigatorName, findings, fraudRisk);
-        saveAndProject(claim);
-        return claim;
+        return execute(claimId, null, claim -> claim.investigate(investigatorName, findings, fraudRisk));
     }
 
     public ClaimProcess assess(String claimId, BigDecimal assessedAmount, String notes) {
-        var claim = loadClaim(claimId);
-        claim.assess(assessedAmount, notes);
-        saveAndProject(claim);
-        return claim;
+        return execute(claimId, null, claim -> claim.assess(assessedAmount, notes));
     }
 
     public ClaimProcess approve(String claimId, BigDecimal approvedAmount) {
-        var claim = loadClaim(claimId);
-        claim.approve(approvedAmount);
-        saveAndProject(claim);
-        return claim;
+        return execute(claimId, null, claim -> claim.approve(approvedAmount));
     }
 
     public ClaimProcess reject(String claimId, String reason) {
-        var claim = loadClaim(claimId);
-        claim.reject(reason);
-        saveAndProject(claim);
-        return claim;
+        return execute(claimId, null, claim -> claim.reject(reason));
     }
 
     public ClaimProcess pay(String claimId, BigDecimal paidAmount, String paymentReference) {
-        var claim = loadClaim(claimId);
-        claim.pay(paidAmount, paymentReference);
-        saveAndProject(claim);
-        return claim;
+        return execute(claimId, null, claim -> claim.pay(paidAmount, paymentReference));
+    }
+
+    /**
+     * Variants for saga steps: the event is recorded with {@code eventId}, and a command whose event
+     * is already in the claim's stream is not applied again.
+     */
+    public ClaimProcess approve(String claimId, BigDecimal approvedAmount, String eventId) {
+        return execute(claimId, eventId, claim -> claim.approve(approvedAmount, eventId));
+    }
+
+    public ClaimProcess reject(String claimId, String reason, String eventId) {
+        return execute(claimId, eventId, claim -> claim.reject(reason, eventId));
+    }
+
+    public ClaimProcess pay(String claimId, BigDecimal paidAmount, String paymentReference, String eventId) {
+        return execute(claimId, eventId, claim -> claim.pay(paidAmount, paymentReference, eventId));
     }
 
     public ClaimProcess loadClaim(String claimId) {
-        var snapshotOpt = eventStore.loadLatestSnapshot(claimId, AGGREGATE_TYPE);
-        if (snapshotOpt.isPresent()) {
-            var snapshot = snapshotOpt.get();
-            var claim = ClaimProcess.fromSnapshot(snapshot.state());
-            var newEvents = eventStore.loadEventsAfterVersion(
-                    claimId, snapshot.version(), ClaimEvent.class, CLAIM_EVENTS);
-            claim.replayAfterSnapshot(newEvents);
+        var cached = aggregateCache.get(claimId);
+        if (cached.isPresent()) {
+            var claim = ClaimProcess.fromSnapshot(cached.get().state());
+            // A sole writer's cache is authoritative; a stale entry still surfaces as an append conflict
+            if (!soleWriter) {
+                claim.replayAfterSnapshot(eventStore.loadEventsAfterVersion(
+                        claimId, cached.get().version(), ClaimEvent.class, CLAIM_EVENTS));
+                aggregateCache.put(claimId, claim.toSnapshot());
+            }
             return claim;
         }
-        var events = eventStore.loadEvents(claimId, ClaimEvent.class, CLAIM_EVENTS);
-        return ClaimProcess.replayFrom(events);
+        var claim = loadClaimFromStore(claimId);
+        aggregateCache.put(claimId, claim.toSnapshot());
+        return claim;
     }
 
-    private void saveAndProject(ClaimProcess claim) {
-        var events = List.copyOf(claim.getUncommittedEvents());
-        claim.clearUncommittedEvents();
+    /**
+     * Drops every cached aggregate, for when event streams are deleted underneath the service.
+     */
+    public void clearCache() {
+        aggregateCache.clear();
+    }
 
-        eventStore.appendAll(events, CLAIM_EVENTS);
+    public AggregateCache.CacheStats cacheStats() {
+        return aggregateCache.stats();
+    }
 
-        for (var event : events) {
-            dashboardProjector.project(event);
-            statisticsProjector.project(event);
+    private ClaimProcess execute(String claimId, String eventId, Consumer<ClaimProcess> command) {
+        var current = loadClaim(claimId);
+        for (int attempt = 1; ; attempt++) {
+            if (eventId != null && eventStore.containsEvent(claimId, eventId, CLAIM_EVENTS)) {
+                log.info("Command {} already applied to {}", eventId, claimId);
+                return loadClaim(claimId);
+            }
+            var claim = ClaimProcess.fromSnapshot(current.toSnapshot());
+            command.accept(claim);
+            var events = List.copyOf(claim.getUncommittedEvents());
+            claim.clearUncommittedEvents();
+
+            switch (eventStore.append(claimId, current.getVersion(), events, CLAIM_EVENTS)) {
+                case AppendResult.Appended _ -> {
+                    aggregateCache.put(claimId, claim.toSnapshot());
+                    project(claim, events);
+                    return claim;
+                }
+                case AppendResult.Conflict conflict -> {
+                    if (attempt >= MAX_ATTEMPTS) {
+                        throw new OptimisticLockingFailureException("Claim " + claimId
+                                + " modified concurrently: expected version " + conflict.expectedVersion()
+                                + ", actual " + conflict.actualVersion());
+                    }
+                    current.replayAfterSnapshot(eventStore.loadEventsAfterVersion(
+                            claimId, current.getVersion(), ClaimEvent.class, CLAIM_EVENTS));
+                }
+            }
         }
+    }
 
-        if (claim.getVersion() % SNAPSHOT_INTERVAL == 0) {
-            var snapshot = new SnapshotDocument(
-                    UUID.randomUUID().toString(),
-                    claim.getClaimId(),
-                    AGGREGATE_TYPE,
-                    claim.getVersion(),
-                    Instant.now(),
-                    claim.toSnapshot());
-            eventStore.saveSnapshot(snapshot);
+    private ClaimProcess loadClaimFromStore(String claimId) {
+        long start = System.nanoTime();
+        var loaded = eventStore.loadSnapshotAndTail(claimId, AGGREGATE_TYPE, ClaimEvent.class, CLAIM_EVENTS);
+        ClaimProcess claim;
+        if (loaded.snapshot().isPresent()) {
+            claim = ClaimProcess.fromSnapshot((ClaimProcessSnapshot) loaded.snapshot().get().state());
+            claim.replayAfterSnapshot(loaded.events());
+        } else {
+            claim = ClaimProcess.replayFrom(loaded.events());
         }
+        snapshotter.recordLoad(AGGREGATE_TYPE, claimId, loaded.snapshot().map(SnapshotDocument::version).orElse(0L),
+                loaded.events().size(), Duration.ofNanos(System.nanoTime() - start));
+        return claim;
+    }
+
+    private void project(ClaimProcess claim, List<ClaimEvent> events) {
+        projectionPipeline.afterAppend(events);
+        snapshotter.afterAppend(AGGREGATE_TYPE, claim.getClaimId(), claim.getVersion(), claim::toSnapshot);
     }
 }
@@ -25,5 +25,13 @@ public class IndexConfig {
 
         mongoTemplate.indexOps("m20_claim_dashboard")
                 .ensureIndex(new Index().on("lastUpdatedAt", Sort.Direction.DESC));
+
+        mongoTemplate.indexOps("m20_claim_timeline_buckets")
+                .ensureIndex(new CompoundIndexDefinition(
+                        new Document("aggregateId", 1).append("bucket", 1)));
+
+        mongoTemplate.indexOps("m20_settlement_saga_logs")
+                .ensureIndex(new CompoundIndexDefinition(
+                        new Document("status", 1).append("startedAt", 1)));
     }
 }
@@ -0,0 +1,21 @@
+package com.mongodb.course.m20.config;
+
+import com.mongodb.course.m20.infrastructure.SnapshotPolicy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+
+@Configuration
+public class SnapshotConfig {
+
+    @Bean
+    SnapshotPolicy snapshotPolicy(@Value("${snapshot.policy.max-tail-events:10}") long maxTailEvents,
+                                  @Value("${snapshot.policy.max-replay-ms:0}") long maxReplayMs) {
+        var policy = SnapshotPolicy.eventCount(maxTailEvents);
+        return maxReplayMs > 0
+                ? policy.or(SnapshotPolicy.replayTime(Duration.ofMillis(maxReplayMs)))
+                : policy;
+    }
+}
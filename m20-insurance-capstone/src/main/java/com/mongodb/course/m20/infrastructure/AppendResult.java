@@ -0,0 +1,10 @@
+package com.mongodb.course.m20.infrastructure;
+
+public sealed interface AppendResult {
+
+    record Appended(long version) implements AppendResult {
+    }
+
+    record Conflict(String aggregateId, long expectedVersion, long actualVersion) implements AppendResult {
+    }
+}
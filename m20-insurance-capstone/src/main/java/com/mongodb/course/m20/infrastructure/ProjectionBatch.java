@@ -0,0 +1,436 @@
+package com.mongodb.course.m20.infrastructure;
+
+import com.mongodb.bulk.BulkWriteResult;
+import org.bson.Document;
+import org.bson.types.Decimal128;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.BasicUpdate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Collects read-model writes for a batch of events and flushes them with one unordered bulk write
+ * per collection. Writes to the same {@code _id} are coalesced: {@code $inc}s are summed,
+ * {@code $set}s keep the last value, {@code $max}/{@code $min} keep the extreme, {@code $push}es
+ * are appended in order, honouring a {@code $slice} bound, and {@code $addToSet}s are merged.
+ * Updates to a document inserted earlier in the batch are folded into the insert, so unordered
+ * execution never sees an update racing its own insert. Versioned updates only match a document
+ * whose {@code projectedVersion} is still behind the first coalesced event.
+ */
+public class ProjectionBatch {
+
+    private static final Logger log = LoggerFactory.getLogger(ProjectionBatch.class);
+
+    private static final int DUPLICATE_KEY = 11000;
+
+    private final MongoTemplate mongoTemplate;
+    private final Map<String, Map<Object, PendingWrite>> pending = new LinkedHashMap<>();
+    private final List<FlushListener> listeners = new ArrayList<>();
+    private long staleUpdates;
+
+    public ProjectionBatch(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    public void insert(String collection, Object entity) {
+        var document = new Document();
+        mongoTemplate.getConverter().write(entity, document);
+        var id = document.get("_id");
+        var writes = writesFor(collection);
+        if (writes.get(id) instanceof Modify) {
+            // The update targets an older document under this id; keep the two apart
+            flush();
+            writes = writesFor(collection);
+        }
+        writes.putIfAbsent(id, new Create(document));
+    }
+
+    public void update(String collection, Object id, Update update) {
+        modify(collection, id, update, false);
+    }
+
+    public void upsert(String collection, Object id, Update update) {
+        modify(collection, id, update, true);
+    }
+
+    /**
+     * Updates a versioned read model and stamps its {@code projectedVersion}, unless the stored
+     * document already reflects {@code version}.
+     */
+    public void updateIfNewer(String collection, Object id, long version, Update update) {
+        modify(collection, id, update.set("projectedVersion", version), false);
+        if (writesFor(collection).get(id) instanceof Modify modify
+                && (modify.guardVersion == 0 || version < modify.guardVersion)) {
+            modify.guardVersion = version;
+        }
+    }
+
+    /**
+     * A document inserted by this batch and not yet flushed, with later updates already applied.
+     */
+    public Optional<Document> pendingInsert(String collection, Object id) {
+        var writes = pending.get(collection);
+        return writes != null && writes.get(id) instanceof Create create
+                ? Optional.of(create.document())
+                : Optional.empty();
+    }
+
+    /**
+     * Runs {@code flushed} once the writes collected so far are stored, or {@code failed} if the
+     * flush carrying them throws.
+     */
+    public void onFlush(Runnable flushed, Runnable failed) {
+        listeners.add(new FlushListener(flushed, failed));
+    }
+
+    public int size() {
+        return pending.values().stream().mapToInt(Map::size).sum();
+    }
+
+    public boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * Updates flushed by this batch that matched no document, typically because their version
+     * guard found the read model already ahead.
+     */
+    public long staleUpdates() {
+        return staleUpdates;
+    }
+
+    public int flush() {
+        int writes = 0;
+        boolean stored = false;
+        try {
+            for (var entry : pending.entrySet()) {
+                var bulk = mongoTemplate.bulkOps(BulkMode.UNORDERED, entry.getKey());
+                int updates = 0;
+                int upserts = 0;
+                for (var write : entry.getValue().entrySet()) {
+                    switch (write.getValue()) {
+                        case Create create -> bulk.insert(create.document());
+                        case Modify modify -> {
+                            var criteria = Criteria.where("_id").is(write.getKey());
+                            if (modify.guardVersion > 0) {
+                                criteria = criteria.and("projectedVersion").lt(modify.guardVersion);
+                            }
+                            if (modify.upsert) {
+                                bulk.upsert(Query.query(criteria), modify.toUpdate());
+                                upserts++;
+                            } else {
+                                bulk.updateOne(Query.query(criteria), modify.toUpdate());
+                                updates++;
+                            }
+                        }
+                    }
+                }
+                var result = execute(entry.getKey(), bulk);
+                // Upserts that found their document count as matched too
+                int upsertsMatched = upserts - result.getUpserts().size();
+                long unmatched = updates - (result.getMatchedCount() - upsertsMatched);
+                if (unmatched > 0) {
+                    log.debug("{} updates to {} matched no document behind their version", unmatched, entry.getKey());
+                    staleUpdates += unmatched;
+                }
+                writes += entry.getValue().size();
+            }
+            stored = true;
+        } finally {
+            pending.clear();
+            notifyListeners(stored);
+        }
+        return writes;
+    }
+
+    /**
+     * Drops the writes collected so far without storing them and runs their {@code failed}
+     * listeners, for when the batch cannot reach {@link #flush()}. After a flush it does nothing.
+     */
+    public void abort() {
+        pending.clear();
+        notifyListeners(false);
+    }
+
+    private void notifyListeners(boolean stored) {
+        var notified = List.copyOf(listeners);
+        listeners.clear();
+        notified.forEach(listener -> (stored ? listener.flushed() : listener.failed()).run());
+    }
+
+    private BulkWriteResult execute(String collection, BulkOperations bulk) {
+        try {
+            return bulk.execute();
+        } catch (BulkOperationException e) {
+            // A redelivered event re-inserting its document is not an error; anything else is
+            if (e.getErrors().stream().anyMatch(error -> error.getCode() != DUPLICATE_KEY)) {
+                throw e;
+            }
+            log.debug("Skipped {} already-projected inserts into {}", e.getErrors().size(), collection);
+            return e.getResult();
+        }
+    }
+
+    private void modify(String collection, Object id, Update update, boolean upsert) {
+        var writes = writesFor(collection);
+        var write = writes.computeIfAbsent(id, k -> new Modify());
+        for (var operation : update.getUpdateObject().entrySet()) {
+            var fields = (Document) operation.getValue();
+            for (var field : fields.entrySet()) {
+                var value = field.getValue() instanceof Update.Modifiers modifiers
+                        ? toDocument(modifiers)
+                        : mongoTemplate.getConverter().convertToMongoType(field.getValue());
+                write.apply(operation.getKey(), field.getKey(), value);
+            }
+        }
+        if (write instanceof Modify modify) {
+            modify.upsert |= upsert;
+        }
+    }
+
+    private Document toDocument(Update.Modifiers modifiers) {
+        var converter = mongoTemplate.getConverter();
+        var document = new Document();
+        for (var modifier : modifiers.getModifiers()) {
+            var value = modifier.getValue() instanceof Object[] values
+                    ? Arrays.stream(values).map(converter::convertToMongoType).toList()
+                    : converter.convertToMongoType(modifier.getValue());
+            document.put(modifier.getKey(), value);
+        }
+        return document;
+    }
+
+    private Map<Object, PendingWrite> writesFor(String collection) {
+        return pending.computeIfAbsent(collection, c -> new LinkedHashMap<>());
+    }
+
+    private record FlushListener(Runnable flushed, Runnable failed) {
+    }
+
+    private sealed interface PendingWrite permits Create, Modify {
+        void apply(String operator, String field, Object value);
+    }
+
+    private record Create(Document document) implements PendingWrite {
+        @Override
+        public void apply(String operator, String field, Object value) {
+            var path = field.split("\\.");
+            var parent = document;
+            for (int i = 0; i < path.length - 1; i++) {
+                var child = parent.get(path[i]) instanceof Document existing ? existing : new Document();
+                parent.put(path[i], child);
+                parent = child;
+            }
+            var key = path[path.length - 1];
+            switch (operator) {
+                case "$inc" -> parent.put(key, add(parent.get(key), value));
+                case "$set" -> parent.put(key, value);
+                case "$setOnInsert" -> parent.putIfAbsent(key, value);
+                case "$max" -> parent.put(key, extreme(parent.get(key), value, 1));
+                case "$min" -> parent.put(key, extreme(parent.get(key), value, -1));
+                case "$push" -> {
+                    var list = parent.get(key) instanceof List<?> existing
+                            ? new ArrayList<Object>(existing) : new ArrayList<>();
+                    list.addAll(pushed(value));
+                    var slice = slice(value);
+                    parent.put(key, slice != null ? sliced(list, slice) : list);
+                }
+                case "$addToSet" -> {
+                    var set = parent.get(key) instanceof List<?> existing
+                            ? new ArrayList<Object>(existing) : new ArrayList<>();
+                    addAbsent(set, pushed(value));
+                    parent.put(key, set);
+                }
+                default -> throw unsupported(operator);
+            }
+        }
+    }
+
+    private static final class Modify implements PendingWrite {
+        private final Document inc = new Document();
+        private final Document set = new Document();
+        private final Document setOnInsert = new Document();
+        private final Document max = new Document();
+        private final Document min = new Document();
+        private final Map<String, List<Object>> push = new LinkedHashMap<>();
+        private final Map<String, Integer> pushSlices = new LinkedHashMap<>();
+        private final Map<String, List<Object>> addToSet = new LinkedHashMap<>();
+        private boolean upsert;
+        private long guardVersion;
+
+        @Override
+        public void apply(String operator, String field, Object value) {
+            switch (operator) {
+                case "$inc" -> {
+                    if (set.containsKey(field)) {
+                        set.put(field, add(set.get(field), value));
+                    } else {
+                        inc.put(field, add(inc.get(field), value));
+                    }
+                }
+                case "$set" -> {
+                    inc.remove(field);
+                    max.remove(field);
+                    min.remove(field);
+                    set.put(field, value);
+                }
+                case "$setOnInsert" -> setOnInsert.putIfAbsent(field, value);
+                case "$max" -> {
+                    if (set.containsKey(field)) {
+                        set.put(field, extreme(set.get(field), value, 1));
+                    } else {
+                        max.put(field, extreme(max.get(field), value, 1));
+                    }
+                }
+                case "$min" -> {
+                    if (set.containsKey(field)) {
+                        set.put(field, extreme(set.get(field), value, -1));
+                    } else {
+                        min.put(field, extreme(min.get(field), value, -1));
+                    }
+                }
+                case "$push" -> {
+                    var slice = slice(value);
+                    if (pushSlices.containsKey(field) && !pushSlices.get(field).equals(slice)) {
+                        // Pushes only coalesce when they all bound the array the same way
+                        throw unsupported("$push with differing $slice on " + field);
+                    }
+                    var values = push.computeIfAbsent(field, f -> new ArrayList<>());
+                    values.addAll(pushed(value));
+                    if (slice != null) {
+                        pushSlices.put(field, slice);
+                        var kept = sliced(values, slice);
+                        values.clear();
+                        values.addAll(kept);
+                    }
+                }
+                case "$addToSet" -> addAbsent(addToSet.computeIfAbsent(field, f -> new ArrayList<>()), pushed(value));
+                default -> throw unsupported(operator);
+            }
+        }
+
+        Update toUpdate() {
+            var update = new Document();
+            putIfNotEmpty(update, "$inc", inc);
+            putIfNotEmpty(update, "$set", set);
+            putIfNotEmpty(update, "$setOnInsert", setOnInsert);
+            putIfNotEmpty(update, "$max", max);
+            putIfNotEmpty(update, "$min", min);
+            if (!push.isEmpty()) {
+                var each = new Document();
+                push.forEach((field, values) -> {
+                    var modifiers = new Document("$each", values);
+                    if (pushSlices.containsKey(field)) {
+                        modifiers.put("$slice", pushSlices.get(field));
+                    }
+                    each.put(field, modifiers);
+                });
+                update.put("$push", each);
+            }
+            if (!addToSet.isEmpty()) {
+                var each = new Document();
+                addToSet.forEach((field, values) -> each.put(field, new Document("$each", values)));
+                update.put("$addToSet", each);
+            }
+            return new BasicUpdate(update);
+        }
+
+        private static void putIfNotEmpty(Document update, String operator, Document fields) {
+            if (!fields.isEmpty()) {
+                update.put(operator, fields);
+            }
+        }
+    }
+
+    private static List<?> pushed(Object value) {
+        if (value instanceof Document document && document.get("$each") instanceof List<?> each) {
+            if (document.keySet().stream().anyMatch(key -> !key.equals("$each") && !key.equals("$slice"))) {
+                throw unsupported("$push with " + document.keySet());
+            }
+            return each;
+        }
+        return List.of(value);
+    }
+
+    private static Integer slice(Object value) {
+        return value instanceof Document document && document.get("$slice") instanceof Number slice
+                ? slice.intValue()
+                : null;
+    }
+
+    private static void addAbsent(List<Object> set, List<?> values) {
+        for (var value : values) {
+            if (!set.contains(value)) {
+                set.add(value);
+            }
+        }
+    }
+
+    /**
+     * The part of {@code list} a {@code $slice} of {@code slice} keeps: the last entries when
+     * negative, the first ones otherwise.
+     */
+    private static List<Object> sliced(List<Object> list, int slice) {
+        int keep = Math.min(Math.abs(slice), list.size());
+        return slice < 0
+                ? new ArrayList<>(list.subList(list.size() - keep, list.size()))
+                : new ArrayList<>(list.subList(0, keep));
+    }
+
+    private static Object add(Object current, Object delta) {
+        if (current == null) {
+            return delta;
+        }
+        if (current instanceof Decimal128 || delta instanceof Decimal128
+                || current instanceof BigDecimal || delta instanceof BigDecimal) {
+            return new Decimal128(toBigDecimal(current).add(toBigDecimal(delta)));
+        }
+        var a = (Number) current;
+        var b = (Number) delta;
+        if (a instanceof Double || b instanceof Double || a instanceof Float || b instanceof Float) {
+            return a.doubleValue() + b.doubleValue();
+        }
+        if (a instanceof Long || b instanceof Long) {
+            return a.longValue() + b.longValue();
+        }
+        return a.intValue() + b.intValue();
+    }
+
+    private static BigDecimal toBigDecimal(Object value) {
+        return switch (value) {
+            case Decimal128 d -> d.bigDecimalValue();
+            case BigDecimal d -> d;
+            case Number n -> new BigDecimal(n.toString());
+            default -> throw new IllegalArgumentException("Not a number: " + value);
+        };
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object extreme(Object current, Object candidate, int sign) {
+        if (current == null) {
+            return candidate;
+        }
+        if (current instanceof Number && candidate instanceof Number) {
+            return toBigDecimal(candidate).compareTo(toBigDecimal(current)) * sign > 0 ? candidate : current;
+        }
+        return ((Comparable) candidate).compareTo(current) * sign > 0 ? candidate : current;
+    }
+
+    private static IllegalArgumentException unsupported(String operator) {
+        return new IllegalArgumentException("Update operator not supported in a projection batch: " + operator);
+    }
+}
@@ -0,0 +1,14 @@
+package com.mongodb.course.m20.infrastructure.saga;
+
+/**
+ * When the orchestrator persists a saga's progress.
+ */
+public enum SagaDurability {
+    /** One update per executed or compensated step. */
+    STEP,
+    /**
+     * Step results are buffered and written with the next status change: the switch to
+     * compensation or the final outcome. A crash loses the progress since the last checkpoint.
+     */
+    CHECKPOINT
+}
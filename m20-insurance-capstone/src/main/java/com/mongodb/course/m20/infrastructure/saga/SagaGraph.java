@@ -0,0 +1,71 @@
+package com.mongodb.course.m20.infrastructure.saga;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The steps of a saga and the steps each one waits for. A step may only depend on steps declared
+ * before it, so declaration order is a topological order and the graph cannot have cycles. Steps
+ * whose dependencies have all succeeded run concurrently.
+ */
+public final class SagaGraph {
+
+    private final List<Node> nodes = new ArrayList<>();
+    private final Set<String> names = new HashSet<>();
+
+    public static SagaGraph linear(List<SagaStep> steps) {
+        var graph = new SagaGraph();
+        SagaStep previous = null;
+        for (var step : steps) {
+            if (previous == null) {
+                graph.step(step);
+            } else {
+                graph.step(step, previous);
+            }
+            previous = step;
+        }
+        return graph;
+    }
+
+    public SagaGraph step(SagaStep step, SagaStep... dependsOn) {
+        if (!names.add(step.name())) {
+            throw new IllegalArgumentException("Duplicate saga step: " + step.name());
+        }
+        var dependencies = new HashSet<Integer>();
+        for (var dependency : dependsOn) {
+            int index = indexOf(dependency.name());
+            if (index < 0) {
+                throw new IllegalArgumentException("Saga step " + step.name()
+                        + " depends on undeclared step " + dependency.name());
+            }
+            dependencies.add(index);
+        }
+        nodes.add(new Node(step, Set.copyOf(dependencies)));
+        return this;
+    }
+
+    public List<Node> nodes() {
+        return List.copyOf(nodes);
+    }
+
+    public List<String> stepNames() {
+        return nodes.stream().map(node -> node.step().name()).toList();
+    }
+
+    private int indexOf(String name) {
+        for (int i = 0; i < nodes.size(); i++) {
+            if (nodes.get(i).step().name().equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A step and the indices of the steps it waits for.
+     */
+    public record Node(SagaStep step, Set<Integer> dependsOn) {
+    }
+}
@@ -0,0 +1,12 @@
+package com.mongodb.course.m20.infrastructure.saga;
+
+/**
+ * Thrown when a saga's lease was taken over by another node, which now finishes the saga; this
+ * node must stop running it.
+ */
+public class SagaLeaseLostException extends IllegalStateException {
+
+    public SagaLeaseLostException(String sagaId) {
+        super("Saga [" + sagaId + "] is no longer leased to this node");
+    }
+}
@@ -1,58 +1,112 @@
 package com.mongodb.course.m20.infrastructure.saga;
 
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 
+import java.time.Duration;
 import java.time.Instant;
-import java.util.Map;
+import java.util.List;
 import java.util.Optional;
+import java.util.UUID;
 
+/**
+ * Saga logs are leased to the node running them. Every write renews the lease and only lands
+ * while this node still holds it, so a saga taken over by {@link SagaRecoveryService} elsewhere
+ * is no longer written from here. The orchestrator also renews the lease while a step runs.
+ */
 @Service
 public class SagaLogRepository {
 
+    private static final Logger log = LoggerFactory.getLogger(SagaLogRepository.class);
+
+    private static final List<SagaStatus> IN_FLIGHT = List.of(SagaStatus.RUNNING, SagaStatus.COMPENSATING);
+
     private final MongoTemplate mongoTemplate;
+    private final String nodeId;
+    private final Duration lease;
 
-    public SagaLogRepository(MongoTemplate mongoTemplate) {
+    public SagaLogRepository(MongoTemplate mongoTemplate,
+                             @Value("${saga.node-id:}") String nodeId,
+                             @Value("${saga.lease-ms:60000}") long leaseMs) {
         this.mongoTemplate = mongoTemplate;
+        this.nodeId = nodeId.isBlank() ? UUID.randomUUID().toString() : nodeId;
+        this.lease = Duration.ofMillis(leaseMs);
     }
 
     public SagaLog save(SagaLog sagaLog) {
-        return mongoTemplate.save(sagaLog);
+        return mongoTemplate.save(sagaLog.leasedTo(nodeId, Instant.now().plus(lease)));
     }
 
     public Optional<SagaLog> findById(String sagaId) {
         return Optional.ofNullable(mongoTemplate.findById(sagaId, SagaLog.class));
     }
 
-    public void updateStatus(String sagaId, SagaStatus status) {
-        var query = Query.query(Criteria.where("_id").is(sagaId));
-        var update = new Update().set("status", status);
-        if (status == SagaStatus.COMPLETED || status == SagaStatus.COMPENSATED || status == SagaStatus.FAILED) {
-            update.set("completedAt", Instant.now());
+    /**
+     * Applies a merged set of log changes as one atomic update. Returns false, dropping the update,
+     * when the saga is no longer leased to this node.
+     */
+    public boolean update(String sagaId, Update update) {
+        var query = Query.query(Criteria.where("_id").is(sagaId).and("leaseOwner").is(nodeId));
+        var result = mongoTemplate.updateFirst(query, update.set("leaseUntil", Instant.now().plus(lease)), SagaLog.class);
+        if (result.getMatchedCount() == 0) {
+            log.warn("Saga [{}] is no longer leased to node {}; update dropped", sagaId, nodeId);
+            return false;
         }
-        mongoTemplate.updateFirst(query, update, SagaLog.class);
+        return true;
     }
 
-    public void updateStep(String sagaId, int stepIndex, StepLog stepLog) {
-        var query = Query.query(Criteria.where("_id").is(sagaId));
-        var update = new Update()
-                .set("steps." + stepIndex, stepLog)
-                .set("currentStepIndex", stepIndex);
-        mongoTemplate.updateFirst(query, update, SagaLog.class);
+    /**
+     * Extends this node's lease on a saga; false when the lease has been lost.
+     */
+    public boolean renewLease(String sagaId) {
+        return update(sagaId, new Update());
+    }
+
+    public Duration leaseDuration() {
+        return lease;
+    }
+
+    /**
+     * Ids of in-flight sagas whose lease has run out, oldest first.
+     */
+    public List<String> findStale(int limit) {
+        var query = Query.query(staleCriteria(Instant.now()))
+                .with(Sort.by("startedAt"))
+                .limit(limit);
+        query.fields().include("_id");
+        return mongoTemplate.find(query, Document.class, mongoTemplate.getCollectionName(SagaLog.class)).stream()
+                .map(document -> document.getString("_id"))
+                .toList();
     }
 
-    public void updateContext(String sagaId, Map<String, Object> context) {
-        var query = Query.query(Criteria.where("_id").is(sagaId));
-        var update = new Update().set("context", context);
-        mongoTemplate.updateFirst(query, update, SagaLog.class);
+    /**
+     * Takes over a stale saga for this node; empty when another node claimed it first.
+     */
+    public Optional<SagaLog> claim(String sagaId) {
+        var now = Instant.now();
+        var query = Query.query(Criteria.where("_id").is(sagaId).andOperator(staleCriteria(now)));
+        var update = new Update()
+                .set("leaseOwner", nodeId)
+                .set("leaseUntil", now.plus(lease));
+        return Optional.ofNullable(mongoTemplate.findAndModify(query, update,
+                FindAndModifyOptions.options().returnNew(true), SagaLog.class));
     }
 
-    public void updateFailureReason(String sagaId, String reason) {
-        var query = Query.query(Criteria.where("_id").is(sagaId));
-        var update = new Update().set("failureReason", reason);
-        mongoTemplate.updateFirst(query, update, SagaLog.class);
+    private Criteria staleCriteria(Instant now) {
+        // A saga younger than one lease cannot have an expired lease; the bound keeps the scan on the index
+        return new Criteria().andOperator(
+                Criteria.where("status").in(IN_FLIGHT).and("startedAt").lt(now.minus(lease)),
+                new Criteria().orOperator(
+                        Criteria.where("leaseUntil").lt(now),
+                        Criteria.where("leaseUntil").exists(false)));
     }
 }
@@ -1,12 +1,11 @@
 package com.mongodb.course.m20.projection;
 
 import com.mongodb.course.m20.claim.event.*;
+import com.mongodb.course.m20.infrastructure.ProjectionBatch;
 import com.mongodb.course.m20.projection.readmodel.ClaimDashboardDocument;
 import com.mongodb.course.m20.projection.readmodel.TimelineEntry;
 import org.bson.types.Decimal128;
 import org.springframework.data.mongodb.core.MongoTemplate;
-import org.springframework.data.mongodb.core.query.Criteria;
-import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 
@@ -19,12 +18,20 @@ public class ClaimDashboardProjector {
     private static final String COLLECTION = "m20_claim_dashboard";
 
     private final MongoTemplate mongoTemplate;
+    private final TimelineStore timelineStore;
 
-    public ClaimDashboardProjector(MongoTemplate mongoTemplate) {
+    public ClaimDashboardProjector(MongoTemplate mongoTemplate, TimelineStore timelineStore) {
         this.mongoTemplate = mongoTemplate;
+        this.timelineStore = timelineStore;
     }
 
     public void project(ClaimEvent event) {
+        var batch = new ProjectionBatch(mongoTemplate);
+        project(event, batch);
+        batch.flush();
+    }
+
+    public void project(ClaimEvent event, ProjectionBatch batch) {
         switch (event) {
             case ClaimFiled e -> {
                 var timeline = new TimelineEntry("FILED", e.occurredAt(),
@@ -35,66 +42,62 @@ public class ClaimDashboardProjector {
                         e.claimedAmount(), null, null, null,
                         null, List.of(timeline),
                         e.occurredAt(), e.version());
-                mongoTemplate.insert(doc, COLLECTION);
+                batch.insert(COLLECTION, doc);
+                timelineStore.append(batch, e.aggregateId(), e.version(), timeline);
             }
             case ClaimInvestigated e -> {
-                var query = Query.query(Criteria.where("_id").is(e.aggregateId()));
                 var timeline = new TimelineEntry("INVESTIGATED", e.occurredAt(),
                         "Investigation: " + e.findings() + " (risk: " + e.fraudRisk() + ")");
                 var update = new Update()
                         .set("status", "UNDER_INVESTIGATION")
                         .set("fraudRisk", e.fraudRisk())
-                        .push("timeline", timeline)
-                        .set("lastUpdatedAt", e.occurredAt())
-                        .set("projectedVersion", e.version());
-                mongoTemplate.updateFirst(query, update, COLLECTION);
+                        .set("lastUpdatedAt", e.occurredAt());
+                timelineStore.pushInline(update, timeline);
+                timelineStore.append(batch, e.aggregateId(), e.version(), timeline);
+                batch.updateIfNewer(COLLECTION, e.aggregateId(), e.version(), update);
             }
             case ClaimAssessed e -> {
-                var query = Query.query(Criteria.where("_id").is(e.aggregateId()));
                 var timeline = new TimelineEntry("ASSESSED", e.occurredAt(),
                         "Assessed: " + e.assessedAmount() + " (" + e.assessmentNotes() + ")");
                 var update = new Update()
                         .set("status", "ASSESSED")
                         .set("assessedAmount", new Decimal128(e.assessedAmount()))
-                        .push("timeline", timeline)
-                        .set("lastUpdatedAt", e.occurredAt())
-                        .set("projectedVersion", e.version());
-                mongoTemplate.updateFirst(query, update, COLLECTION);
+                        .set("lastUpdatedAt", e.occurredAt());
+                timelineStore.pushInline(update, timeline);
+                timelineStore.append(batch, e.aggregateId(), e.version(), timeline);
+                batch.updateIfNewer(COLLECTION, e.aggregateId(), e.version(), update);
             }
             case ClaimApproved e -> {
-                var query = Query.query(Criteria.where("_id").is(e.aggregateId()));
                 var timeline = new TimelineEntry("APPROVED", e.occurredAt(),
                         "Approved: " + e.approvedAmount());
                 var update = new Update()
                         .set("status", "APPROVED")
                         .set("approvedAmount", new Decimal128(e.approvedAmount()))
-                        .push("timeline", timeline)
-                        .set("lastUpdatedAt", e.occurredAt())
-                        .set("projectedVersion", e.version());
-                mongoTemplate.updateFirst(query, update, COLLECTION);
+                        .set("lastUpdatedAt", e.occurredAt());
+                timelineStore.pushInline(update, timeline);
+                timelineStore.append(batch, e.aggregateId(), e.version(), timeline);
+                batch.updateIfNewer(COLLECTION, e.aggregateId(), e.version(), update);
             }
             case ClaimRejected e -> {
-                var query = Query.query(Criteria.where("_id").is(e.aggregateId()));
                 var timeline = new TimelineEntry("REJECTED", e.occurredAt(),
                         "Rejected: " + e.rejectionReason());
                 var update = new Update()
                         .set("status", "REJECTED")
-                        .push("timeline", timeline)
-                        .set("lastUpdatedAt", e.occurredAt())
-                        .set("projectedVersion", e.version());
-                mongoTemplate.updateFirst(query, update, COLLECTION);
+                        .set("lastUpdatedAt", e.occurredAt());
+                timelineStore.pushInline(update, timeline);
+                timelineStore.append(batch, e.aggregateId(), e.version(), timeline);
+                batch.updateIfNewer(COLLECTION, e.aggregateId(), e.version(), update);
             }
             case ClaimPaid e -> {
-                var query = Query.query(Criteria.where("_id").is(e.aggregateId()));
                 var timeline = new TimelineEntry("PAID", e.occurredAt(),
                         "Paid: " + e.paidAmount() + " (ref: " + e.paymentReference() + ")");
                 var update = new Update()
                         .set("status", "PAID")
                         .set("paidAmount", new Decimal128(e.paidAmount()))
-                        .push("timeline", timeline)
-                        .set("lastUpdatedAt", e.occurredAt())
-                        .set("projectedVersion", e.version());
-                mongoTemplate.updateFirst(query, update, COLLECTION);
+                        .set("lastUpdatedAt", e.occurredAt());
+                timelineStore.pushInline(update, timeline);
+                timelineStore.append(batch, e.aggregateId(), e.version(), timeline);
+                batch.updateIfNewer(COLLECTION, e.aggregateId(), e.version(), update);
             }
         }
     }
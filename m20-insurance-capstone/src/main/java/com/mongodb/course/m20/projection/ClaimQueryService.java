@@ -2,6 +2,7 @@ package com.mongodb.course.m20.projection;
 
 import com.mongodb.course.m20.projection.readmodel.ClaimDashboardDocument;
 import com.mongodb.course.m20.projection.readmodel.ClaimStatisticsDocument;
+import com.mongodb.course.m20.projection.readmodel.TimelinePage;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
@@ -17,9 +18,11 @@ public class ClaimQueryService {
     private static final String STATISTICS = "m20_claim_statistics";
 
     private final MongoTemplate mongoTemplate;
+    private final TimelineStore timelineStore;
 
-    public ClaimQueryService(MongoTemplate mongoTemplate) {
+    public ClaimQueryService(MongoTemplate mongoTemplate, TimelineStore timelineStore) {
         this.mongoTemplate = mongoTemplate;
+        this.timelineStore = timelineStore;
     }
 
     public Optional<ClaimDashboardDocument> findDashboardByClaimId(String claimId) {
@@ -27,6 +30,13 @@ public class ClaimQueryService {
                 mongoTemplate.findById(claimId, ClaimDashboardDocument.class, DASHBOARD));
     }
 
+    /**
+     * The full timeline, oldest first, one page at a time; the dashboard only keeps the latest entries.
+     */
+    public TimelinePage findTimeline(String claimId, int page, int size) {
+        return timelineStore.page(claimId, page, size);
+    }
+
     public List<ClaimDashboardDocument> findDashboardByCategory(String category) {
         var query = Query.query(Criteria.where("category").is(category));
         return mongoTemplate.find(query, ClaimDashboardDocument.class, DASHBOARD);
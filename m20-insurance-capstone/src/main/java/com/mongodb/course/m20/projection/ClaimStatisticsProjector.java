@@ -1,75 +1,112 @@
 package com.mongodb.course.m20.projection;
 
 import com.mongodb.course.m20.claim.event.*;
+import com.mongodb.course.m20.infrastructure.ProjectionBatch;
+import org.bson.Document;
 import org.bson.types.Decimal128;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Maintains per-category claim counters with one upsert per event. A claim's category is only on
+ * its {@link ClaimFiled} event, so later events resolve it from a bounded claim-to-category index
+ * filled by those events, falling back to the event store for claims filed before it was warm.
+ */
 @Service
 public class ClaimStatisticsProjector {
 
     private static final String COLLECTION = "m20_claim_statistics";
+    private static final String CLAIM_EVENTS = "m20_claim_events";
 
     private final MongoTemplate mongoTemplate;
+    private final int maxIndexedClaims;
+    private final Map<String, String> categories;
 
-    public ClaimStatisticsProjector(MongoTemplate mongoTemplate) {
+    public ClaimStatisticsProjector(MongoTemplate mongoTemplate,
+                                    @Value("${projection.statistics.category-index.max-entries:10000}") int maxIndexedClaims) {
         this.mongoTemplate = mongoTemplate;
+        this.maxIndexedClaims = maxIndexedClaims;
+        this.categories = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > ClaimStatisticsProjector.this.maxIndexedClaims;
+            }
+        };
     }
 
     public void project(ClaimEvent event) {
+        var batch = new ProjectionBatch(mongoTemplate);
+        project(event, batch);
+        batch.flush();
+    }
+
+    public void project(ClaimEvent event, ProjectionBatch batch) {
         switch (event) {
             case ClaimFiled e -> {
-                var query = Query.query(Criteria.where("_id").is(e.category()));
+                synchronized (categories) {
+                    categories.put(e.aggregateId(), e.category());
+                }
                 var update = new Update()
                         .inc("totalClaims", 1)
                         .inc("filedCount", 1)
                         .inc("totalClaimedAmount", new Decimal128(e.claimedAmount()));
-                mongoTemplate.upsert(query, update, COLLECTION);
+                batch.upsert(COLLECTION, e.category(), update);
             }
             case ClaimInvestigated e -> {
                 String category = getCategoryForClaim(e.aggregateId());
-                var query = Query.query(Criteria.where("_id").is(category));
                 var update = new Update().inc("investigatedCount", 1);
-                mongoTemplate.upsert(query, update, COLLECTION);
+                batch.upsert(COLLECTION, category, update);
             }
             case ClaimAssessed e -> {
                 String category = getCategoryForClaim(e.aggregateId());
-                var query = Query.query(Criteria.where("_id").is(category));
                 var update = new Update().inc("assessedCount", 1);
-                mongoTemplate.upsert(query, update, COLLECTION);
+                batch.upsert(COLLECTION, category, update);
             }
             case ClaimApproved e -> {
                 String category = getCategoryForClaim(e.aggregateId());
-                var query = Query.query(Criteria.where("_id").is(category));
                 var update = new Update()
                         .inc("approvedCount", 1)
                         .inc("totalApprovedAmount", new Decimal128(e.approvedAmount()));
-                mongoTemplate.upsert(query, update, COLLECTION);
+                batch.upsert(COLLECTION, category, update);
             }
             case ClaimRejected e -> {
                 String category = getCategoryForClaim(e.aggregateId());
-                var query = Query.query(Criteria.where("_id").is(category));
                 var update = new Update().inc("rejectedCount", 1);
-                mongoTemplate.upsert(query, update, COLLECTION);
+                batch.upsert(COLLECTION, category, update);
             }
             case ClaimPaid e -> {
                 String category = getCategoryForClaim(e.aggregateId());
-                var query = Query.query(Criteria.where("_id").is(category));
                 var update = new Update()
                         .inc("paidCount", 1)
                         .inc("totalPaidAmount", new Decimal128(e.paidAmount()));
-                mongoTemplate.upsert(query, update, COLLECTION);
+                batch.upsert(COLLECTION, category, update);
             }
         }
     }
 
     private String getCategoryForClaim(String claimId) {
-        var query = Query.query(Criteria.where("_id").is(claimId));
-        var dashboard = mongoTemplate.findOne(query,
-                org.bson.Document.class, "m20_claim_dashboard");
-        return dashboard != null ? dashboard.getString("category") : "UNKNOWN";
+        synchronized (categories) {
+            var category = categories.get(claimId);
+            if (category != null) {
+                return category;
+            }
+        }
+        var query = Query.query(Criteria.where("aggregateId").is(claimId).and("version").is(1));
+        query.fields().include("category");
+        var filed = mongoTemplate.findOne(query, Document.class, CLAIM_EVENTS);
+        if (filed == null || filed.getString("category") == null) {
+            return "UNKNOWN";
+        }
+        synchronized (categories) {
+            categories.put(claimId, filed.getString("category"));
+        }
+        return filed.getString("category");
     }
 }
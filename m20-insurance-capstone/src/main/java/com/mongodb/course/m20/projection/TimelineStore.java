@@ -0,0 +1,110 @@
+package com.mongodb.course.m20.projection;
+
+import com.mongodb.course.m20.infrastructure.ProjectionBatch;
+import com.mongodb.course.m20.projection.readmodel.TimelineEntry;
+import com.mongodb.course.m20.projection.readmodel.TimelinePage;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.ArrayOperators;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.TreeMap;
+import java.util.stream.LongStream;
+
+/**
+ * Bounded timeline storage for claim dashboards. The dashboard keeps only the latest entries
+ * inline (a {@code $push} with {@code $slice}); the full history goes into fixed-size bucket
+ * documents, one per {@code bucket-size} events, which back the paged timeline query. Every claim
+ * event adds exactly one entry, stamped with its event version: pages select entries by version,
+ * and a redelivered entry equals the stored one, so {@code $addToSet} leaves it out.
+ */
+@Component
+public class TimelineStore {
+
+    private static final String BUCKETS = "m20_claim_timeline_buckets";
+
+    private final MongoTemplate mongoTemplate;
+    private final int inlineEntries;
+    private final int bucketSize;
+
+    public TimelineStore(MongoTemplate mongoTemplate,
+                         @Value("${projection.timeline.inline-entries:20}") int inlineEntries,
+                         @Value("${projection.timeline.bucket-size:50}") int bucketSize) {
+        this.mongoTemplate = mongoTemplate;
+        this.inlineEntries = inlineEntries;
+        this.bucketSize = bucketSize;
+    }
+
+    /**
+     * Adds {@code entry} to the dashboard's inline timeline, dropping the oldest beyond the bound.
+     */
+    public Update pushInline(Update update, TimelineEntry entry) {
+        return update.push("timeline").slice(-inlineEntries).each(entry);
+    }
+
+    public void append(ProjectionBatch batch, String aggregateId, long version, TimelineEntry entry) {
+        long bucket = bucketOf(version);
+        var stored = (Document) mongoTemplate.getConverter().convertToMongoType(entry);
+        stored.put("version", version);
+        var update = new Update()
+                .addToSet("entries", stored)
+                .setOnInsert("aggregateId", aggregateId)
+                .setOnInsert("bucket", bucket);
+        batch.upsert(BUCKETS, bucketId(aggregateId, bucket), update);
+    }
+
+    /**
+     * Timeline entries in the order they happened; {@code page} is zero-based.
+     */
+    public TimelinePage page(String aggregateId, int page, int size) {
+        if (page < 0 || size <= 0) {
+            throw new IllegalArgumentException("Invalid timeline page " + page + " of size " + size);
+        }
+        long first = (long) page * size + 1;
+        long last = first + size - 1;
+        var ids = LongStream.rangeClosed(bucketOf(first), bucketOf(last))
+                .mapToObj(bucket -> bucketId(aggregateId, bucket))
+                .toList();
+        var query = Query.query(Criteria.where("_id").in(ids)).with(Sort.by("bucket"));
+        var entries = new TreeMap<Long, TimelineEntry>();
+        for (var bucket : mongoTemplate.find(query, Document.class, BUCKETS)) {
+            long position = bucket.get("bucket", Number.class).longValue() * bucketSize + 1;
+            for (var entry : bucket.getList("entries", Document.class)) {
+                // Entries stored before they carried a version fall back to their position
+                long version = entry.get("version") instanceof Number stored ? stored.longValue() : position;
+                if (version >= first && version <= last) {
+                    entries.putIfAbsent(version, mongoTemplate.getConverter().read(TimelineEntry.class, entry));
+                }
+                position++;
+            }
+        }
+        return new TimelinePage(aggregateId, page, size, totalEntries(aggregateId), List.copyOf(entries.values()));
+    }
+
+    public void clear() {
+        mongoTemplate.remove(new Query(), BUCKETS);
+    }
+
+    private long totalEntries(String aggregateId) {
+        var aggregation = Aggregation.newAggregation(
+                Aggregation.match(Criteria.where("aggregateId").is(aggregateId)),
+                Aggregation.group("aggregateId").sum(ArrayOperators.Size.lengthOfArray("entries")).as("total"));
+        var result = mongoTemplate.aggregate(aggregation, BUCKETS, Document.class).getUniqueMappedResult();
+        return result != null ? result.get("total", Number.class).longValue() : 0;
+    }
+
+    private long bucketOf(long position) {
+        return (position - 1) / bucketSize;
+    }
+
+    private static String bucketId(String aggregateId, long bucket) {
+        return aggregateId + "|" + bucket;
+    }
+}
@@ -1,53 +1,76 @@
 package com.mongodb.course.m20.settlement;
 
 import com.mongodb.course.m20.infrastructure.saga.SagaContext;
+import com.mongodb.course.m20.infrastructure.saga.SagaGraph;
 import com.mongodb.course.m20.infrastructure.saga.SagaOrchestrator;
-import com.mongodb.course.m20.infrastructure.saga.SagaStep;
+import com.mongodb.course.m20.infrastructure.saga.SagaRecoveryService;
 import com.mongodb.course.m20.settlement.step.ApproveClaimStep;
 import com.mongodb.course.m20.settlement.step.FraudCheckStep;
+import com.mongodb.course.m20.settlement.step.LookupPolicyStep;
 import com.mongodb.course.m20.settlement.step.NotifySettlementStep;
 import com.mongodb.course.m20.settlement.step.UpdatePolicyStep;
 import org.springframework.stereotype.Service;
 
 import java.math.BigDecimal;
-import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 @Service
 public class ClaimSettlementSagaService {
 
+    private static final String SAGA_TYPE = "CLAIM_SETTLEMENT";
+
     private final SagaOrchestrator orchestrator;
     private final FraudCheckStep fraudCheckStep;
+    private final LookupPolicyStep lookupPolicyStep;
     private final ApproveClaimStep approveClaimStep;
     private final UpdatePolicyStep updatePolicyStep;
     private final NotifySettlementStep notifySettlementStep;
 
     public ClaimSettlementSagaService(SagaOrchestrator orchestrator,
                                       FraudCheckStep fraudCheckStep,
+                                      LookupPolicyStep lookupPolicyStep,
                                       ApproveClaimStep approveClaimStep,
                                       UpdatePolicyStep updatePolicyStep,
-                                      NotifySettlementStep notifySettlementStep) {
+                                      NotifySettlementStep notifySettlementStep,
+                                      SagaRecoveryService recoveryService) {
         this.orchestrator = orchestrator;
         this.fraudCheckStep = fraudCheckStep;
+        this.lookupPolicyStep = lookupPolicyStep;
         this.approveClaimStep = approveClaimStep;
         this.updatePolicyStep = updatePolicyStep;
         this.notifySettlementStep = notifySettlementStep;
+        recoveryService.register(SAGA_TYPE, steps());
     }
 
     public String settle(String claimId, String policyId, String category,
                          BigDecimal assessedAmount) {
+        return orchestrator.execute(SAGA_TYPE, steps(),
+                context(claimId, policyId, category, assessedAmount));
+    }
+
+    public CompletableFuture<String> settleAsync(String claimId, String policyId, String category,
+                                                 BigDecimal assessedAmount) {
+        return orchestrator.executeAsync(SAGA_TYPE, steps(),
+                context(claimId, policyId, category, assessedAmount));
+    }
+
+    private SagaGraph steps() {
+        // The fraud check and the policy lookup are independent reads
+        return new SagaGraph()
+                .step(fraudCheckStep)
+                .step(lookupPolicyStep)
+                .step(approveClaimStep, fraudCheckStep, lookupPolicyStep)
+                .step(updatePolicyStep, approveClaimStep)
+                .step(notifySettlementStep, updatePolicyStep);
+    }
+
+    private static SagaContext context(String claimId, String policyId, String category,
+                                       BigDecimal assessedAmount) {
         var context = new SagaContext();
         context.put("claimId", claimId);
         context.put("policyId", policyId);
         context.put("category", category);
         context.put("assessedAmount", assessedAmount.toPlainString());
-
-        List<SagaStep> steps = List.of(
-                fraudCheckStep,
-                approveClaimStep,
-                updatePolicyStep,
-                notifySettlementStep
-        );
-
-        return orchestrator.execute("CLAIM_SETTLEMENT", steps, context);
+        return context;
     }
 }
@@ -26,13 +26,13 @@ public class ApproveClaimStep implements SagaStep {
         String claimId = context.get("claimId", String.class);
         BigDecimal amount = new BigDecimal(context.get("assessedAmount", String.class));
 
-        claimCommandService.approve(claimId, amount);
+        claimCommandService.approve(claimId, amount, context.stepKey(name()));
         context.put("approvedAmount", amount.toPlainString());
     }
 
     @Override
     public void compensate(SagaContext context) {
         String claimId = context.get("claimId", String.class);
-        claimCommandService.reject(claimId, "Settlement saga compensation");
+        claimCommandService.reject(claimId, "Settlement saga compensation", context.stepKey(name() + ":compensate"));
     }
 }
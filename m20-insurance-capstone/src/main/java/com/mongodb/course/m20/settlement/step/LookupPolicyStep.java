@@ -0,0 +1,46 @@
+package com.mongodb.course.m20.settlement.step;
+
+import com.mongodb.course.m20.infrastructure.saga.SagaContext;
+import com.mongodb.course.m20.infrastructure.saga.SagaStep;
+import org.bson.Document;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+@Component
+public class LookupPolicyStep implements SagaStep {
+
+    private static final String COLLECTION = "m20_policies";
+
+    private final MongoTemplate mongoTemplate;
+
+    public LookupPolicyStep(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Override
+    public String name() {
+        return "LOOKUP_POLICY";
+    }
+
+    @Override
+    public void execute(SagaContext context) {
+        String policyId = context.get("policyId", String.class);
+
+        // Read only the type alias; UpdatePolicyStep picks its counters from it
+        var query = Query.query(Criteria.where("_id").is(policyId));
+        query.fields().include("_class");
+        var rawDoc = mongoTemplate.findOne(query, Document.class, COLLECTION);
+        if (rawDoc == null) {
+            throw new IllegalStateException("Policy not found: " + policyId);
+        }
+
+        context.put("policyTypeAlias", rawDoc.getString("_class"));
+    }
+
+    @Override
+    public void compensate(SagaContext context) {
+        // Read-only step, no compensation needed
+    }
+}
@@ -5,11 +5,12 @@ import com.mongodb.course.m20.infrastructure.saga.SagaContext;
 import com.mongodb.course.m20.infrastructure.saga.SagaStep;
 import com.mongodb.course.m20.notification.ClaimStatusNotification;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Component;
 
 import java.math.BigDecimal;
 import java.time.Instant;
-import java.util.UUID;
 
 @Component
 public class NotifySettlementStep implements SagaStep {
@@ -36,12 +37,18 @@ public class NotifySettlementStep implements SagaStep {
         BigDecimal amount = new BigDecimal(context.get("approvedAmount", String.class));
         String sagaId = context.get("sagaId", String.class);
 
+        String stepKey = context.stepKey(name());
+
         // Pay the claim
-        claimCommandService.pay(claimId, amount, "SAGA-" + sagaId);
+        claimCommandService.pay(claimId, amount, "SAGA-" + sagaId, stepKey);
 
-        // Insert notification
+        // Insert notification, once per saga
+        var sent = Query.query(Criteria.where("claimId").is(claimId).and("notificationId").is(stepKey));
+        if (mongoTemplate.exists(sent, NOTIFICATIONS)) {
+            return;
+        }
         var notification = new ClaimStatusNotification(
-                UUID.randomUUID().toString(),
+                stepKey,
                 claimId,
                 "PAID",
                 "Claim settled: " + amount + " paid",
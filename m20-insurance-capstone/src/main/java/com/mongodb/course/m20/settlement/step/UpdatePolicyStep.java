@@ -2,7 +2,6 @@ package com.mongodb.course.m20.settlement.step;
 
 import com.mongodb.course.m20.infrastructure.saga.SagaContext;
 import com.mongodb.course.m20.infrastructure.saga.SagaStep;
-import org.bson.Document;
 import org.bson.types.Decimal128;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
@@ -16,6 +15,8 @@ import java.math.BigDecimal;
 public class UpdatePolicyStep implements SagaStep {
 
     private static final String COLLECTION = "m20_policies";
+    // Steps of running sagas whose counters a policy holds, so a repeated step or compensation changes nothing
+    private static final String APPLIED_STEPS = "appliedSagaSteps";
 
     private final MongoTemplate mongoTemplate;
 
@@ -32,16 +33,12 @@ public class UpdatePolicyStep implements SagaStep {
     public void execute(SagaContext context) {
         String policyId = context.get("policyId", String.class);
         BigDecimal amount = new BigDecimal(context.get("approvedAmount", String.class));
+        String typeAlias = context.get("policyTypeAlias", String.class);
 
-        // Read raw document to determine policy type
-        var rawDoc = mongoTemplate.findById(policyId, Document.class, COLLECTION);
-        if (rawDoc == null) {
-            throw new IllegalStateException("Policy not found: " + policyId);
-        }
+        String stepKey = context.stepKey(name());
 
-        String typeAlias = rawDoc.getString("_class");
-        var query = Query.query(Criteria.where("_id").is(policyId));
-        var update = new Update().inc("totalClaimsPaid", new Decimal128(amount));
+        var query = Query.query(Criteria.where("_id").is(policyId).and(APPLIED_STEPS).ne(stepKey));
+        var update = new Update().inc("totalClaimsPaid", new Decimal128(amount)).addToSet(APPLIED_STEPS, stepKey);
 
         // Polymorphic switch: type-specific counter update
         switch (typeAlias) {
@@ -52,7 +49,6 @@ public class UpdatePolicyStep implements SagaStep {
         }
 
         mongoTemplate.updateFirst(query, update, COLLECTION);
-        context.put("policyTypeAlias", typeAlias);
     }
 
     @Override
@@ -61,8 +57,10 @@ public class UpdatePolicyStep implements SagaStep {
         BigDecimal amount = new BigDecimal(context.get("approvedAmount", String.class));
         String typeAlias = context.get("policyTypeAlias", String.class);
 
-        var query = Query.query(Criteria.where("_id").is(policyId));
-        var update = new Update().inc("totalClaimsPaid", new Decimal128(amount.negate()));
+        String stepKey = context.stepKey(name());
+
+        var query = Query.query(Criteria.where("_id").is(policyId).and(APPLIED_STEPS).is(stepKey));
+        var update = new Update().inc("totalClaimsPaid", new Decimal128(amount.negate())).pull(APPLIED_STEPS, stepKey);
 
         if (typeAlias != null) {
             switch (typeAlias) {
@@ -74,4 +72,11 @@ public class UpdatePolicyStep implements SagaStep {
 
         mongoTemplate.updateFirst(query, update, COLLECTION);
     }
+
+    @Override
+    public void release(SagaContext context) {
+        String policyId = context.get("policyId", String.class);
+        var update = new Update().pull(APPLIED_STEPS, context.stepKey(name()));
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(policyId)), update, COLLECTION);
+    }
 }
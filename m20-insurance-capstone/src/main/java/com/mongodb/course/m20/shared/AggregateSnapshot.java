@@ -0,0 +1,5 @@
+package com.mongodb.course.m20.shared;
+
+public interface AggregateSnapshot {
+    long version();
+}
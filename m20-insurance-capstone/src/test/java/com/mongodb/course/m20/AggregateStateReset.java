@@ -0,0 +1,33 @@
+package com.mongodb.course.m20;
+
+import com.mongodb.course.m20.claim.service.ClaimCommandService;
+import com.mongodb.course.m20.infrastructure.Snapshotter;
+import com.mongodb.course.m20.projection.ProjectionPipeline;
+import org.springframework.boot.test.context.TestComponent;
+
+/**
+ * Clears in-memory state keyed by aggregate id. Tests delete event streams between cases and
+ * reuse ids, which production never does, so they reset this state alongside the collections.
+ * Call it before deleting them, so snapshot writes still queued land first.
+ */
+@TestComponent
+public class AggregateStateReset {
+
+    private final ClaimCommandService claimCommandService;
+    private final Snapshotter snapshotter;
+    private final ProjectionPipeline projectionPipeline;
+
+    public AggregateStateReset(ClaimCommandService claimCommandService, Snapshotter snapshotter,
+                               ProjectionPipeline projectionPipeline) {
+        this.claimCommandService = claimCommandService;
+        this.snapshotter = snapshotter;
+        this.projectionPipeline = projectionPipeline;
+    }
+
+    public void reset() {
+        claimCommandService.clearCache();
+        snapshotter.flush();
+        snapshotter.reset();
+        projectionPipeline.forgetProgress();
+    }
+}
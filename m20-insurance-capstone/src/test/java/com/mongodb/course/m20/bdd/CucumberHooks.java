@@ -1,5 +1,6 @@
 package com.mongodb.course.m20.bdd;
 
+import com.mongodb.course.m20.AggregateStateReset;
 import com.mongodb.course.m20.notification.ClaimStatusNotificationListener;
 import com.mongodb.course.m20.observability.SlowQueryDetector;
 import io.cucumber.java.After;
@@ -13,9 +14,11 @@ public class CucumberHooks {
     @Autowired private MongoTemplate mongoTemplate;
     @Autowired private SlowQueryDetector slowQueryDetector;
     @Autowired private ClaimStatusNotificationListener notificationListener;
+    @Autowired private AggregateStateReset aggregateStateReset;
 
     @Before
     public void cleanUp() {
+        aggregateStateReset.reset();
         mongoTemplate.remove(new Query(), "m20_claim_events");
         mongoTemplate.remove(new Query(), "m20_snapshots");
         mongoTemplate.remove(new Query(), "m20_claim_dashboard");
@@ -1,5 +1,6 @@
 package com.mongodb.course.m20.claim;
 
+import com.mongodb.course.m20.AggregateStateReset;
 import com.mongodb.course.m20.SharedContainersConfig;
 import com.mongodb.course.m20.claim.model.ClaimStatus;
 import com.mongodb.course.m20.claim.service.ClaimCommandService;
@@ -29,9 +30,11 @@ class ClaimCommandServiceTest {
     @Autowired private EventStore eventStore;
     @Autowired private ClaimQueryService claimQueryService;
     @Autowired private MongoTemplate mongoTemplate;
+    @Autowired private AggregateStateReset aggregateStateReset;
 
     @BeforeEach
     void setUp() {
+        aggregateStateReset.reset();
         mongoTemplate.remove(new Query(), "m20_claim_events");
         mongoTemplate.remove(new Query(), "m20_snapshots");
         mongoTemplate.remove(new Query(), "m20_claim_dashboard");
@@ -1,6 +1,8 @@
 package com.mongodb.course.m20.projection;
 
+import com.mongodb.course.m20.AggregateStateReset;
 import com.mongodb.course.m20.SharedContainersConfig;
+import com.mongodb.course.m20.claim.event.ClaimInvestigated;
 import com.mongodb.course.m20.claim.service.ClaimCommandService;
 import com.mongodb.course.m20.policy.AutoPolicy;
 import com.mongodb.course.m20.policy.HealthPolicy;
@@ -14,6 +16,8 @@ import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Query;
 
 import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.UUID;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -24,10 +28,13 @@ class ClaimProjectionTest {
     @Autowired private ClaimCommandService claimCommandService;
     @Autowired private PolicyService policyService;
     @Autowired private ClaimQueryService claimQueryService;
+    @Autowired private ProjectionPipeline projectionPipeline;
     @Autowired private MongoTemplate mongoTemplate;
+    @Autowired private AggregateStateReset aggregateStateReset;
 
     @BeforeEach
     void setUp() {
+        aggregateStateReset.reset();
         mongoTemplate.remove(new Query(), "m20_claim_events");
         mongoTemplate.remove(new Query(), "m20_snapshots");
         mongoTemplate.remove(new Query(), "m20_claim_dashboard");
@@ -84,4 +91,51 @@ class ClaimProjectionTest {
         assertThat(healthStats).isPresent();
         assertThat(healthStats.get().totalClaims()).isEqualTo(1);
     }
+
+    @Test
+    void statisticsResolveCategoryWithoutDashboard() {
+        var policy = new HealthPolicy("pol-p7", "POL-P07", "Lin",
+                new BigDecimal("8000"), new BigDecimal("300000"), "STANDARD");
+        policyService.save(policy);
+        claimCommandService.fileClaim("CLM-P07", "pol-p7", "Lin", "HEALTH",
+                new BigDecimal("15000"), "Surgery");
+        mongoTemplate.remove(new Query(), "m20_claim_dashboard");
+
+        // A projector that never saw the ClaimFiled event falls back to the event store
+        var coldProjector = new ClaimStatisticsProjector(mongoTemplate, 10);
+        coldProjector.project(new ClaimInvestigated(UUID.randomUUID().toString(), "CLM-P07", 2,
+                Instant.now(), "Inspector", "OK", "LOW"));
+
+        var healthStats = claimQueryService.findStatisticsByCategory("HEALTH");
+        assertThat(healthStats).isPresent();
+        assertThat(healthStats.get().investigatedCount()).isEqualTo(1);
+        assertThat(claimQueryService.findStatisticsByCategory("UNKNOWN")).isEmpty();
+    }
+
+    @Test
+    void rebuildReplaysEventsInBatches() {
+        var policy = new AutoPolicy("pol-p5", "POL-P05", "Chen",
+                new BigDecimal("10000"), new BigDecimal("500000"), "Sedan");
+        policyService.save(policy);
+
+        claimCommandService.fileClaim("CLM-P05", "pol-p5", "Chen", "AUTO",
+                new BigDecimal("12000"), "Scratch");
+        claimCommandService.investigate("CLM-P05", "Inspector", "OK", "LOW");
+        claimCommandService.assess("CLM-P05", new BigDecimal("10000"), "Fair");
+        claimCommandService.fileClaim("CLM-P06", "pol-p5", "Chen", "AUTO",
+                new BigDecimal("8000"), "Dent");
+
+        long replayed = projectionPipeline.rebuildReadModels();
+
+        assertThat(replayed).isEqualTo(4);
+        var dashboard = claimQueryService.findDashboardByClaimId("CLM-P05");
+        assertThat(dashboard).isPresent();
+        assertThat(dashboard.get().status()).isEqualTo("ASSESSED");
+        assertThat(dashboard.get().timeline()).hasSize(3);
+        var autoStats = claimQueryService.findStatisticsByCategory("AUTO");
+        assertThat(autoStats).isPresent();
+        assertThat(autoStats.get().totalClaims()).isEqualTo(2);
+        assertThat(autoStats.get().investigatedCount()).isEqualTo(1);
+        assertThat(autoStats.get().totalClaimedAmount()).isEqualByComparingTo(new BigDecimal("20000"));
+    }
 }
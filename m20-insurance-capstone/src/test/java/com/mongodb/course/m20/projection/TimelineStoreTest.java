@@ -0,0 +1,106 @@
+package com.mongodb.course.m20.projection;
+
+import com.mongodb.course.m20.AggregateStateReset;
+import com.mongodb.course.m20.SharedContainersConfig;
+import com.mongodb.course.m20.claim.service.ClaimCommandService;
+import com.mongodb.course.m20.infrastructure.ProjectionBatch;
+import com.mongodb.course.m20.policy.AutoPolicy;
+import com.mongodb.course.m20.policy.PolicyService;
+import com.mongodb.course.m20.projection.readmodel.TimelineEntry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest(properties = {
+        "projection.timeline.inline-entries=2",
+        "projection.timeline.bucket-size=2"
+})
+@Import(SharedContainersConfig.class)
+class TimelineStoreTest {
+
+    @Autowired private ClaimCommandService claimCommandService;
+    @Autowired private PolicyService policyService;
+    @Autowired private ClaimQueryService claimQueryService;
+    @Autowired private ProjectionPipeline projectionPipeline;
+    @Autowired private TimelineStore timelineStore;
+    @Autowired private MongoTemplate mongoTemplate;
+    @Autowired private AggregateStateReset aggregateStateReset;
+
+    @BeforeEach
+    void setUp() {
+        aggregateStateReset.reset();
+        mongoTemplate.remove(new Query(), "m20_claim_events");
+        mongoTemplate.remove(new Query(), "m20_snapshots");
+        mongoTemplate.remove(new Query(), "m20_claim_dashboard");
+        mongoTemplate.remove(new Query(), "m20_claim_statistics");
+        mongoTemplate.remove(new Query(), "m20_claim_timeline_buckets");
+        if (mongoTemplate.collectionExists("m20_policies")) {
+            mongoTemplate.dropCollection("m20_policies");
+        }
+        new com.mongodb.course.m20.config.SchemaValidationConfig(mongoTemplate).init();
+
+        policyService.save(new AutoPolicy("pol-t1", "POL-T01", "Huang",
+                new BigDecimal("10000"), new BigDecimal("500000"), "Sedan"));
+        claimCommandService.fileClaim("CLM-T01", "pol-t1", "Huang", "AUTO",
+                new BigDecimal("40000"), "Collision");
+        claimCommandService.investigate("CLM-T01", "Inspector", "OK", "LOW");
+        claimCommandService.assess("CLM-T01", new BigDecimal("35000"), "Fair");
+        claimCommandService.approve("CLM-T01", new BigDecimal("35000"));
+        claimCommandService.pay("CLM-T01", new BigDecimal("35000"), "PAY-T01");
+    }
+
+    @Test
+    void dashboardKeepsOnlyLatestEntries() {
+        var dashboard = claimQueryService.findDashboardByClaimId("CLM-T01").orElseThrow();
+
+        assertThat(dashboard.timeline()).extracting(TimelineEntry::action)
+                .containsExactly("APPROVED", "PAID");
+    }
+
+    @Test
+    void pagesWalkFullHistoryAcrossBuckets() {
+        var first = claimQueryService.findTimeline("CLM-T01", 0, 3);
+        var second = claimQueryService.findTimeline("CLM-T01", 1, 3);
+
+        assertThat(first.totalEntries()).isEqualTo(5);
+        assertThat(first.entries()).extracting(TimelineEntry::action)
+                .containsExactly("FILED", "INVESTIGATED", "ASSESSED");
+        assertThat(first.hasNext()).isTrue();
+        assertThat(second.entries()).extracting(TimelineEntry::action)
+                .containsExactly("APPROVED", "PAID");
+        assertThat(second.hasNext()).isFalse();
+    }
+
+    @Test
+    void redeliveredEntryIsStoredOnce() {
+        var entry = new TimelineEntry("REOPENED", Instant.parse("2024-05-01T08:00:00Z"), "Appeal");
+        for (int delivery = 0; delivery < 2; delivery++) {
+            var batch = new ProjectionBatch(mongoTemplate);
+            timelineStore.append(batch, "CLM-T01", 6, entry);
+            batch.flush();
+        }
+
+        var last = claimQueryService.findTimeline("CLM-T01", 1, 3);
+        assertThat(last.totalEntries()).isEqualTo(6);
+        assertThat(last.entries()).extracting(TimelineEntry::action)
+                .containsExactly("APPROVED", "PAID", "REOPENED");
+    }
+
+    @Test
+    void rebuildRestoresBoundedTimeline() {
+        projectionPipeline.rebuildReadModels();
+
+        var dashboard = claimQueryService.findDashboardByClaimId("CLM-T01").orElseThrow();
+        assertThat(dashboard.timeline()).hasSize(2);
+        assertThat(claimQueryService.findTimeline("CLM-T01", 0, 10).entries()).hasSize(5);
+    }
+}
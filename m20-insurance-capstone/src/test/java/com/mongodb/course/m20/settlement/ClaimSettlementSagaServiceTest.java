@@ -1,5 +1,6 @@
 package com.mongodb.course.m20.settlement;
 
+import com.mongodb.course.m20.AggregateStateReset;
 import com.mongodb.course.m20.SharedContainersConfig;
 import com.mongodb.course.m20.claim.model.ClaimStatus;
 import com.mongodb.course.m20.claim.service.ClaimCommandService;
@@ -10,6 +11,7 @@ import com.mongodb.course.m20.policy.HealthPolicy;
 import com.mongodb.course.m20.policy.Policy;
 import com.mongodb.course.m20.policy.PolicyService;
 import com.mongodb.course.m20.projection.ClaimQueryService;
+import org.bson.Document;
 import org.bson.types.Decimal128;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -35,9 +37,11 @@ class ClaimSettlementSagaServiceTest {
     @Autowired private SagaLogRepository sagaLogRepository;
     @Autowired private ClaimQueryService claimQueryService;
     @Autowired private MongoTemplate mongoTemplate;
+    @Autowired private AggregateStateReset aggregateStateReset;
 
     @BeforeEach
     void setUp() {
+        aggregateStateReset.reset();
         mongoTemplate.remove(new Query(), "m20_claim_events");
         mongoTemplate.remove(new Query(), "m20_snapshots");
         mongoTemplate.remove(new Query(), "m20_claim_dashboard");
@@ -74,6 +78,10 @@ class ClaimSettlementSagaServiceTest {
         assertThat(updatedPolicy).isPresent();
         assertThat(updatedPolicy.get().getTotalClaimsPaid()).isEqualByComparingTo(new BigDecimal("30000"));
         assertThat(((AutoPolicy) updatedPolicy.get()).getAccidentCount()).isEqualTo(1);
+
+        // The completed saga no longer needs its repeat marker on the policy
+        var stored = mongoTemplate.findById("pol-s1", Document.class, "m20_policies");
+        assertThat(stored.getList("appliedSagaSteps", String.class)).isNullOrEmpty();
     }
 
     @Test
@@ -110,7 +118,7 @@ class ClaimSettlementSagaServiceTest {
     }
 
     @Test
-    void sagaLogRecordsAllFourSteps() {
+    void sagaLogRecordsAllFiveSteps() {
         var policy = new AutoPolicy("pol-s3", "POL-S03", "Zhang",
                 new BigDecimal("12000"), new BigDecimal("800000"), "Van");
         policyService.save(policy);
@@ -124,8 +132,8 @@ class ClaimSettlementSagaServiceTest {
 
         var sagaLog = sagaLogRepository.findById(sagaId);
         assertThat(sagaLog).isPresent();
-        assertThat(sagaLog.get().steps()).hasSize(4);
+        assertThat(sagaLog.get().steps()).hasSize(5);
         assertThat(sagaLog.get().steps().stream().map(s -> s.stepName()).toList())
-                .containsExactly("FRAUD_CHECK", "APPROVE_CLAIM", "UPDATE_POLICY", "NOTIFY_SETTLEMENT");
+                .containsExactly("FRAUD_CHECK", "LOOKUP_POLICY", "APPROVE_CLAIM", "UPDATE_POLICY", "NOTIFY_SETTLEMENT");
     }
 }
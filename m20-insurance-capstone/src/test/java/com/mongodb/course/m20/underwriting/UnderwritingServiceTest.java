@@ -1,5 +1,6 @@
 package com.mongodb.course.m20.underwriting;
 
+import com.mongodb.course.m20.AggregateStateReset;
 import com.mongodb.course.m20.SharedContainersConfig;
 import com.mongodb.course.m20.policy.AutoPolicy;
 import com.mongodb.course.m20.policy.PolicyService;
@@ -31,9 +32,11 @@ class UnderwritingServiceTest {
     @Autowired private UnderwritingService underwritingService;
     @Autowired private PolicyService policyService;
     @Autowired private MongoTemplate mongoTemplate;
+    @Autowired private AggregateStateReset aggregateStateReset;
 
     @BeforeEach
     void setUp() {
+        aggregateStateReset.reset();
         mongoTemplate.remove(new Query(), "m20_claim_events");
         mongoTemplate.remove(new Query(), "m20_snapshots");
         mongoTemplate.remove(new Query(), "m20_claim_dashboard");
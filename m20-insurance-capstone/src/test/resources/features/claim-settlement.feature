@@ -17,9 +17,9 @@ Feature: 理賠結算 Saga 流程
     When 執行理賠結算 Saga 理賠 "CLM-S02"
     Then 結算 Saga 狀態為 "COMPENSATED"
 
-  Scenario: Saga 日誌記錄四個步驟
+  Scenario: Saga 日誌記錄五個步驟
     Given 已建立壽險保單 "POL-S03" 持有人 "張大為" 保額 2000000 元
     And 已提出理賠 "CLM-S03" 保單 "POL-S03" 金額 300000 元
     And 理賠 "CLM-S03" 已調查評估為 250000 元風險 "LOW"
     When 執行理賠結算 Saga 理賠 "CLM-S03"
-    Then 結算 Saga 日誌包含 4 個步驟
+    Then 結算 Saga 日誌包含 5 個步驟
@@ -30,5 +30,20 @@ public class IndexConfig {
 
         mongoTemplate.indexOps("m21_order_dashboard")
                 .ensureIndex(new Index().on("lastUpdatedAt", Sort.Direction.DESC));
+
+        mongoTemplate.indexOps("m21_purchase_velocity")
+                .ensureIndex(new CompoundIndexDefinition(
+                        new Document("customerId", 1).append("category", 1).append("bucketStart", 1)));
+
+        mongoTemplate.indexOps("m21_purchase_velocity")
+                .ensureIndex(new Index().on("expireAt", Sort.Direction.ASC).expire(0));
+
+        mongoTemplate.indexOps("m21_order_timeline_buckets")
+                .ensureIndex(new CompoundIndexDefinition(
+                        new Document("aggregateId", 1).append("bucket", 1)));
+
+        mongoTemplate.indexOps("m21_fulfillment_saga_logs")
+                .ensureIndex(new CompoundIndexDefinition(
+                        new Document("status", 1).append("startedAt", 1)));
     }
 }
@@ -1,50 +1,73 @@
 package com.mongodb.course.m21.fulfillment;
 
+import com.mongodb.course.m21.fulfillment.step.AuthorizePaymentStep;
 import com.mongodb.course.m21.fulfillment.step.ConfirmOrderStep;
 import com.mongodb.course.m21.fulfillment.step.ProcessPaymentStep;
 import com.mongodb.course.m21.fulfillment.step.ReserveInventoryStep;
 import com.mongodb.course.m21.fulfillment.step.ValidateStockStep;
 import com.mongodb.course.m21.infrastructure.saga.SagaContext;
+import com.mongodb.course.m21.infrastructure.saga.SagaGraph;
 import com.mongodb.course.m21.infrastructure.saga.SagaOrchestrator;
-import com.mongodb.course.m21.infrastructure.saga.SagaStep;
+import com.mongodb.course.m21.infrastructure.saga.SagaRecoveryService;
 import com.mongodb.course.m21.order.model.Order;
+import com.mongodb.course.m21.order.service.OrderCommandService;
 import org.springframework.stereotype.Service;
 
-import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 @Service
 public class OrderFulfillmentSagaService {
 
+    private static final String SAGA_TYPE = "ORDER_FULFILLMENT";
+
     private final SagaOrchestrator sagaOrchestrator;
     private final ValidateStockStep validateStockStep;
+    private final AuthorizePaymentStep authorizePaymentStep;
     private final ReserveInventoryStep reserveInventoryStep;
     private final ProcessPaymentStep processPaymentStep;
     private final ConfirmOrderStep confirmOrderStep;
 
     public OrderFulfillmentSagaService(SagaOrchestrator sagaOrchestrator,
                                         ValidateStockStep validateStockStep,
+                                        AuthorizePaymentStep authorizePaymentStep,
                                         ReserveInventoryStep reserveInventoryStep,
                                         ProcessPaymentStep processPaymentStep,
-                                        ConfirmOrderStep confirmOrderStep) {
+                                        ConfirmOrderStep confirmOrderStep,
+                                        OrderCommandService orderCommandService,
+                                        SagaRecoveryService recoveryService) {
         this.sagaOrchestrator = sagaOrchestrator;
         this.validateStockStep = validateStockStep;
+        this.authorizePaymentStep = authorizePaymentStep;
         this.reserveInventoryStep = reserveInventoryStep;
         this.processPaymentStep = processPaymentStep;
         this.confirmOrderStep = confirmOrderStep;
+        // The logged order is a copy from when the saga last wrote; resume with the current one
+        recoveryService.register(SAGA_TYPE, steps(), context -> context.put("order",
+                orderCommandService.loadOrder(context.get("orderId", String.class))));
     }
 
     public String executeFulfillment(Order order) {
+        return sagaOrchestrator.execute(SAGA_TYPE, steps(), context(order));
+    }
+
+    public CompletableFuture<String> executeFulfillmentAsync(Order order) {
+        return sagaOrchestrator.executeAsync(SAGA_TYPE, steps(), context(order));
+    }
+
+    private SagaGraph steps() {
+        // Stock validation and payment authorization only read the order
+        return new SagaGraph()
+                .step(validateStockStep)
+                .step(authorizePaymentStep)
+                .step(reserveInventoryStep, validateStockStep, authorizePaymentStep)
+                .step(processPaymentStep, reserveInventoryStep)
+                .step(confirmOrderStep, processPaymentStep);
+    }
+
+    private static SagaContext context(Order order) {
         var context = new SagaContext();
         context.put("order", order);
         context.put("orderId", order.getOrderId());
-
-        List<SagaStep> steps = List.of(
-                validateStockStep,
-                reserveInventoryStep,
-                processPaymentStep,
-                confirmOrderStep
-        );
-
-        return sagaOrchestrator.execute("ORDER_FULFILLMENT", steps, context);
+        return context;
     }
 }
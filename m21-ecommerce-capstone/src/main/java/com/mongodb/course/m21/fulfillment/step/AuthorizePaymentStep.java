@@ -0,0 +1,36 @@
+package com.mongodb.course.m21.fulfillment.step;
+
+import com.mongodb.course.m21.infrastructure.saga.SagaContext;
+import com.mongodb.course.m21.infrastructure.saga.SagaStep;
+import com.mongodb.course.m21.order.model.Order;
+import org.springframework.stereotype.Component;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+@Component
+public class AuthorizePaymentStep implements SagaStep {
+
+    private static final BigDecimal PAYMENT_LIMIT = new BigDecimal("1000000");
+
+    @Override
+    public String name() {
+        return "AUTHORIZE_PAYMENT";
+    }
+
+    @Override
+    public void execute(SagaContext context) {
+        var order = (Order) context.get("order", Order.class);
+
+        if (order.getTotalAmount().compareTo(PAYMENT_LIMIT) > 0) {
+            throw new IllegalStateException("Payment amount exceeds limit: " + order.getTotalAmount());
+        }
+
+        context.put("paymentTransactionId", UUID.randomUUID().toString());
+    }
+
+    @Override
+    public void compensate(SagaContext context) {
+        // Authorization holds nothing, no compensation needed
+    }
+}
@@ -3,10 +3,8 @@ package com.mongodb.course.m21.fulfillment.step;
 import com.mongodb.course.m21.infrastructure.EventStore;
 import com.mongodb.course.m21.infrastructure.saga.SagaContext;
 import com.mongodb.course.m21.infrastructure.saga.SagaStep;
-import com.mongodb.course.m21.order.event.OrderEvent;
 import com.mongodb.course.m21.order.model.Order;
-import com.mongodb.course.m21.projection.OrderDashboardProjector;
-import com.mongodb.course.m21.projection.SalesStatisticsProjector;
+import com.mongodb.course.m21.projection.ProjectionPipeline;
 import org.springframework.stereotype.Component;
 
 import java.util.List;
@@ -17,15 +15,12 @@ public class ConfirmOrderStep implements SagaStep {
     private static final String ORDER_EVENTS = "m21_order_events";
 
     private final EventStore eventStore;
-    private final OrderDashboardProjector dashboardProjector;
-    private final SalesStatisticsProjector statsProjector;
+    private final ProjectionPipeline projectionPipeline;
 
     public ConfirmOrderStep(EventStore eventStore,
-                             OrderDashboardProjector dashboardProjector,
-                             SalesStatisticsProjector statsProjector) {
+                             ProjectionPipeline projectionPipeline) {
         this.eventStore = eventStore;
-        this.dashboardProjector = dashboardProjector;
-        this.statsProjector = statsProjector;
+        this.projectionPipeline = projectionPipeline;
     }
 
     @Override
@@ -36,17 +31,19 @@ public class ConfirmOrderStep implements SagaStep {
     @Override
     public void execute(SagaContext context) {
         var order = (Order) context.get("order", Order.class);
+        String stepKey = context.stepKey(name());
+        if (eventStore.containsEvent(order.getOrderId(), stepKey, ORDER_EVENTS)) {
+            // Applied by an earlier run of this saga
+            return;
+        }
 
-        order.confirm();
+        order.confirm(stepKey);
 
         var uncommitted = List.copyOf(order.getUncommittedEvents());
         order.clearUncommittedEvents();
         eventStore.appendAll(uncommitted, ORDER_EVENTS);
 
-        for (var event : uncommitted) {
-            dashboardProjector.project(event);
-            statsProjector.project(event);
-        }
+        projectionPipeline.afterAppend(uncommitted);
     }
 
     @Override
@@ -3,37 +3,37 @@ package com.mongodb.course.m21.fulfillment.step;
 import com.mongodb.course.m21.infrastructure.EventStore;
 import com.mongodb.course.m21.infrastructure.saga.SagaContext;
 import com.mongodb.course.m21.infrastructure.saga.SagaStep;
-import com.mongodb.course.m21.order.event.OrderEvent;
 import com.mongodb.course.m21.order.model.Order;
 import com.mongodb.course.m21.order.model.OrderLine;
-import com.mongodb.course.m21.projection.OrderDashboardProjector;
-import com.mongodb.course.m21.projection.SalesStatisticsProjector;
+import com.mongodb.course.m21.projection.ProjectionPipeline;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 @Component
 public class ReserveInventoryStep implements SagaStep {
 
     private static final String ORDER_EVENTS = "m21_order_events";
     private static final String PRODUCTS = "m21_products";
+    // Steps of running sagas whose stock a product has given up, so a repeated step or compensation changes nothing
+    private static final String RESERVED_BY = "reservedBySagaSteps";
 
     private final EventStore eventStore;
     private final MongoTemplate mongoTemplate;
-    private final OrderDashboardProjector dashboardProjector;
-    private final SalesStatisticsProjector statsProjector;
+    private final ProjectionPipeline projectionPipeline;
 
     public ReserveInventoryStep(EventStore eventStore, MongoTemplate mongoTemplate,
-                                 OrderDashboardProjector dashboardProjector,
-                                 SalesStatisticsProjector statsProjector) {
+                                 ProjectionPipeline projectionPipeline) {
         this.eventStore = eventStore;
         this.mongoTemplate = mongoTemplate;
-        this.dashboardProjector = dashboardProjector;
-        this.statsProjector = statsProjector;
+        this.projectionPipeline = projectionPipeline;
     }
 
     @Override
@@ -44,43 +44,76 @@ public class ReserveInventoryStep implements SagaStep {
     @Override
     public void execute(SagaContext context) {
         var order = (Order) context.get("order", Order.class);
+        String stepKey = context.stepKey(name());
 
-        for (OrderLine line : order.getLines()) {
-            var query = Query.query(Criteria.where("_id").is(line.productId())
-                    .and("stockQuantity").gte(line.quantity()));
-            var update = new Update().inc("stockQuantity", -line.quantity());
-            var result = mongoTemplate.updateFirst(query, update, PRODUCTS);
-            if (result.getModifiedCount() == 0) {
-                throw new IllegalStateException("Insufficient stock for product: " + line.productId());
+        var reserved = new ArrayList<String>();
+        var quantities = quantities(order);
+        for (var entry : quantities.entrySet()) {
+            if (!reserve(entry.getKey(), entry.getValue(), stepKey)) {
+                reserved.forEach(productId -> restore(productId, quantities.get(productId), stepKey));
+                throw new IllegalStateException("Insufficient stock for product: " + entry.getKey());
             }
+            reserved.add(entry.getKey());
+        }
+
+        if (eventStore.containsEvent(order.getOrderId(), stepKey, ORDER_EVENTS)) {
+            // Appended by an earlier run of this saga
+            return;
         }
 
         List<String> productIds = order.getLines().stream()
                 .map(OrderLine::productId)
                 .toList();
-        order.reserveInventory(productIds);
+        order.reserveInventory(productIds, stepKey);
 
         var uncommitted = List.copyOf(order.getUncommittedEvents());
         order.clearUncommittedEvents();
         eventStore.appendAll(uncommitted, ORDER_EVENTS);
 
-        for (var event : uncommitted) {
-            dashboardProjector.project(event);
-            statsProjector.project(event);
-        }
+        projectionPipeline.afterAppend(uncommitted);
     }
 
     @Override
     public void compensate(SagaContext context) {
         var order = (Order) context.get("order", Order.class);
+        String stepKey = context.stepKey(name());
 
-        var events = eventStore.loadEvents(order.getOrderId(), OrderEvent.class, ORDER_EVENTS);
-        var replayedOrder = Order.replayFrom(events);
+        quantities(order).forEach((productId, quantity) -> restore(productId, quantity, stepKey));
+    }
+
+    @Override
+    public void release(SagaContext context) {
+        var order = (Order) context.get("order", Order.class);
 
-        for (OrderLine line : replayedOrder.getLines()) {
-            var query = Query.query(Criteria.where("_id").is(line.productId()));
-            var update = new Update().inc("stockQuantity", line.quantity());
-            mongoTemplate.updateFirst(query, update, PRODUCTS);
+        var query = Query.query(Criteria.where("_id").in(quantities(order).keySet()));
+        mongoTemplate.updateMulti(query, new Update().pull(RESERVED_BY, context.stepKey(name())), PRODUCTS);
+    }
+
+    /**
+     * Takes the stock once per saga step and returns whether the product holds it, including when
+     * an earlier run of the step took it.
+     */
+    private boolean reserve(String productId, int quantity, String stepKey) {
+        var query = Query.query(Criteria.where("_id").is(productId)
+                .and("stockQuantity").gte(quantity)
+                .and(RESERVED_BY).ne(stepKey));
+        var update = new Update().inc("stockQuantity", -quantity).addToSet(RESERVED_BY, stepKey);
+        if (mongoTemplate.updateFirst(query, update, PRODUCTS).getModifiedCount() > 0) {
+            return true;
         }
+        return mongoTemplate.exists(Query.query(Criteria.where("_id").is(productId).and(RESERVED_BY).is(stepKey)),
+                PRODUCTS);
+    }
+
+    private void restore(String productId, int quantity, String stepKey) {
+        var query = Query.query(Criteria.where("_id").is(productId).and(RESERVED_BY).is(stepKey));
+        var update = new Update().inc("stockQuantity", quantity).pull(RESERVED_BY, stepKey);
+        mongoTemplate.updateFirst(query, update, PRODUCTS);
+    }
+
+    private static Map<String, Integer> quantities(Order order) {
+        var quantities = new LinkedHashMap<String, Integer>();
+        order.getLines().forEach(line -> quantities.merge(line.productId(), line.quantity(), Integer::sum));
+        return quantities;
     }
 }
@@ -6,25 +6,25 @@ import com.mongodb.course.m21.order.model.Order;
 import com.mongodb.course.m21.order.model.OrderLine;
 import com.mongodb.course.m21.product.Product;
 import com.mongodb.course.m21.product.ProductCatalogService;
-import org.bson.Document;
-import org.springframework.data.mongodb.core.MongoTemplate;
+import com.mongodb.course.m21.projection.PurchaseVelocityProjector;
 import org.springframework.stereotype.Component;
 
-import java.time.Instant;
-import java.time.temporal.ChronoUnit;
-import java.util.ArrayList;
-import java.util.Date;
+import java.time.Duration;
 import java.util.List;
 
 @Component
 public class ValidateStockStep implements SagaStep {
 
+    private static final Duration BULK_WINDOW = Duration.ofHours(24);
+    private static final int BULK_LIMIT = 3;
+
     private final ProductCatalogService productCatalogService;
-    private final MongoTemplate mongoTemplate;
+    private final PurchaseVelocityProjector velocityProjector;
 
-    public ValidateStockStep(ProductCatalogService productCatalogService, MongoTemplate mongoTemplate) {
+    public ValidateStockStep(ProductCatalogService productCatalogService,
+                             PurchaseVelocityProjector velocityProjector) {
         this.productCatalogService = productCatalogService;
-        this.mongoTemplate = mongoTemplate;
+        this.velocityProjector = velocityProjector;
     }
 
     @Override
@@ -51,22 +51,11 @@ public class ValidateStockStep implements SagaStep {
                 .distinct()
                 .toList();
 
-        var twentyFourHoursAgo = Date.from(Instant.now().minus(24, ChronoUnit.HOURS));
-        var pipeline = List.of(
-                new Document("$match", new Document("customerId", order.getCustomerId())
-                        .append("categories", new Document("$in", orderCategories))
-                        .append("lastUpdatedAt", new Document("$gte", twentyFourHoursAgo))),
-                new Document("$count", "recentOrders")
-        );
-
-        var results = mongoTemplate.getCollection("m21_order_dashboard")
-                .aggregate(pipeline)
-                .into(new ArrayList<>());
-
-        if (!results.isEmpty()) {
-            int recentOrders = results.getFirst().getInteger("recentOrders");
-            if (recentOrders > 3) {
-                throw new IllegalStateException("Bulk purchase limit exceeded: " + recentOrders
+        var recentOrders = velocityProjector.recentOrders(order.getCustomerId(), orderCategories, BULK_WINDOW);
+        for (var category : orderCategories) {
+            int count = recentOrders.getOrDefault(category, 0);
+            if (count > BULK_LIMIT) {
+                throw new IllegalStateException("Bulk purchase limit exceeded: " + count
                         + " orders in last 24 hours for same category");
             }
         }
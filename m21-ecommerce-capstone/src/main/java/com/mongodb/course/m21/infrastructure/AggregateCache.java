@@ -0,0 +1,76 @@
+package com.mongodb.course.m21.infrastructure;
+
+import com.mongodb.course.m21.shared.AggregateSnapshot;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Bounded LRU cache of hydrated aggregate state keyed by aggregate id. Entries hold an immutable
+ * snapshot and the version it reflects, so callers rehydrate a private copy and only read the tail.
+ */
+public class AggregateCache<S extends AggregateSnapshot> {
+
+    private final int maxEntries;
+    private final LinkedHashMap<String, CachedAggregate<S>> entries;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public AggregateCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedAggregate<S>> eldest) {
+                if (size() > AggregateCache.this.maxEntries) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public synchronized Optional<CachedAggregate<S>> get(String aggregateId) {
+        var cached = entries.get(aggregateId);
+        if (cached == null) {
+            misses++;
+            return Optional.empty();
+        }
+        hits++;
+        return Optional.of(cached);
+    }
+
+    public synchronized void put(String aggregateId, S state) {
+        if (maxEntries <= 0) {
+            return;
+        }
+        var existing = entries.get(aggregateId);
+        if (existing == null || existing.version() < state.version()) {
+            entries.put(aggregateId, new CachedAggregate<>(state));
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized CacheStats stats() {
+        return new CacheStats(hits, misses, evictions, entries.size());
+    }
+
+    public record CachedAggregate<S extends AggregateSnapshot>(S state) {
+        public long version() {
+            return state.version();
+        }
+    }
+
+    public record CacheStats(long hits, long misses, long evictions, int size) {
+        public double hitRate() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0.0 : (double) hits / lookups;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.mongodb.course.m21.infrastructure;
+
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.course.m21.shared.DomainEvent;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Group commit for event appends: while one caller is flushing, concurrent callers queue up
+ * and the next flush writes all of their events with a single ordered insertMany per collection.
+ */
+@Component
+public class GroupCommitAppender {
+
+    private static final int DUPLICATE_KEY = 11000;
+
+    private final MongoTemplate mongoTemplate;
+    private final long flushWindowMs;
+    private final int maxBatchSize;
+
+    private final ConcurrentLinkedQueue<PendingAppend> pending = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    public GroupCommitAppender(MongoTemplate mongoTemplate,
+                               @Value("${event-store.group-commit.flush-window-ms:0}") long flushWindowMs,
+                               @Value("${event-store.group-commit.max-batch-size:1000}") int maxBatchSize) {
+        this.mongoTemplate = mongoTemplate;
+        this.flushWindowMs = flushWindowMs;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public <T extends DomainEvent> List<T> append(List<T> events, String collection) {
+        if (events.isEmpty()) {
+            return events;
+        }
+        var request = new PendingAppend(collection, List.copyOf(events), new CompletableFuture<>());
+        pending.add(request);
+
+        flushLock.lock();
+        try {
+            if (!request.result().isDone()) {
+                awaitFlushWindow();
+                // A backlog larger than one batch may be queued ahead of this request
+                while (!request.result().isDone()) {
+                    flush(drainPending());
+                }
+            }
+        } finally {
+            flushLock.unlock();
+        }
+
+        try {
+            request.result().join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+        return events;
+    }
+
+    private void awaitFlushWindow() {
+        if (flushWindowMs <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(flushWindowMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private List<PendingAppend> drainPending() {
+        var batch = new ArrayList<PendingAppend>();
+        int eventCount = 0;
+        PendingAppend next;
+        while (eventCount < maxBatchSize && (next = pending.poll()) != null) {
+            batch.add(next);
+            eventCount += next.events().size();
+        }
+        return batch;
+    }
+
+    private void flush(List<PendingAppend> batch) {
+        var byCollection = new LinkedHashMap<String, List<PendingAppend>>();
+        for (var request : batch) {
+            byCollection.computeIfAbsent(request.collection(), c -> new ArrayList<>()).add(request);
+        }
+        byCollection.forEach(this::insertOrdered);
+    }
+
+    private void insertOrdered(String collection, List<PendingAppend> requests) {
+        var remaining = new ArrayList<>(requests);
+        while (!remaining.isEmpty()) {
+            var events = new ArrayList<DomainEvent>();
+            var owners = new ArrayList<PendingAppend>();
+            for (var request : remaining) {
+                events.addAll(request.events());
+                request.events().forEach(e -> owners.add(request));
+            }
+
+            try {
+                mongoTemplate.bulkOps(BulkMode.ORDERED, collection).insert(events).execute();
+                remaining.forEach(r -> r.result().complete(null));
+                return;
+            } catch (BulkOperationException e) {
+                // Ordered insert stops at the first error: everything before it is written,
+                // the owner of the failed event is rejected and later requests are retried.
+                BulkWriteError error = e.getErrors().getFirst();
+                var failed = events.get(error.getIndex());
+                var owner = owners.get(error.getIndex());
+                owner.result().completeExceptionally(toException(failed, error, e));
+
+                for (int i = 0; i < error.getIndex(); i++) {
+                    var inserted = owners.get(i);
+                    if (inserted != owner && isLastEventOf(inserted, events.get(i))) {
+                        inserted.result().complete(null);
+                    }
+                }
+                remaining.removeIf(r -> r.result().isDone());
+            } catch (RuntimeException e) {
+                remaining.forEach(r -> r.result().completeExceptionally(e));
+                return;
+            }
+        }
+    }
+
+    private boolean isLastEventOf(PendingAppend request, DomainEvent event) {
+        return request.events().getLast() == event;
+    }
+
+    private RuntimeException toException(DomainEvent event, BulkWriteError error, BulkOperationException cause) {
+        if (error.getCode() == DUPLICATE_KEY) {
+            return new DuplicateKeyException("Concurrent append conflict: aggregateId=" + event.aggregateId()
+                    + ", version=" + event.version(), cause);
+        }
+        return cause;
+    }
+
+    private record PendingAppend(
+            String collection,
+            List<? extends DomainEvent> events,
+            CompletableFuture<Void> result
+    ) {}
+}
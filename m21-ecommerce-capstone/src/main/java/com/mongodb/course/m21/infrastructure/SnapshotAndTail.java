@@ -0,0 +1,11 @@
+package com.mongodb.course.m21.infrastructure;
+
+import com.mongodb.course.m21.shared.DomainEvent;
+
+import java.util.List;
+import java.util.Optional;
+
+public record SnapshotAndTail<T extends DomainEvent>(
+        Optional<SnapshotDocument> snapshot,
+        List<T> events
+) {}
@@ -1,10 +1,10 @@
 package com.mongodb.course.m21.infrastructure;
 
+import com.mongodb.course.m21.shared.AggregateSnapshot;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.time.Instant;
-import java.util.Map;
 
 @Document("m21_snapshots")
 public record SnapshotDocument(
@@ -13,5 +13,5 @@ public record SnapshotDocument(
         String aggregateType,
         long version,
         Instant createdAt,
-        Map<String, Object> state
+        AggregateSnapshot state
 ) {}
@@ -0,0 +1,91 @@
+package com.mongodb.course.m21.infrastructure;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.CompoundIndexDefinition;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps the snapshot collection indexed for latest-snapshot lookups and trims it to the newest
+ * {@code keep} snapshots per aggregate on a background thread after each snapshot write.
+ */
+@Component
+public class SnapshotPruner {
+
+    private static final Logger log = LoggerFactory.getLogger(SnapshotPruner.class);
+
+    private static final String SNAPSHOTS = "m21_snapshots";
+
+    private final MongoTemplate mongoTemplate;
+    private final int keep;
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final ExecutorService executor =
+            Executors.newSingleThreadExecutor(Thread.ofVirtual().name("snapshot-pruner").factory());
+
+    public SnapshotPruner(MongoTemplate mongoTemplate,
+                          @Value("${snapshot.retention.keep:3}") int keep) {
+        this.mongoTemplate = mongoTemplate;
+        this.keep = keep;
+    }
+
+    @PostConstruct
+    void init() {
+        mongoTemplate.indexOps(SNAPSHOTS)
+                .ensureIndex(new CompoundIndexDefinition(
+                        new Document("aggregateId", 1).append("aggregateType", 1).append("version", -1)));
+    }
+
+    @PreDestroy
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    public void schedulePrune(String aggregateId, String aggregateType) {
+        if (keep <= 0) {
+            return;
+        }
+        // Coalesce: one queued prune per aggregate covers every snapshot written before it runs
+        var key = aggregateType + ":" + aggregateId;
+        if (pending.add(key)) {
+            executor.execute(() -> {
+                pending.remove(key);
+                try {
+                    prune(aggregateId, aggregateType);
+                } catch (RuntimeException e) {
+                    log.warn("Snapshot pruning failed for {} {}", aggregateType, aggregateId, e);
+                }
+            });
+        }
+    }
+
+    public long prune(String aggregateId, String aggregateType) {
+        var criteria = Criteria.where("aggregateId").is(aggregateId).and("aggregateType").is(aggregateType);
+        var oldestKept = Query.query(criteria)
+                .with(Sort.by(Sort.Direction.DESC, "version"))
+                .skip(keep - 1)
+                .limit(1);
+        oldestKept.fields().include("version");
+        var boundary = mongoTemplate.findOne(oldestKept, Document.class, SNAPSHOTS);
+        if (boundary == null) {
+            return 0;
+        }
+        long keepFrom = ((Number) boundary.get("version")).longValue();
+        var stale = Query.query(Criteria.where("aggregateId").is(aggregateId)
+                .and("aggregateType").is(aggregateType)
+                .and("version").lt(keepFrom));
+        return mongoTemplate.remove(stale, SNAPSHOTS).getDeletedCount();
+    }
+}
@@ -1,18 +1,19 @@
 package com.mongodb.course.m21.infrastructure.saga;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public final class SagaContext {
 
     private final Map<String, Object> data;
+    private final Map<String, Object> attachments = new ConcurrentHashMap<>();
 
     public SagaContext() {
-        this.data = new HashMap<>();
+        this.data = new ConcurrentHashMap<>();
     }
 
     public SagaContext(Map<String, Object> initialData) {
-        this.data = new HashMap<>(initialData);
+        this.data = new ConcurrentHashMap<>(initialData);
     }
 
     public void put(String key, Object value) {
@@ -31,6 +32,26 @@ public final class SagaContext {
         return type.cast(value);
     }
 
+    /**
+     * Holds a value for later steps of this run without writing it to the saga log, such as a
+     * hydrated aggregate. Attachments are lost on recovery, so readers must be able to reload them.
+     */
+    public void attach(String key, Object value) {
+        attachments.put(key, value);
+    }
+
+    public <T> T attachment(String key, Class<T> type) {
+        return type.cast(attachments.get(key));
+    }
+
+    /**
+     * A key unique to one step of this saga, for step effects that must be recognised when the
+     * step runs again after a takeover or recovery.
+     */
+    public String stepKey(String stepName) {
+        return get("sagaId", String.class) + ":" + stepName;
+    }
+
     public Map<String, Object> toMap() {
         return Map.copyOf(data);
     }
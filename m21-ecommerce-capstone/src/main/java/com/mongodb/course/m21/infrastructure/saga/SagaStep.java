@@ -4,4 +4,11 @@ public interface SagaStep {
     String name();
     void execute(SagaContext context);
     void compensate(SagaContext context);
+
+    /**
+     * Drops whatever the step kept to recognise a repeat, once its saga has completed and the step
+     * can no longer run or be compensated again.
+     */
+    default void release(SagaContext context) {
+    }
 }
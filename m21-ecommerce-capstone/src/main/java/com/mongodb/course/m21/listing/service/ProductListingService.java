@@ -32,7 +32,7 @@ public class ProductListingService {
     }
 
     public ProductListing review(ProductListing listing) {
-        var metrics = orderQueryService.computeCategoryMetrics(listing.getCategory());
+        var metrics = orderQueryService.findCategoryMetrics(listing.getCategory());
         listing.review(profitSpec, stockSpec, metrics);
 
         if (listing.getStatus() == ListingStatus.APPROVED) {
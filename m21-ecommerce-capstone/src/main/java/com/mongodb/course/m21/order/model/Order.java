@@ -38,33 +38,49 @@ public class Order {
     }
 
     public void reserveInventory(List<String> productIds) {
+        reserveInventory(productIds, UUID.randomUUID().toString());
+    }
+
+    /**
+     * Takes the id of the event to record from the caller, so that a repeated command can be
+     * recognised in the order's stream.
+     */
+    public void reserveInventory(List<String> productIds, String eventId) {
         if (status != OrderStatus.PLACED) {
             throw new IllegalStateException("Can only reserve inventory for PLACED orders, current: " + status);
         }
         var event = new InventoryReserved(
-                UUID.randomUUID().toString(), orderId, version + 1, Instant.now(),
+                eventId, orderId, version + 1, Instant.now(),
                 productIds);
         apply(event);
         uncommittedEvents.add(event);
     }
 
     public void processPayment(PaymentInfo info, BigDecimal amount) {
+        processPayment(info, amount, UUID.randomUUID().toString());
+    }
+
+    public void processPayment(PaymentInfo info, BigDecimal amount, String eventId) {
         if (status != OrderStatus.INVENTORY_RESERVED) {
             throw new IllegalStateException("Can only process payment for INVENTORY_RESERVED orders, current: " + status);
         }
         var event = new PaymentProcessed(
-                UUID.randomUUID().toString(), orderId, version + 1, Instant.now(),
+                eventId, orderId, version + 1, Instant.now(),
                 info, amount);
         apply(event);
         uncommittedEvents.add(event);
     }
 
     public void confirm() {
+        confirm(UUID.randomUUID().toString());
+    }
+
+    public void confirm(String eventId) {
         if (status != OrderStatus.PAYMENT_PROCESSED) {
             throw new IllegalStateException("Can only confirm PAYMENT_PROCESSED orders, current: " + status);
         }
         var event = new OrderConfirmed(
-                UUID.randomUUID().toString(), orderId, version + 1, Instant.now());
+                eventId, orderId, version + 1, Instant.now());
         apply(event);
         uncommittedEvents.add(event);
     }
@@ -81,11 +97,15 @@ public class Order {
     }
 
     public void cancel(String reason) {
+        cancel(reason, UUID.randomUUID().toString());
+    }
+
+    public void cancel(String reason, String eventId) {
         if (status != OrderStatus.PLACED && status != OrderStatus.INVENTORY_RESERVED) {
             throw new IllegalStateException("Can only cancel PLACED or INVENTORY_RESERVED orders, current: " + status);
         }
         var event = new OrderCancelled(
-                UUID.randomUUID().toString(), orderId, version + 1, Instant.now(),
+                eventId, orderId, version + 1, Instant.now(),
                 reason);
         apply(event);
         uncommittedEvents.add(event);
@@ -104,27 +124,22 @@ public class Order {
         events.forEach(this::apply);
     }
 
-    public Map<String, Object> toSnapshot() {
-        var state = new LinkedHashMap<String, Object>();
-        state.put("orderId", orderId);
-        state.put("customerId", customerId);
-        state.put("totalAmount", totalAmount.toPlainString());
-        state.put("status", status.name());
-        state.put("version", version);
-        if (trackingNumber != null) {
-            state.put("trackingNumber", trackingNumber);
-        }
-        return state;
+    public OrderSnapshot toSnapshot() {
+        return new OrderSnapshot(orderId, customerId, List.copyOf(lines), shippingAddress, paymentInfo,
+                trackingNumber, totalAmount, status, version);
     }
 
-    public static Order fromSnapshot(Map<String, Object> state) {
+    public static Order fromSnapshot(OrderSnapshot snapshot) {
         var order = new Order();
-        order.orderId = (String) state.get("orderId");
-        order.customerId = (String) state.get("customerId");
-        order.totalAmount = new BigDecimal((String) state.get("totalAmount"));
-        order.status = OrderStatus.valueOf((String) state.get("status"));
-        order.version = ((Number) state.get("version")).longValue();
-        order.trackingNumber = (String) state.get("trackingNumber");
+        order.orderId = snapshot.orderId();
+        order.customerId = snapshot.customerId();
+        order.lines = snapshot.lines() != null ? new ArrayList<>(snapshot.lines()) : new ArrayList<>();
+        order.shippingAddress = snapshot.shippingAddress();
+        order.paymentInfo = snapshot.paymentInfo();
+        order.trackingNumber = snapshot.trackingNumber();
+        order.totalAmount = snapshot.totalAmount();
+        order.status = snapshot.status();
+        order.version = snapshot.version();
         return order;
     }
 
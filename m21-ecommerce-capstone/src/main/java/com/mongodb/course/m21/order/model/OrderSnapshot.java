@@ -0,0 +1,21 @@
+package com.mongodb.course.m21.order.model;
+
+import com.mongodb.course.m21.shared.AggregateSnapshot;
+import org.springframework.data.mongodb.core.mapping.Field;
+import org.springframework.data.mongodb.core.mapping.FieldType;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+public record OrderSnapshot(
+        String orderId,
+        String customerId,
+        List<OrderLine> lines,
+        ShippingAddress shippingAddress,
+        PaymentInfo paymentInfo,
+        String trackingNumber,
+        @Field(targetType = FieldType.DECIMAL128) BigDecimal totalAmount,
+        OrderStatus status,
+        long version
+) implements AggregateSnapshot {
+}
@@ -1,113 +1,153 @@
 package com.mongodb.course.m21.order.service;
 
+import com.mongodb.course.m21.infrastructure.AggregateCache;
+import com.mongodb.course.m21.infrastructure.AppendResult;
 import com.mongodb.course.m21.infrastructure.EventStore;
 import com.mongodb.course.m21.infrastructure.SnapshotDocument;
+import com.mongodb.course.m21.infrastructure.Snapshotter;
 import com.mongodb.course.m21.order.event.OrderEvent;
 import com.mongodb.course.m21.order.model.*;
-import com.mongodb.course.m21.projection.OrderDashboardProjector;
-import com.mongodb.course.m21.projection.SalesStatisticsProjector;
+import com.mongodb.course.m21.projection.ProjectionPipeline;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.stereotype.Service;
 
 import java.math.BigDecimal;
-import java.time.Instant;
+import java.time.Duration;
 import java.util.List;
-import java.util.UUID;
+import java.util.function.Consumer;
 
 @Service
 public class OrderCommandService {
 
     private static final String ORDER_EVENTS = "m21_order_events";
     private static final String AGGREGATE_TYPE = "Order";
-    private static final int SNAPSHOT_INTERVAL = 10;
+    private static final int MAX_ATTEMPTS = 5;
 
     private final EventStore eventStore;
-    private final OrderDashboardProjector dashboardProjector;
-    private final SalesStatisticsProjector statsProjector;
+    private final ProjectionPipeline projectionPipeline;
+    private final Snapshotter snapshotter;
+    private final AggregateCache<OrderSnapshot> aggregateCache;
+    private final boolean soleWriter;
 
     public OrderCommandService(EventStore eventStore,
-                               OrderDashboardProjector dashboardProjector,
-                               SalesStatisticsProjector statsProjector) {
+                               ProjectionPipeline projectionPipeline,
+                               Snapshotter snapshotter,
+                               @Value("${aggregate-cache.max-entries:10000}") int cacheMaxEntries,
+                               @Value("${aggregate-cache.sole-writer:false}") boolean soleWriter) {
         this.eventStore = eventStore;
-        this.dashboardProjector = dashboardProjector;
-        this.statsProjector = statsProjector;
+        this.projectionPipeline = projectionPipeline;
+        this.snapshotter = snapshotter;
+        this.aggregateCache = new AggregateCache<>(cacheMaxEntries);
+        this.soleWriter = soleWriter;
+        snapshotter.register(AGGREGATE_TYPE, ORDER_EVENTS, id -> loadOrder(id).toSnapshot());
     }
 
     public Order placeOrder(String orderId, String customerId,
                             List<OrderLine> lines, ShippingAddress shippingAddress) {
         var order = Order.place(orderId, customerId, lines, shippingAddress);
-        saveAndProject(order);
+        var events = List.copyOf(order.getUncommittedEvents());
+        order.clearUncommittedEvents();
+        if (eventStore.append(orderId, 0, events, ORDER_EVENTS) instanceof AppendResult.Conflict) {
+            throw new IllegalStateException("Order already exists: " + orderId);
+        }
+        aggregateCache.put(orderId, order.toSnapshot());
+        project(order, events);
         return order;
     }
 
     public Order reserveInventory(String orderId, List<String> productIds) {
-        var order = loadOrder(orderId);
-        order.reserveInventory(productIds);
-        saveAndProject(order);
-        return order;
+        return execute(orderId, order -> order.reserveInventory(productIds));
     }
 
     public Order processPayment(String orderId, PaymentInfo paymentInfo, BigDecimal amount) {
-        var order = loadOrder(orderId);
-        order.processPayment(paymentInfo, amount);
-        saveAndProject(order);
-        return order;
+        return execute(orderId, order -> order.processPayment(paymentInfo, amount));
     }
 
     public Order confirm(String orderId) {
-        var order = loadOrder(orderId);
-        order.confirm();
-        saveAndProject(order);
-        return order;
+        return execute(orderId, Order::confirm);
     }
 
     public Order ship(String orderId, String trackingNumber) {
-        var order = loadOrder(orderId);
-        order.ship(trackingNumber);
-        saveAndProject(order);
-        return order;
+        return execute(orderId, order -> order.ship(trackingNumber));
     }
 
     public Order cancel(String orderId, String reason) {
-        var order = loadOrder(orderId);
-        order.cancel(reason);
-        saveAndProject(order);
-        return order;
+        return execute(orderId, order -> order.cancel(reason));
     }
 
     public Order loadOrder(String orderId) {
-        var snapshotOpt = eventStore.loadLatestSnapshot(orderId, AGGREGATE_TYPE);
-        if (snapshotOpt.isPresent()) {
-            var snapshot = snapshotOpt.get();
-            var order = Order.fromSnapshot(snapshot.state());
-            var newEvents = eventStore.loadEventsAfterVersion(
-                    orderId, snapshot.version(), OrderEvent.class, ORDER_EVENTS);
-            order.replayAfterSnapshot(newEvents);
+        var cached = aggregateCache.get(orderId);
+        if (cached.isPresent()) {
+            var order = Order.fromSnapshot(cached.get().state());
+            // A sole writer's cache is authoritative; a stale entry still surfaces as an append conflict
+            if (!soleWriter) {
+                order.replayAfterSnapshot(eventStore.loadEventsAfterVersion(
+                        orderId, cached.get().version(), OrderEvent.class, ORDER_EVENTS));
+                aggregateCache.put(orderId, order.toSnapshot());
+            }
             return order;
         }
-        var events = eventStore.loadEvents(orderId, OrderEvent.class, ORDER_EVENTS);
-        return Order.replayFrom(events);
+        var order = loadOrderFromStore(orderId);
+        aggregateCache.put(orderId, order.toSnapshot());
+        return order;
     }
 
-    private void saveAndProject(Order order) {
-        var events = List.copyOf(order.getUncommittedEvents());
-        order.clearUncommittedEvents();
+    /**
+     * Drops every cached aggregate, for when event streams are deleted underneath the service.
+     */
+    public void clearCache() {
+        aggregateCache.clear();
+    }
 
-        eventStore.appendAll(events, ORDER_EVENTS);
+    public AggregateCache.CacheStats cacheStats() {
+        return aggregateCache.stats();
+    }
 
-        for (var event : events) {
-            dashboardProjector.project(event);
-            statsProjector.project(event);
+    private Order execute(String orderId, Consumer<Order> command) {
+        var current = loadOrder(orderId);
+        for (int attempt = 1; ; attempt++) {
+            var order = Order.fromSnapshot(current.toSnapshot());
+            command.accept(order);
+            var events = List.copyOf(order.getUncommittedEvents());
+            order.clearUncommittedEvents();
+
+            switch (eventStore.append(orderId, current.getVersion(), events, ORDER_EVENTS)) {
+                case AppendResult.Appended _ -> {
+                    aggregateCache.put(orderId, order.toSnapshot());
+                    project(order, events);
+                    return order;
+                }
+                case AppendResult.Conflict conflict -> {
+                    if (attempt >= MAX_ATTEMPTS) {
+                        throw new OptimisticLockingFailureException("Order " + orderId
+                                + " modified concurrently: expected version " + conflict.expectedVersion()
+                                + ", actual " + conflict.actualVersion());
+                    }
+                    current.replayAfterSnapshot(eventStore.loadEventsAfterVersion(
+                            orderId, current.getVersion(), OrderEvent.class, ORDER_EVENTS));
+                }
+            }
         }
+    }
 
-        if (order.getVersion() % SNAPSHOT_INTERVAL == 0) {
-            var snapshot = new SnapshotDocument(
-                    UUID.randomUUID().toString(),
-                    order.getOrderId(),
-                    AGGREGATE_TYPE,
-                    order.getVersion(),
-                    Instant.now(),
-                    order.toSnapshot());
-            eventStore.saveSnapshot(snapshot);
+    private Order loadOrderFromStore(String orderId) {
+        long start = System.nanoTime();
+        var loaded = eventStore.loadSnapshotAndTail(orderId, AGGREGATE_TYPE, OrderEvent.class, ORDER_EVENTS);
+        Order order;
+        if (loaded.snapshot().isPresent()) {
+            order = Order.fromSnapshot((OrderSnapshot) loaded.snapshot().get().state());
+            order.replayAfterSnapshot(loaded.events());
+        } else {
+            order = Order.replayFrom(loaded.events());
         }
+        snapshotter.recordLoad(AGGREGATE_TYPE, orderId, loaded.snapshot().map(SnapshotDocument::version).orElse(0L),
+                loaded.events().size(), Duration.ofNanos(System.nanoTime() - start));
+        return order;
+    }
+
+    private void project(Order order, List<OrderEvent> events) {
+        projectionPipeline.afterAppend(events);
+        snapshotter.afterAppend(AGGREGATE_TYPE, order.getOrderId(), order.getVersion(), order::toSnapshot);
     }
 }
@@ -3,14 +3,14 @@ package com.mongodb.course.m21.projection;
 import com.mongodb.course.m21.projection.readmodel.CategoryMetrics;
 import com.mongodb.course.m21.projection.readmodel.OrderDashboardDocument;
 import com.mongodb.course.m21.projection.readmodel.SalesStatisticsDocument;
-import org.bson.Document;
+import com.mongodb.course.m21.projection.readmodel.TimelinePage;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Service;
 
 import java.math.BigDecimal;
-import java.util.List;
+import java.math.MathContext;
 import java.util.Optional;
 
 @Service
@@ -20,46 +20,50 @@ public class OrderQueryService {
     private static final String STATISTICS = "m21_sales_statistics";
 
     private final MongoTemplate mongoTemplate;
+    private final TimelineStore timelineStore;
+    private final SalesStatisticsBuffer salesStatisticsBuffer;
 
-    public OrderQueryService(MongoTemplate mongoTemplate) {
+    public OrderQueryService(MongoTemplate mongoTemplate, TimelineStore timelineStore,
+                             SalesStatisticsBuffer salesStatisticsBuffer) {
         this.mongoTemplate = mongoTemplate;
+        this.timelineStore = timelineStore;
+        this.salesStatisticsBuffer = salesStatisticsBuffer;
     }
 
     public Optional<OrderDashboardDocument> findDashboardByOrderId(String orderId) {
         return Optional.ofNullable(mongoTemplate.findById(orderId, OrderDashboardDocument.class, DASHBOARD));
     }
 
+    /**
+     * The full timeline, oldest first, one page at a time; the dashboard only keeps the latest entries.
+     */
+    public TimelinePage findTimeline(String orderId, int page, int size) {
+        return timelineStore.page(orderId, page, size);
+    }
+
     public Optional<SalesStatisticsDocument> findStatisticsByCategory(String category) {
         return Optional.ofNullable(mongoTemplate.findById(category, SalesStatisticsDocument.class, STATISTICS));
     }
 
-    public CategoryMetrics computeCategoryMetrics(String category) {
-        var pipeline = List.of(
-                new Document("$match", new Document("categories", category)),
-                new Document("$group", new Document("_id", (Object) null)
-                        .append("totalOrders", new Document("$sum", 1))
-                        .append("cancelledOrders", new Document("$sum",
-                                new Document("$cond", List.of(
-                                        new Document("$eq", List.of("$status", "CANCELLED")), 1, 0))))
-                        .append("avgOrderValue", new Document("$avg", "$totalAmount"))
-                        .append("totalRevenue", new Document("$sum", "$totalAmount")))
-        );
-
-        var results = mongoTemplate.getCollection(DASHBOARD)
-                .aggregate(pipeline)
-                .into(new java.util.ArrayList<>());
-
-        if (results.isEmpty()) {
+    /**
+     * Listing-review metrics for a category, read from its incrementally maintained statistics
+     * document rather than aggregated over the order history. The write-behind deltas are flushed
+     * first, so a review never decides on counters that are still in memory.
+     */
+    public CategoryMetrics findCategoryMetrics(String category) {
+        salesStatisticsBuffer.flush();
+        var stats = findStatisticsByCategory(category).orElse(null);
+        if (stats == null || stats.totalOrders() == null || stats.totalOrders() == 0) {
             return new CategoryMetrics(category, 0, 0, BigDecimal.ZERO, BigDecimal.ZERO);
         }
-
-        var r = results.getFirst();
+        int totalOrders = stats.totalOrders();
+        var orderValue = stats.totalOrderValue() != null ? stats.totalOrderValue() : BigDecimal.ZERO;
         return new CategoryMetrics(
                 category,
-                r.get("totalOrders", Number.class).intValue(),
-                r.get("cancelledOrders", Number.class).intValue(),
-                new BigDecimal(r.get("avgOrderValue").toString()),
-                new BigDecimal(r.get("totalRevenue").toString())
+                totalOrders,
+                stats.cancelledCount() != null ? stats.cancelledCount() : 0,
+                orderValue.divide(BigDecimal.valueOf(totalOrders), MathContext.DECIMAL128),
+                orderValue
         );
     }
 }
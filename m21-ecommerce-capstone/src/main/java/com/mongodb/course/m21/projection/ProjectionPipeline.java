@@ -0,0 +1,191 @@
+package com.mongodb.course.m21.projection;
+
+import com.mongodb.course.m21.infrastructure.EventStore;
+import com.mongodb.course.m21.infrastructure.ProjectionBatch;
+import com.mongodb.course.m21.infrastructure.ProjectionGuard;
+import com.mongodb.course.m21.order.event.OrderEvent;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.IntStream;
+
+/**
+ * Runs every order projector over a batch of events and writes the result with one
+ * {@link ProjectionBatch} flush, for freshly appended events, the {@link ProjectionRunner} and
+ * full replays. A {@link ProjectionGuard} in front of the projectors drops duplicate deliveries
+ * and holds back events that arrive ahead of their predecessor.
+ */
+@Service
+public class ProjectionPipeline {
+
+    private static final Logger log = LoggerFactory.getLogger(ProjectionPipeline.class);
+
+    private static final int LOCK_STRIPES = 64;
+
+    private static final String ORDER_EVENTS = "m21_order_events";
+    private static final String ORDER_DASHBOARD = "m21_order_dashboard";
+    private static final String SALES_STATISTICS = "m21_sales_statistics";
+
+    private final MongoTemplate mongoTemplate;
+    private final EventStore eventStore;
+    private final OrderDashboardProjector dashboardProjector;
+    private final SalesStatisticsProjector statsProjector;
+    private final PurchaseVelocityProjector velocityProjector;
+    private final TimelineStore timelineStore;
+    private final int batchSize;
+    private final boolean async;
+    private final int guardSize;
+    private final long maxGapMs;
+    private final ProjectionGuard<OrderEvent> guard;
+    private final ReentrantLock[] stripes = IntStream.range(0, LOCK_STRIPES)
+            .mapToObj(i -> new ReentrantLock())
+            .toArray(ReentrantLock[]::new);
+
+    public ProjectionPipeline(MongoTemplate mongoTemplate,
+                              EventStore eventStore,
+                              OrderDashboardProjector dashboardProjector,
+                              SalesStatisticsProjector statsProjector,
+                              PurchaseVelocityProjector velocityProjector,
+                              TimelineStore timelineStore,
+                              @Value("${projection.batch-size:500}") int batchSize,
+                              @Value("${projection.async.enabled:false}") boolean async,
+                              @Value("${projection.guard.max-entries:10000}") int guardSize,
+                              @Value("${projection.guard.max-gap-ms:30000}") long maxGapMs) {
+        this.mongoTemplate = mongoTemplate;
+        this.eventStore = eventStore;
+        this.dashboardProjector = dashboardProjector;
+        this.statsProjector = statsProjector;
+        this.velocityProjector = velocityProjector;
+        this.timelineStore = timelineStore;
+        this.batchSize = batchSize;
+        this.async = async;
+        this.guardSize = guardSize;
+        this.maxGapMs = maxGapMs;
+        this.guard = new ProjectionGuard<>(guardSize, maxGapMs, this::projectedVersion, this::storedEventsAfter);
+    }
+
+    /**
+     * Projects events a command has just appended, unless the {@link ProjectionRunner} owns projection.
+     */
+    public void afterAppend(List<OrderEvent> events) {
+        if (!async) {
+            project(events);
+        }
+    }
+
+    public void project(List<OrderEvent> events) {
+        // Concurrent commands on one aggregate must not flush their batches out of version order
+        var locks = events.stream()
+                .mapToInt(event -> Math.floorMod(event.aggregateId().hashCode(), LOCK_STRIPES))
+                .distinct()
+                .sorted()
+                .mapToObj(stripe -> stripes[stripe])
+                .toList();
+        locks.forEach(ReentrantLock::lock);
+        try {
+            var batch = new ProjectionBatch(mongoTemplate);
+            try {
+                events.forEach(event -> project(event, batch));
+                flush(batch);
+            } finally {
+                batch.abort();
+            }
+        } finally {
+            locks.forEach(ReentrantLock::unlock);
+        }
+    }
+
+    /**
+     * Admits {@code event} through the guard and projects whatever it releases into {@code batch}.
+     * Returns the projected events, which may be none or include parked successors.
+     */
+    public List<OrderEvent> project(OrderEvent event, ProjectionBatch batch) {
+        return guard.admit(event, batch, admitted -> apply(admitted, batch));
+    }
+
+    public void flush(ProjectionBatch batch) {
+        long stale = batch.staleUpdates();
+        batch.flush();
+        guard.recordStaleWrites(batch.staleUpdates() - stale);
+    }
+
+    /**
+     * Writes the buffered sales statistics, so a checkpoint saved next does not cover deltas that
+     * only live in memory.
+     */
+    public void flushBuffered() {
+        statsProjector.flush();
+    }
+
+    public ProjectionGuard.GuardStats stats() {
+        return guard.stats();
+    }
+
+    /**
+     * Forgets the versions the guard has seen, for when read models are cleared outside a rebuild.
+     */
+    public void forgetProgress() {
+        guard.reset();
+    }
+
+    private void apply(OrderEvent event, ProjectionBatch batch) {
+        dashboardProjector.project(event, batch);
+        statsProjector.project(event);
+        velocityProjector.project(event, batch);
+    }
+
+    private List<OrderEvent> storedEventsAfter(String aggregateId, long version) {
+        return eventStore.loadEventsAfterVersion(aggregateId, version, OrderEvent.class, ORDER_EVENTS);
+    }
+
+    public long projectedVersion(String aggregateId) {
+        var query = Query.query(Criteria.where("_id").is(aggregateId));
+        query.fields().include("projectedVersion");
+        var doc = mongoTemplate.findOne(query, Document.class, ORDER_DASHBOARD);
+        return doc != null ? doc.get("projectedVersion", Number.class).longValue() : 0;
+    }
+
+    public long rebuildReadModels() {
+        mongoTemplate.remove(new Query(), ORDER_DASHBOARD);
+        statsProjector.reset();
+        mongoTemplate.remove(new Query(), SALES_STATISTICS);
+        timelineStore.clear();
+        velocityProjector.clear();
+
+        long start = System.nanoTime();
+        long count = 0;
+        // The read models start empty, so the replay needs no seeding from them
+        var replayGuard = new ProjectionGuard<OrderEvent>(guardSize, maxGapMs, aggregateId -> 0,
+                this::storedEventsAfter);
+        var batch = new ProjectionBatch(mongoTemplate);
+        try {
+            var query = new Query().with(Sort.by("aggregateId", "version"));
+            try (var events = mongoTemplate.stream(query, OrderEvent.class, ORDER_EVENTS)) {
+                var iterator = events.iterator();
+                while (iterator.hasNext()) {
+                    replayGuard.admit(iterator.next(), batch, event -> apply(event, batch));
+                    if (++count % batchSize == 0) {
+                        batch.flush();
+                    }
+                }
+            }
+            batch.flush();
+        } finally {
+            batch.abort();
+        }
+        statsProjector.flush();
+        guard.reset();
+        log.info("Replayed {} events from {} in {} ms", count, ORDER_EVENTS,
+                (System.nanoTime() - start) / 1_000_000);
+        return count;
+    }
+}
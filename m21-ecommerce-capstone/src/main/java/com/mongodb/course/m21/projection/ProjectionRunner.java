@@ -0,0 +1,246 @@
+package com.mongodb.course.m21.projection;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.course.m21.order.event.OrderEvent;
+import com.mongodb.course.m21.infrastructure.ProjectionBatch;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Projects order events off the command path: tails the event collection with a change stream,
+ * applies each batch of inserts through the {@link ProjectionPipeline} in oplog order (so per
+ * aggregate in version order), and checkpoints the resume token after every flush. Callers that
+ * need to read their own writes wait with {@link #awaitProjected}.
+ */
+@Component
+public class ProjectionRunner {
+
+    private static final Logger log = LoggerFactory.getLogger(ProjectionRunner.class);
+
+    private static final String ORDER_EVENTS = "m21_order_events";
+    private static final String CHECKPOINTS = "m21_projection_checkpoints";
+    private static final int CHANGE_STREAM_HISTORY_LOST = 286;
+    private static final int TRACKED_AGGREGATES = 10_000;
+
+    private final MongoTemplate mongoTemplate;
+    private final ProjectionPipeline projectionPipeline;
+    private final boolean enabled;
+    private final int batchSize;
+    private final long pollMs;
+
+    private final ReentrantLock progressLock = new ReentrantLock();
+    private final Condition progressed = progressLock.newCondition();
+    private final Map<String, Long> projectedVersions = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > TRACKED_AGGREGATES;
+        }
+    };
+
+    private volatile boolean running;
+    private volatile long eventsProjected;
+    private Thread worker;
+
+    public ProjectionRunner(MongoTemplate mongoTemplate,
+                            ProjectionPipeline projectionPipeline,
+                            @Value("${projection.async.enabled:false}") boolean enabled,
+                            @Value("${projection.async.batch-size:200}") int batchSize,
+                            @Value("${projection.async.poll-ms:100}") long pollMs) {
+        this.mongoTemplate = mongoTemplate;
+        this.projectionPipeline = projectionPipeline;
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+        this.pollMs = pollMs;
+    }
+
+    @PostConstruct
+    void start() {
+        if (enabled) {
+            running = true;
+            worker = Thread.ofVirtual().name("m21-projection-runner").start(this::run);
+        }
+    }
+
+    @PreDestroy
+    void stop() {
+        running = false;
+        if (worker != null) {
+            worker.interrupt();
+            try {
+                worker.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Blocks until the read models reflect {@code aggregateId} at {@code version} or later.
+     * Returns {@code false} if that did not happen within {@code timeout}.
+     */
+    public boolean awaitProjected(String aggregateId, long version, Duration timeout) {
+        if (projectedVersion(aggregateId) >= version) {
+            return true;
+        }
+        if (!enabled) {
+            return false;
+        }
+        long remaining = timeout.toNanos();
+        progressLock.lock();
+        try {
+            while (projectedVersions.getOrDefault(aggregateId, 0L) < version) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = progressed.awaitNanos(remaining);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            progressLock.unlock();
+        }
+    }
+
+    public long eventsProjected() {
+        return eventsProjected;
+    }
+
+    private long projectedVersion(String aggregateId) {
+        progressLock.lock();
+        try {
+            var known = projectedVersions.get(aggregateId);
+            if (known != null) {
+                return known;
+            }
+        } finally {
+            progressLock.unlock();
+        }
+        return projectionPipeline.projectedVersion(aggregateId);
+    }
+
+    private void run() {
+        boolean rebuild = false;
+        while (running) {
+            try (var cursor = openStream(rebuild ? null : loadCheckpoint())) {
+                if (rebuild) {
+                    // The stream is open before the replay starts, so nothing appended meanwhile is lost
+                    projectionPipeline.rebuildReadModels();
+                    rebuild = false;
+                }
+                consume(cursor);
+            } catch (MongoCommandException e) {
+                if (e.getErrorCode() != CHANGE_STREAM_HISTORY_LOST) {
+                    backOff(e);
+                } else {
+                    log.warn("Checkpoint for {} is older than the oplog; rebuilding read models", ORDER_EVENTS);
+                    rebuild = true;
+                }
+            } catch (RuntimeException e) {
+                backOff(e);
+            }
+        }
+    }
+
+    private MongoChangeStreamCursor<ChangeStreamDocument<Document>> openStream(BsonDocument resumeToken) {
+        var stream = mongoTemplate.getCollection(ORDER_EVENTS)
+                .watch(List.of(Aggregates.match(Filters.eq("operationType", "insert"))))
+                .maxAwaitTime(pollMs, TimeUnit.MILLISECONDS);
+        if (resumeToken != null) {
+            stream = stream.resumeAfter(resumeToken);
+        }
+        return stream.cursor();
+    }
+
+    private void consume(MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor) {
+        while (running) {
+            var batch = new ProjectionBatch(mongoTemplate);
+            try {
+                var progress = new HashMap<String, Long>();
+                BsonDocument lastToken = null;
+                int count = 0;
+                ChangeStreamDocument<Document> change;
+                while (count++ < batchSize && (change = cursor.tryNext()) != null) {
+                    var event = mongoTemplate.getConverter().read(OrderEvent.class, change.getFullDocument());
+                    for (var projected : projectionPipeline.project(event, batch)) {
+                        progress.merge(projected.aggregateId(), projected.version(), Math::max);
+                    }
+                    lastToken = change.getResumeToken();
+                    eventsProjected++;
+                }
+                if (lastToken == null) {
+                    continue;
+                }
+                projectionPipeline.flush(batch);
+                projectionPipeline.flushBuffered();
+                saveCheckpoint(lastToken);
+                publish(progress);
+            } finally {
+                // Events admitted but never flushed go back to the guard for their redelivery
+                batch.abort();
+            }
+        }
+    }
+
+    private void publish(Map<String, Long> progress) {
+        progressLock.lock();
+        try {
+            progress.forEach((aggregateId, version) -> projectedVersions.merge(aggregateId, version, Math::max));
+            progressed.signalAll();
+        } finally {
+            progressLock.unlock();
+        }
+    }
+
+    private BsonDocument loadCheckpoint() {
+        var checkpoint = mongoTemplate.findById(ORDER_EVENTS, Document.class, CHECKPOINTS);
+        return checkpoint != null ? BsonDocument.parse(checkpoint.getString("tokenJson")) : null;
+    }
+
+    private void saveCheckpoint(BsonDocument resumeToken) {
+        var query = Query.query(Criteria.where("_id").is(ORDER_EVENTS));
+        var update = new Update()
+                .set("tokenJson", resumeToken.toJson())
+                .set("eventsProjected", eventsProjected)
+                .set("savedAt", Instant.now());
+        mongoTemplate.upsert(query, update, CHECKPOINTS);
+    }
+
+    private void backOff(RuntimeException e) {
+        if (!running) {
+            return;
+        }
+        log.warn("Projection runner for {} failed; resuming from last checkpoint", ORDER_EVENTS, e);
+        try {
+            Thread.sleep(1000);
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+}
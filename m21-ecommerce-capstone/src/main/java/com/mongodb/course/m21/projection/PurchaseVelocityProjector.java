@@ -0,0 +1,81 @@
+package com.mongodb.course.m21.projection;
+
+import com.mongodb.course.m21.infrastructure.ProjectionBatch;
+import com.mongodb.course.m21.order.event.OrderEvent;
+import com.mongodb.course.m21.order.event.OrderPlaced;
+import com.mongodb.course.m21.order.model.OrderLine;
+import org.bson.Document;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counts orders per customer and category in hourly buckets that expire through a TTL index, so
+ * "orders in the last 24 hours" is a sum over at most 25 small documents however many orders the
+ * customer has placed. The window is bucket-aligned and may include up to one extra hour.
+ */
+@Service
+public class PurchaseVelocityProjector {
+
+    private static final String COLLECTION = "m21_purchase_velocity";
+    private static final Duration BUCKET = Duration.ofHours(1);
+    private static final Duration RETENTION = Duration.ofHours(25);
+
+    private final MongoTemplate mongoTemplate;
+
+    public PurchaseVelocityProjector(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    public void project(OrderEvent event, ProjectionBatch batch) {
+        if (!(event instanceof OrderPlaced e)) {
+            return;
+        }
+        var bucketStart = bucketStart(e.occurredAt());
+        e.lines().stream().map(OrderLine::category).distinct().forEach(category -> {
+            var update = new Update()
+                    .inc("orders", 1)
+                    .setOnInsert("customerId", e.customerId())
+                    .setOnInsert("category", category)
+                    .setOnInsert("bucketStart", bucketStart)
+                    .setOnInsert("expireAt", bucketStart.plus(BUCKET).plus(RETENTION));
+            batch.upsert(COLLECTION, bucketId(e.customerId(), category, bucketStart), update);
+        });
+    }
+
+    /**
+     * Orders the customer placed per category within {@code window}, for each requested category.
+     */
+    public Map<String, Integer> recentOrders(String customerId, Collection<String> categories, Duration window) {
+        var query = Query.query(Criteria.where("customerId").is(customerId)
+                .and("category").in(categories)
+                .and("bucketStart").gte(bucketStart(Instant.now().minus(window))));
+        query.fields().include("category", "orders");
+        var counts = new HashMap<String, Integer>();
+        for (var bucket : mongoTemplate.find(query, Document.class, COLLECTION)) {
+            counts.merge(bucket.getString("category"), bucket.get("orders", Number.class).intValue(), Integer::sum);
+        }
+        return counts;
+    }
+
+    public void clear() {
+        mongoTemplate.remove(new Query(), COLLECTION);
+    }
+
+    private static Instant bucketStart(Instant at) {
+        return at.truncatedTo(ChronoUnit.HOURS);
+    }
+
+    private static String bucketId(String customerId, String category, Instant bucketStart) {
+        return customerId + "|" + category + "|" + bucketStart.getEpochSecond();
+    }
+}
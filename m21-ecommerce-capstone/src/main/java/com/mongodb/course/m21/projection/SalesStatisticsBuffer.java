@@ -0,0 +1,225 @@
+package com.mongodb.course.m21.projection;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.bson.types.Decimal128;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Write-behind buffer for the sales statistics hotspot. Projection threads fold per-category deltas
+ * into in-memory counters (one hash bin lock per category, so categories never contend); the flusher
+ * thread drains them into a single unordered bulk upsert every flush interval, or as soon as the
+ * buffered updates reach the flush threshold.
+ * <p>
+ * The counters are best-effort. Their events already count as projected while the deltas are
+ * only in memory, so a crash loses whatever was buffered since the last flush; the
+ * {@link ProjectionRunner} flushes before every checkpoint to keep that window short, and a
+ * rebuild recomputes the statistics from the event store.
+ */
+@Component
+public class SalesStatisticsBuffer {
+
+    private static final Logger log = LoggerFactory.getLogger(SalesStatisticsBuffer.class);
+
+    private static final String COLLECTION = "m21_sales_statistics";
+
+    private final MongoTemplate mongoTemplate;
+    private final int flushThreshold;
+    private final long flushIntervalMs;
+
+    private final Map<String, CategoryDelta> deltas = new ConcurrentHashMap<>();
+    private final AtomicInteger bufferedUpdates = new AtomicInteger();
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final ScheduledExecutorService flusher =
+            Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("sales-statistics-flush").factory());
+
+    public SalesStatisticsBuffer(MongoTemplate mongoTemplate,
+                                 @Value("${projection.sales.flush-threshold:500}") int flushThreshold,
+                                 @Value("${projection.sales.flush-interval-ms:1000}") long flushIntervalMs) {
+        this.mongoTemplate = mongoTemplate;
+        this.flushThreshold = flushThreshold;
+        this.flushIntervalMs = flushIntervalMs;
+    }
+
+    @PostConstruct
+    void start() {
+        if (flushIntervalMs > 0) {
+            flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        flusher.shutdownNow();
+        flushQuietly();
+    }
+
+    public void record(String category, Consumer<CategoryDelta> change) {
+        deltas.compute(category, (c, delta) -> {
+            var current = delta != null ? delta : new CategoryDelta();
+            change.accept(current);
+            current.updates++;
+            return current;
+        });
+        if (bufferedUpdates.incrementAndGet() >= flushThreshold && flushQueued.compareAndSet(false, true)) {
+            // The projecting thread only records; the bulk write runs on the flusher
+            flusher.execute(() -> {
+                flushQueued.set(false);
+                flushQuietly();
+            });
+        }
+    }
+
+    /**
+     * Writes every buffered delta with one bulk upsert and returns the number of categories written.
+     * Deltas whose upserts the server rejected are folded back into the buffer for the next flush;
+     * after a failure with an unknown outcome they are dropped, and a rebuild restores the counters.
+     */
+    public int flush() {
+        flushLock.lock();
+        try {
+            var drained = new LinkedHashMap<String, CategoryDelta>();
+            for (var category : deltas.keySet()) {
+                var delta = deltas.remove(category);
+                if (delta != null) {
+                    drained.put(category, delta);
+                    bufferedUpdates.addAndGet(-delta.updates);
+                }
+            }
+            if (drained.isEmpty()) {
+                return 0;
+            }
+            var categories = new ArrayList<>(drained.keySet());
+            try {
+                var bulk = mongoTemplate.bulkOps(BulkMode.UNORDERED, COLLECTION);
+                var now = Instant.now();
+                categories.forEach(category ->
+                        bulk.upsert(Query.query(Criteria.where("_id").is(category)), drained.get(category).toUpdate(now)));
+                bulk.execute();
+            } catch (BulkOperationException e) {
+                // Only the rejected upserts are known not to have run; the others already applied their $inc
+                for (var error : e.getErrors()) {
+                    var category = categories.get(error.getIndex());
+                    var delta = drained.get(category);
+                    deltas.merge(category, delta, CategoryDelta::add);
+                    bufferedUpdates.addAndGet(delta.updates);
+                }
+                throw e;
+            } catch (RuntimeException e) {
+                // Any of the upserts may have applied, so re-buffering could count them twice
+                log.warn("Sales statistics flush failed with an unknown outcome; dropping {} categories",
+                        drained.size(), e);
+                throw e;
+            }
+            return drained.size();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Drops buffered deltas, for statistics that are about to be rebuilt from the event store.
+     */
+    public void discard() {
+        flushLock.lock();
+        try {
+            deltas.clear();
+            bufferedUpdates.set(0);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    public int bufferedUpdates() {
+        return bufferedUpdates.get();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            log.warn("Sales statistics flush failed; keeping {} buffered updates", bufferedUpdates.get(), e);
+        }
+    }
+
+    public static final class CategoryDelta {
+        private int orders;
+        private int itemsSold;
+        private BigDecimal revenue = BigDecimal.ZERO;
+        private BigDecimal orderValue = BigDecimal.ZERO;
+        private int confirmed;
+        private int cancelled;
+        private int updates;
+
+        /**
+         * An order containing this category: its lines here and the order's full value, which
+         * backs the category's average order value.
+         */
+        public void placed(int quantity, BigDecimal lineRevenue, BigDecimal orderTotal) {
+            orders++;
+            itemsSold += quantity;
+            revenue = revenue.add(lineRevenue);
+            orderValue = orderValue.add(orderTotal);
+        }
+
+        public void confirmed() {
+            confirmed++;
+        }
+
+        public void cancelled() {
+            cancelled++;
+        }
+
+        private CategoryDelta add(CategoryDelta other) {
+            orders += other.orders;
+            itemsSold += other.itemsSold;
+            revenue = revenue.add(other.revenue);
+            orderValue = orderValue.add(other.orderValue);
+            confirmed += other.confirmed;
+            cancelled += other.cancelled;
+            updates += other.updates;
+            return this;
+        }
+
+        private Update toUpdate(Instant now) {
+            var update = new Update().set("lastUpdatedAt", now);
+            if (orders > 0) {
+                update.inc("totalOrders", orders)
+                        .inc("totalItemsSold", itemsSold)
+                        .inc("totalRevenue", new Decimal128(revenue))
+                        .inc("totalOrderValue", new Decimal128(orderValue));
+            }
+            if (confirmed > 0) {
+                update.inc("confirmedCount", confirmed);
+            }
+            if (cancelled > 0) {
+                update.inc("cancelledCount", cancelled);
+            }
+            return update;
+        }
+    }
+}
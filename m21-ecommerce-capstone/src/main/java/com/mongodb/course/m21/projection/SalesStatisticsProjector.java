@@ -1,79 +1,106 @@
 package com.mongodb.course.m21.projection;
 
 import com.mongodb.course.m21.order.event.*;
-import org.bson.types.Decimal128;
+import com.mongodb.course.m21.order.model.OrderLine;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
-import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 
-import java.time.Instant;
+import java.math.BigDecimal;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
+/**
+ * Feeds per-category sales deltas into the {@link SalesStatisticsBuffer}. Confirmations and
+ * cancellations count once for every category in the order; an order's categories come from a
+ * bounded index filled by {@link OrderPlaced}, falling back to that event in the event store.
+ */
 @Service
 public class SalesStatisticsProjector {
 
-    private static final String COLLECTION = "m21_sales_statistics";
+    private static final String ORDER_EVENTS = "m21_order_events";
 
     private final MongoTemplate mongoTemplate;
+    private final SalesStatisticsBuffer buffer;
+    private final int maxIndexedOrders;
+    private final Map<String, List<String>> orderCategories;
 
-    public SalesStatisticsProjector(MongoTemplate mongoTemplate) {
+    public SalesStatisticsProjector(MongoTemplate mongoTemplate,
+                                    SalesStatisticsBuffer buffer,
+                                    @Value("${projection.statistics.category-index.max-entries:10000}") int maxIndexedOrders) {
         this.mongoTemplate = mongoTemplate;
+        this.buffer = buffer;
+        this.maxIndexedOrders = maxIndexedOrders;
+        this.orderCategories = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+                return size() > SalesStatisticsProjector.this.maxIndexedOrders;
+            }
+        };
     }
 
     public void project(OrderEvent event) {
         switch (event) {
             case OrderPlaced e -> {
-                var categoryItems = e.lines().stream()
-                        .collect(Collectors.groupingBy(
-                                l -> l.category(),
-                                Collectors.summingInt(l -> l.quantity())));
-                for (var entry : categoryItems.entrySet()) {
-                    var query = Query.query(Criteria.where("_id").is(entry.getKey()));
-                    var update = new Update()
-                            .inc("totalOrders", 1)
-                            .inc("totalItemsSold", entry.getValue())
-                            .inc("totalRevenue", new Decimal128(
-                                    e.lines().stream()
-                                            .filter(l -> l.category().equals(entry.getKey()))
-                                            .map(l -> l.lineTotal())
-                                            .reduce(java.math.BigDecimal.ZERO, java.math.BigDecimal::add)))
-                            .set("lastUpdatedAt", Instant.now());
-                    mongoTemplate.upsert(query, update, COLLECTION);
-                }
-            }
-            case OrderConfirmed e -> {
-                String category = getCategoryForOrder(e.aggregateId());
-                if (category != null) {
-                    var query = Query.query(Criteria.where("_id").is(category));
-                    var update = new Update().inc("confirmedCount", 1);
-                    mongoTemplate.upsert(query, update, COLLECTION);
-                }
-            }
-            case OrderCancelled e -> {
-                String category = getCategoryForOrder(e.aggregateId());
-                if (category != null) {
-                    var query = Query.query(Criteria.where("_id").is(category));
-                    var update = new Update().inc("cancelledCount", 1);
-                    mongoTemplate.upsert(query, update, COLLECTION);
-                }
+                var linesByCategory = e.lines().stream()
+                        .collect(Collectors.groupingBy(OrderLine::category, LinkedHashMap::new, Collectors.toList()));
+                remember(e.aggregateId(), List.copyOf(linesByCategory.keySet()));
+                linesByCategory.forEach((category, lines) -> {
+                    int quantity = lines.stream().mapToInt(OrderLine::quantity).sum();
+                    var revenue = lines.stream().map(OrderLine::lineTotal).reduce(BigDecimal.ZERO, BigDecimal::add);
+                    buffer.record(category, delta -> delta.placed(quantity, revenue, e.totalAmount()));
+                });
             }
+            case OrderConfirmed e -> categoriesOf(e.aggregateId())
+                    .forEach(category -> buffer.record(category, SalesStatisticsBuffer.CategoryDelta::confirmed));
+            case OrderCancelled e -> categoriesOf(e.aggregateId())
+                    .forEach(category -> buffer.record(category, SalesStatisticsBuffer.CategoryDelta::cancelled));
             case InventoryReserved e -> {}
             case PaymentProcessed e -> {}
             case OrderShipped e -> {}
         }
     }
 
-    private String getCategoryForOrder(String orderId) {
-        var query = Query.query(Criteria.where("_id").is(orderId));
-        var dashboard = mongoTemplate.findOne(query, org.bson.Document.class, "m21_order_dashboard");
-        if (dashboard != null) {
-            var categories = dashboard.getList("categories", String.class);
-            if (categories != null && !categories.isEmpty()) {
-                return categories.getFirst();
+    /**
+     * Drops buffered deltas ahead of a rebuild of the statistics collection.
+     */
+    public void reset() {
+        buffer.discard();
+    }
+
+    public void flush() {
+        buffer.flush();
+    }
+
+    private void remember(String orderId, List<String> categories) {
+        synchronized (orderCategories) {
+            orderCategories.put(orderId, categories);
+        }
+    }
+
+    private List<String> categoriesOf(String orderId) {
+        synchronized (orderCategories) {
+            var categories = orderCategories.get(orderId);
+            if (categories != null) {
+                return categories;
             }
         }
-        return null;
+        var query = Query.query(Criteria.where("aggregateId").is(orderId).and("version").is(1));
+        query.fields().include("lines.category");
+        var placed = mongoTemplate.findOne(query, Document.class, ORDER_EVENTS);
+        if (placed == null) {
+            return List.of();
+        }
+        var categories = placed.getList("lines", Document.class).stream()
+                .map(line -> line.getString("category"))
+                .distinct()
+                .toList();
+        remember(orderId, categories);
+        return categories;
     }
 }
@@ -16,6 +16,7 @@ public record SalesStatisticsDocument(
         Integer cancelledCount,
         Integer totalItemsSold,
         @Field(targetType = FieldType.DECIMAL128) BigDecimal totalRevenue,
+        @Field(targetType = FieldType.DECIMAL128) BigDecimal totalOrderValue,
         Instant lastUpdatedAt
 ) {
 }
@@ -0,0 +1,15 @@
+package com.mongodb.course.m21.projection.readmodel;
+
+import java.util.List;
+
+public record TimelinePage(
+        String aggregateId,
+        int page,
+        int size,
+        long totalEntries,
+        List<TimelineEntry> entries
+) {
+    public boolean hasNext() {
+        return (long) (page + 1) * size < totalEntries;
+    }
+}
@@ -0,0 +1,5 @@
+package com.mongodb.course.m21.shared;
+
+public interface AggregateSnapshot {
+    long version();
+}
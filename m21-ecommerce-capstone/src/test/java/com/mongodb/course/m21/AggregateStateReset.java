@@ -0,0 +1,37 @@
+package com.mongodb.course.m21;
+
+import com.mongodb.course.m21.order.service.OrderCommandService;
+import com.mongodb.course.m21.infrastructure.Snapshotter;
+import com.mongodb.course.m21.projection.ProjectionPipeline;
+import com.mongodb.course.m21.projection.SalesStatisticsBuffer;
+import org.springframework.boot.test.context.TestComponent;
+
+/**
+ * Clears in-memory state keyed by aggregate id. Tests delete event streams between cases and
+ * reuse ids, which production never does, so they reset this state alongside the collections.
+ * Call it before deleting them, so snapshot writes still queued land first.
+ */
+@TestComponent
+public class AggregateStateReset {
+
+    private final OrderCommandService orderCommandService;
+    private final Snapshotter snapshotter;
+    private final ProjectionPipeline projectionPipeline;
+    private final SalesStatisticsBuffer salesStatisticsBuffer;
+
+    public AggregateStateReset(OrderCommandService orderCommandService, Snapshotter snapshotter,
+                               ProjectionPipeline projectionPipeline, SalesStatisticsBuffer salesStatisticsBuffer) {
+        this.orderCommandService = orderCommandService;
+        this.snapshotter = snapshotter;
+        this.projectionPipeline = projectionPipeline;
+        this.salesStatisticsBuffer = salesStatisticsBuffer;
+    }
+
+    public void reset() {
+        orderCommandService.clearCache();
+        snapshotter.flush();
+        snapshotter.reset();
+        projectionPipeline.forgetProgress();
+        salesStatisticsBuffer.discard();
+    }
+}
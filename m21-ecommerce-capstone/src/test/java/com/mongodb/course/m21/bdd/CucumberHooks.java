@@ -1,5 +1,6 @@
 package com.mongodb.course.m21.bdd;
 
+import com.mongodb.course.m21.AggregateStateReset;
 import com.mongodb.course.m21.config.SchemaValidationConfig;
 import com.mongodb.course.m21.notification.OrderNotificationListener;
 import com.mongodb.course.m21.observability.SlowQueryDetector;
@@ -15,12 +16,15 @@ public class CucumberHooks {
     @Autowired private SlowQueryDetector slowQueryDetector;
     @Autowired private OrderNotificationListener notificationListener;
     @Autowired private SchemaValidationConfig schemaValidationConfig;
+    @Autowired private AggregateStateReset aggregateStateReset;
 
     @Before
     public void cleanUp() {
+        aggregateStateReset.reset();
         mongoTemplate.remove(new Query(), "m21_order_events");
         mongoTemplate.remove(new Query(), "m21_snapshots");
         mongoTemplate.remove(new Query(), "m21_order_dashboard");
+        mongoTemplate.remove(new Query(), "m21_purchase_velocity");
         mongoTemplate.remove(new Query(), "m21_sales_statistics");
         mongoTemplate.remove(new Query(), "m21_fulfillment_saga_logs");
         mongoTemplate.remove(new Query(), "m21_order_notifications");
@@ -7,6 +7,7 @@ import com.mongodb.course.m21.order.model.ShippingAddress;
 import com.mongodb.course.m21.order.service.OrderCommandService;
 import com.mongodb.course.m21.product.ProductCatalogService;
 import com.mongodb.course.m21.projection.OrderQueryService;
+import com.mongodb.course.m21.projection.SalesStatisticsBuffer;
 import com.mongodb.course.m21.projection.readmodel.OrderDashboardDocument;
 import com.mongodb.course.m21.projection.readmodel.SalesStatisticsDocument;
 import io.cucumber.java.en.Given;
@@ -23,6 +24,7 @@ public class EcommerceDashboardSteps {
 
     @Autowired private OrderCommandService orderCommandService;
     @Autowired private OrderQueryService orderQueryService;
+    @Autowired private SalesStatisticsBuffer salesStatisticsBuffer;
     @Autowired private ProductCatalogService productCatalogService;
     @Autowired private SlowQueryDetector slowQueryDetector;
 
@@ -31,6 +33,7 @@ public class EcommerceDashboardSteps {
 
     @When("查詢類別 {string} 的銷售統計")
     public void queryStatsByCategory(String category) {
+        salesStatisticsBuffer.flush();
         currentStats = orderQueryService.findStatisticsByCategory(category).orElse(null);
     }
 
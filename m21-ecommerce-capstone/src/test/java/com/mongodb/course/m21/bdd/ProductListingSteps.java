@@ -6,6 +6,7 @@ import com.mongodb.course.m21.order.model.OrderLine;
 import com.mongodb.course.m21.order.model.ShippingAddress;
 import com.mongodb.course.m21.order.service.OrderCommandService;
 import com.mongodb.course.m21.product.ProductCatalogService;
+import com.mongodb.course.m21.projection.SalesStatisticsBuffer;
 import com.mongodb.course.m21.projection.readmodel.OrderDashboardDocument;
 import com.mongodb.course.m21.projection.readmodel.TimelineEntry;
 import io.cucumber.java.en.Given;
@@ -27,6 +28,7 @@ public class ProductListingSteps {
     @Autowired private ProductListingService listingService;
     @Autowired private OrderCommandService orderCommandService;
     @Autowired private ProductCatalogService productCatalogService;
+    @Autowired private SalesStatisticsBuffer salesStatisticsBuffer;
     @Autowired private MongoTemplate mongoTemplate;
 
     private ProductListing currentListing;
@@ -47,6 +49,7 @@ public class ProductListingSteps {
             String orderId = "ORD-CAT-" + category + "-" + i;
             orderCommandService.cancel(orderId, "Test cancellation");
         }
+        salesStatisticsBuffer.flush();
     }
 
     @When("提交商品上架 SKU {string} 名稱 {string} 類別 {string} 價格 {int} 元庫存 {int} 件")
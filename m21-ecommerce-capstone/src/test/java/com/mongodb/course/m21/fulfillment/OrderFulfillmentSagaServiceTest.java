@@ -1,7 +1,10 @@
 package com.mongodb.course.m21.fulfillment;
 
+import com.mongodb.course.m21.AggregateStateReset;
 import com.mongodb.course.m21.SharedContainersConfig;
 import com.mongodb.course.m21.config.SchemaValidationConfig;
+import com.mongodb.course.m21.fulfillment.step.ReserveInventoryStep;
+import com.mongodb.course.m21.infrastructure.saga.SagaContext;
 import com.mongodb.course.m21.infrastructure.saga.SagaLogRepository;
 import com.mongodb.course.m21.infrastructure.saga.SagaStatus;
 import com.mongodb.course.m21.order.model.OrderLine;
@@ -9,7 +12,6 @@ import com.mongodb.course.m21.order.model.ShippingAddress;
 import com.mongodb.course.m21.order.service.OrderCommandService;
 import com.mongodb.course.m21.product.ElectronicsProduct;
 import com.mongodb.course.m21.product.ProductCatalogService;
-import com.mongodb.course.m21.projection.readmodel.OrderDashboardDocument;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -19,7 +21,6 @@ import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Query;
 
 import java.math.BigDecimal;
-import java.time.Instant;
 import java.util.List;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -31,15 +32,19 @@ class OrderFulfillmentSagaServiceTest {
     @Autowired private OrderFulfillmentSagaService sagaService;
     @Autowired private OrderCommandService orderCommandService;
     @Autowired private ProductCatalogService productCatalogService;
+    @Autowired private ReserveInventoryStep reserveInventoryStep;
     @Autowired private SagaLogRepository sagaLogRepository;
     @Autowired private MongoTemplate mongoTemplate;
     @Autowired private SchemaValidationConfig schemaValidationConfig;
+    @Autowired private AggregateStateReset aggregateStateReset;
 
     @BeforeEach
     void cleanUp() {
+        aggregateStateReset.reset();
         mongoTemplate.remove(new Query(), "m21_order_events");
         mongoTemplate.remove(new Query(), "m21_snapshots");
         mongoTemplate.remove(new Query(), "m21_order_dashboard");
+        mongoTemplate.remove(new Query(), "m21_purchase_velocity");
         mongoTemplate.remove(new Query(), "m21_sales_statistics");
         mongoTemplate.remove(new Query(), "m21_fulfillment_saga_logs");
         mongoTemplate.remove(new Query(), "m21_order_notifications");
@@ -91,17 +96,13 @@ class OrderFulfillmentSagaServiceTest {
                 new BigDecimal("30000"), 100, "Canon", 24);
         productCatalogService.save(product);
 
-        // Pre-insert 4 orders for same customer + category in last 24h (via dashboard)
+        var lines = List.of(new OrderLine("CAM-01", "Camera", "Electronics", 1, new BigDecimal("30000")));
+        var address = new ShippingAddress("Charlie", "3rd Rd", "Taipei", "105");
+        // Place 4 orders for same customer + category in last 24h
         for (int i = 1; i <= 4; i++) {
-            var doc = new OrderDashboardDocument(
-                    "ORD-BULK-" + i, "CUST-BULK", new BigDecimal("30000"),
-                    "PLACED", 1, List.of("Electronics"),
-                    "Taipei", null, List.of(), Instant.now(), 1);
-            mongoTemplate.insert(doc, "m21_order_dashboard");
+            orderCommandService.placeOrder("ORD-BULK-" + i, "CUST-BULK", lines, address);
         }
 
-        var lines = List.of(new OrderLine("CAM-01", "Camera", "Electronics", 1, new BigDecimal("30000")));
-        var address = new ShippingAddress("Charlie", "3rd Rd", "Taipei", "105");
         var order = orderCommandService.placeOrder("ORD-SF03", "CUST-BULK", lines, address);
 
         String sagaId = sagaService.executeFulfillment(order);
@@ -109,4 +110,26 @@ class OrderFulfillmentSagaServiceTest {
 
         assertThat(sagaLog.status()).isEqualTo(SagaStatus.COMPENSATED);
     }
+
+    @Test
+    void repeatedInventoryReservationTakesStockOnce() {
+        var product = new ElectronicsProduct("WATCH-01", "WATCH-001", "Watch", "Electronics",
+                new BigDecimal("8000"), 10, "Garmin", 12);
+        productCatalogService.save(product);
+
+        var lines = List.of(new OrderLine("WATCH-01", "Watch", "Electronics", 3, new BigDecimal("8000")));
+        var address = new ShippingAddress("Dora", "4th St", "Taipei", "106");
+        var order = orderCommandService.placeOrder("ORD-SF04", "CUST-004", lines, address);
+
+        var context = new SagaContext();
+        context.put("sagaId", "saga-repeat");
+        context.put("order", order);
+        reserveInventoryStep.execute(context);
+        reserveInventoryStep.execute(context);
+        assertThat(productCatalogService.findById("WATCH-01").orElseThrow().getStockQuantity()).isEqualTo(7);
+
+        reserveInventoryStep.compensate(context);
+        reserveInventoryStep.compensate(context);
+        assertThat(productCatalogService.findById("WATCH-01").orElseThrow().getStockQuantity()).isEqualTo(10);
+    }
 }
@@ -1,5 +1,6 @@
 package com.mongodb.course.m21.listing;
 
+import com.mongodb.course.m21.AggregateStateReset;
 import com.mongodb.course.m21.SharedContainersConfig;
 import com.mongodb.course.m21.config.SchemaValidationConfig;
 import com.mongodb.course.m21.listing.model.ListingStatus;
@@ -8,6 +9,7 @@ import com.mongodb.course.m21.order.model.OrderLine;
 import com.mongodb.course.m21.order.model.ShippingAddress;
 import com.mongodb.course.m21.order.service.OrderCommandService;
 import com.mongodb.course.m21.product.ProductCatalogService;
+import com.mongodb.course.m21.projection.SalesStatisticsBuffer;
 import org.bson.Document;
 import org.springframework.dao.DataIntegrityViolationException;
 import org.junit.jupiter.api.BeforeEach;
@@ -31,11 +33,14 @@ class ProductListingServiceTest {
     @Autowired private ProductListingService listingService;
     @Autowired private OrderCommandService orderCommandService;
     @Autowired private ProductCatalogService productCatalogService;
+    @Autowired private SalesStatisticsBuffer salesStatisticsBuffer;
     @Autowired private MongoTemplate mongoTemplate;
     @Autowired private SchemaValidationConfig schemaValidationConfig;
+    @Autowired private AggregateStateReset aggregateStateReset;
 
     @BeforeEach
     void cleanUp() {
+        aggregateStateReset.reset();
         mongoTemplate.remove(new Query(), "m21_order_events");
         mongoTemplate.remove(new Query(), "m21_snapshots");
         mongoTemplate.remove(new Query(), "m21_order_dashboard");
@@ -54,6 +59,7 @@ class ProductListingServiceTest {
             var lines = List.of(new OrderLine("P" + i, "Item", "Electronics", 1, new BigDecimal("2000")));
             orderCommandService.placeOrder("ORD-PL-" + i, "CUST-" + i, lines, address);
         }
+        salesStatisticsBuffer.flush();
 
         var listing = listingService.submit("NEW-001", "New Product", "Electronics",
                 "Electronics", new BigDecimal("1500"), 50);
@@ -74,6 +80,7 @@ class ProductListingServiceTest {
         // Cancel 2 of 3 orders to get high cancel rate
         orderCommandService.cancel("ORD-FD-1", "Test cancel");
         orderCommandService.cancel("ORD-FD-2", "Test cancel");
+        salesStatisticsBuffer.flush();
 
         var listing = listingService.submit("FOOD-001", "Snack", "Food",
                 "Food", new BigDecimal("50"), 100);
@@ -1,19 +1,25 @@
 package com.mongodb.course.m21.order;
 
+import com.mongodb.course.m21.AggregateStateReset;
 import com.mongodb.course.m21.SharedContainersConfig;
 import com.mongodb.course.m21.infrastructure.EventStore;
+import com.mongodb.course.m21.infrastructure.SnapshotDocument;
 import com.mongodb.course.m21.order.event.*;
 import com.mongodb.course.m21.order.model.*;
 import com.mongodb.course.m21.order.service.OrderCommandService;
+import org.bson.Document;
+import org.bson.types.Decimal128;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.context.annotation.Import;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 
 import java.math.BigDecimal;
+import java.time.Instant;
 import java.util.List;
 import java.util.UUID;
 
@@ -26,9 +32,11 @@ class OrderCommandServiceTest {
     @Autowired private OrderCommandService orderCommandService;
     @Autowired private EventStore eventStore;
     @Autowired private MongoTemplate mongoTemplate;
+    @Autowired private AggregateStateReset aggregateStateReset;
 
     @BeforeEach
     void cleanUp() {
+        aggregateStateReset.reset();
         mongoTemplate.remove(new Query(), "m21_order_events");
         mongoTemplate.remove(new Query(), "m21_snapshots");
         mongoTemplate.remove(new Query(), "m21_order_dashboard");
@@ -90,4 +98,27 @@ class OrderCommandServiceTest {
         assertThat(replayed.getVersion()).isEqualTo(4);
         assertThat(replayed.getTotalAmount()).isEqualByComparingTo(new BigDecimal("8000"));
     }
+
+    @Test
+    void snapshotsStoreLinePricesAsDecimal128() {
+        var lines = List.of(
+                new OrderLine("P1", "Tablet", "Electronics", 2, new BigDecimal("12000.50"))
+        );
+        var address = new ShippingAddress("Dana", "4th St", "Taipei", "106");
+        var order = orderCommandService.placeOrder("ORD-SN", "CUST-004", lines, address);
+
+        eventStore.saveSnapshot(new SnapshotDocument(UUID.randomUUID().toString(), "ORD-SN", "Order",
+                order.getVersion(), Instant.now(), order.toSnapshot()));
+
+        var raw = mongoTemplate.findOne(Query.query(Criteria.where("aggregateId").is("ORD-SN")),
+                Document.class, "m21_snapshots");
+        assertThat(raw).isNotNull();
+        var state = raw.get("state", Document.class);
+        assertThat(state.get("totalAmount")).isInstanceOf(Decimal128.class);
+        assertThat(state.getList("lines", Document.class).getFirst().get("unitPrice")).isInstanceOf(Decimal128.class);
+
+        var reloaded = Order.fromSnapshot(
+                (OrderSnapshot) eventStore.loadLatestSnapshot("ORD-SN", "Order").orElseThrow().state());
+        assertThat(reloaded.getTotalAmount()).isEqualByComparingTo(new BigDecimal("24001.00"));
+    }
 }
@@ -1,5 +1,6 @@
 package com.mongodb.course.m21.projection;
 
+import com.mongodb.course.m21.AggregateStateReset;
 import com.mongodb.course.m21.SharedContainersConfig;
 import com.mongodb.course.m21.order.model.OrderLine;
 import com.mongodb.course.m21.order.model.PaymentInfo;
@@ -24,10 +25,13 @@ class OrderProjectionTest {
 
     @Autowired private OrderCommandService orderCommandService;
     @Autowired private OrderQueryService orderQueryService;
+    @Autowired private SalesStatisticsBuffer salesStatisticsBuffer;
     @Autowired private MongoTemplate mongoTemplate;
+    @Autowired private AggregateStateReset aggregateStateReset;
 
     @BeforeEach
     void cleanUp() {
+        aggregateStateReset.reset();
         mongoTemplate.remove(new Query(), "m21_order_events");
         mongoTemplate.remove(new Query(), "m21_snapshots");
         mongoTemplate.remove(new Query(), "m21_order_dashboard");
@@ -68,6 +72,7 @@ class OrderProjectionTest {
         orderCommandService.placeOrder("ORD-ST1", "CUST-002", electronicsLines1, address);
         orderCommandService.placeOrder("ORD-ST2", "CUST-002", electronicsLines2, address);
         orderCommandService.placeOrder("ORD-ST3", "CUST-003", clothingLines, address);
+        salesStatisticsBuffer.flush();
 
         var electronicsStat = orderQueryService.findStatisticsByCategory("Electronics").orElseThrow();
         assertThat(electronicsStat.totalOrders()).isEqualTo(2);
@@ -76,4 +81,26 @@ class OrderProjectionTest {
         var clothingStat = orderQueryService.findStatisticsByCategory("Clothing").orElseThrow();
         assertThat(clothingStat.totalOrders()).isEqualTo(1);
     }
+
+    @Test
+    void categoryMetricsAreMaintainedIncrementally() {
+        var address = new ShippingAddress("Eve", "5th Ln", "Hsinchu", "300");
+        orderCommandService.placeOrder("ORD-MET1", "CUST-004", List.of(
+                new OrderLine("P1", "Laptop", "Electronics", 1, new BigDecimal("30000")),
+                new OrderLine("P3", "Shirt", "Clothing", 1, new BigDecimal("1000"))), address);
+        orderCommandService.placeOrder("ORD-MET2", "CUST-005", List.of(
+                new OrderLine("P3", "Shirt", "Clothing", 2, new BigDecimal("1000"))), address);
+        orderCommandService.cancel("ORD-MET2", "Out of budget");
+        salesStatisticsBuffer.flush();
+
+        var clothing = orderQueryService.findCategoryMetrics("Clothing");
+        assertThat(clothing.totalOrders()).isEqualTo(2);
+        assertThat(clothing.cancelledOrders()).isEqualTo(1);
+        assertThat(clothing.totalRevenue()).isEqualByComparingTo(new BigDecimal("33000"));
+        assertThat(clothing.avgOrderValue()).isEqualByComparingTo(new BigDecimal("16500"));
+
+        var none = orderQueryService.findCategoryMetrics("Food");
+        assertThat(none.totalOrders()).isZero();
+        assertThat(none.avgOrderValue()).isEqualByComparingTo(BigDecimal.ZERO);
+    }
 }
@@ -0,0 +1,101 @@
+package com.mongodb.course.m21.projection;
+
+import com.mongodb.course.m21.AggregateStateReset;
+import com.mongodb.course.m21.SharedContainersConfig;
+import com.mongodb.course.m21.order.model.OrderLine;
+import com.mongodb.course.m21.order.model.ShippingAddress;
+import com.mongodb.course.m21.order.service.OrderCommandService;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+@SpringBootTest(properties = {
+        "projection.sales.flush-threshold=1000",
+        "projection.sales.flush-interval-ms=0"
+})
+@Import(SharedContainersConfig.class)
+class SalesStatisticsBufferTest {
+
+    @Autowired private OrderCommandService orderCommandService;
+    @Autowired private OrderQueryService orderQueryService;
+    @Autowired private SalesStatisticsBuffer salesStatisticsBuffer;
+    @Autowired private MongoTemplate mongoTemplate;
+    @Autowired private AggregateStateReset aggregateStateReset;
+
+    @BeforeEach
+    void cleanUp() {
+        aggregateStateReset.reset();
+        mongoTemplate.remove(new Query(), "m21_order_events");
+        mongoTemplate.remove(new Query(), "m21_snapshots");
+        mongoTemplate.remove(new Query(), "m21_order_dashboard");
+        mongoTemplate.remove(new Query(), "m21_sales_statistics");
+    }
+
+    @Test
+    void deltasAreBufferedUntilFlushedAsOneWritePerCategory() {
+        var address = new ShippingAddress("Carol", "3rd Rd", "Taichung", "400");
+        orderCommandService.placeOrder("ORD-BUF1", "CUST-010", List.of(
+                new OrderLine("P1", "Laptop", "Electronics", 1, new BigDecimal("30000"))), address);
+        orderCommandService.placeOrder("ORD-BUF2", "CUST-011", List.of(
+                new OrderLine("P2", "Phone", "Electronics", 2, new BigDecimal("10000"))), address);
+
+        assertThat(orderQueryService.findStatisticsByCategory("Electronics")).isEmpty();
+        assertThat(salesStatisticsBuffer.flush()).isEqualTo(1);
+
+        var electronics = orderQueryService.findStatisticsByCategory("Electronics").orElseThrow();
+        assertThat(electronics.totalOrders()).isEqualTo(2);
+        assertThat(electronics.totalItemsSold()).isEqualTo(3);
+        assertThat(electronics.totalRevenue()).isEqualByComparingTo(new BigDecimal("50000"));
+        assertThat(salesStatisticsBuffer.bufferedUpdates()).isZero();
+    }
+
+    @Test
+    void cancellationCountsForEveryCategoryInOrder() {
+        var address = new ShippingAddress("Dan", "4th St", "Tainan", "700");
+        orderCommandService.placeOrder("ORD-BUF3", "CUST-012", List.of(
+                new OrderLine("P1", "Laptop", "Electronics", 1, new BigDecimal("30000")),
+                new OrderLine("P3", "Shirt", "Clothing", 2, new BigDecimal("600"))), address);
+        orderCommandService.cancel("ORD-BUF3", "Changed mind");
+        salesStatisticsBuffer.flush();
+
+        var electronics = orderQueryService.findStatisticsByCategory("Electronics").orElseThrow();
+        var clothing = orderQueryService.findStatisticsByCategory("Clothing").orElseThrow();
+        assertThat(electronics.cancelledCount()).isEqualTo(1);
+        assertThat(clothing.cancelledCount()).isEqualTo(1);
+        assertThat(clothing.totalRevenue()).isEqualByComparingTo(new BigDecimal("1200"));
+    }
+
+    @Test
+    void onlyRejectedUpsertsAreBufferedAgain() {
+        // A non-numeric counter makes the Clothing $inc fail while the Electronics upsert succeeds
+        mongoTemplate.insert(new Document("_id", "Clothing").append("totalOrders", "corrupt"), "m21_sales_statistics");
+        var address = new ShippingAddress("Fay", "6th Rd", "Keelung", "200");
+        orderCommandService.placeOrder("ORD-BUF4", "CUST-013", List.of(
+                new OrderLine("P1", "Laptop", "Electronics", 1, new BigDecimal("30000")),
+                new OrderLine("P3", "Shirt", "Clothing", 1, new BigDecimal("600"))), address);
+
+        assertThatThrownBy(salesStatisticsBuffer::flush).isInstanceOf(BulkOperationException.class);
+        assertThat(salesStatisticsBuffer.bufferedUpdates()).isEqualTo(1);
+
+        mongoTemplate.remove(Query.query(Criteria.where("_id").is("Clothing")), "m21_sales_statistics");
+        assertThat(salesStatisticsBuffer.flush()).isEqualTo(1);
+
+        var electronics = orderQueryService.findStatisticsByCategory("Electronics").orElseThrow();
+        var clothing = orderQueryService.findStatisticsByCategory("Clothing").orElseThrow();
+        assertThat(electronics.totalOrders()).isEqualTo(1);
+        assertThat(clothing.totalOrders()).isEqualTo(1);
+    }
+}
@@ -15,8 +15,8 @@ Feature: 訂單履約 Saga 流程
     Then Saga 狀態為 "COMPENSATED"
     And 商品 "TABLET-001" 庫存恢復為 3 件
 
-  Scenario: Saga 日誌記錄四個步驟
+  Scenario: Saga 日誌記錄五個步驟
     Given 商品 "CAMERA-001" 名稱 "相機" 類別 "Electronics" 價格 30000 元庫存 10 件
     And 已下單訂單 "ORD-F03" 購買 1 件 "CAMERA-001"
     When 執行訂單履約 Saga "ORD-F03"
-    Then Saga 日誌包含 4 個步驟
+    Then Saga 日誌包含 5 個步驟